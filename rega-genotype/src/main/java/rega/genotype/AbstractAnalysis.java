@@ -7,7 +7,11 @@ package rega.genotype;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import rega.genotype.AlignmentAnalyses.Cluster;
 
@@ -134,6 +138,14 @@ public abstract class AbstractAnalysis {
 		public AbstractSequence getSequence() {
             return sequence;
         }
+
+		/**
+		 * Sets the analyzed sequence, for a result that was computed for
+		 * another sequence object with the same name and residues.
+		 */
+		void setSequence(AbstractSequence sequence) {
+			this.sequence = sequence;
+		}
         
         public AbstractAnalysis getAnalysis() {
             return AbstractAnalysis.this;
@@ -158,6 +170,7 @@ public abstract class AbstractAnalysis {
     protected AlignmentAnalyses owner;
     private String id;
 	private String options;
+	private Map<String, String> optionValues; // see getOptionValue()
 	protected File workingDir;
 
     public AbstractAnalysis(AlignmentAnalyses owner, String id) {
@@ -214,8 +227,13 @@ public abstract class AbstractAnalysis {
     protected SequenceAlignment profileAlign(SequenceAlignment alignment, AbstractSequence sequence, File workingDir) throws AlignmentException {
         SequenceAlignment aligned = alignment;
     
-        if (sequence != null && (alignment.findSequence(sequence.getName()) == null))
-            aligned = SequenceAlign.profileAlign(sequence, alignment, owner.isTrimAlignment(), workingDir);
+        if (sequence != null && (alignment.findSequence(sequence.getName()) == null)) {
+        	GenotypeTool tool = owner.getGenotypeTool();
+            aligned = SequenceAlign.profileAlign(sequence, alignment, owner,
+            		tool != null ? tool.getAlignmentEngine() : null,
+            		tool != null ? tool.getAlignmentCache() : null,
+            		owner.isTrimAlignment(), workingDir);
+        }
         return aligned;
     }
 
@@ -239,11 +257,31 @@ public abstract class AbstractAnalysis {
 	    return options != null && options.contains(option);
 	}
 
+	/**
+	 * Obtains the value of an option (option=value) from the <options> block in the analyses.
+	 * 
+	 * @return the value, or null if the option is not set.
+	 */
+	protected String getOptionValue(String option) {
+		return optionValues != null ? optionValues.get(option) : null;
+	}
+
+	private static final Pattern OPTION_VALUE = Pattern.compile("(?:^|[,\\s])([^,\\s=]+)\\s*=\\s*([^,\\s]+)");
+
 	/**
 	 * Information from the <options> block configured for this analysis.
 	 */
 	public void setOptions(String options) {
 		this.options = options;
+
+		optionValues = null;
+		if (options != null) {
+			optionValues = new HashMap<String, String>();
+			Matcher m = OPTION_VALUE.matcher(options);
+			while (m.find())
+				if (!optionValues.containsKey(m.group(1)))
+					optionValues.put(m.group(1), m.group(2));
+		}
 	}
 	
 	public String getOptions() {
@@ -39,11 +39,131 @@ public abstract class AbstractSequence {
      */
     public abstract int getLength();
 
+    /**
+     * @return the residue at position i (== getSequence().charAt(i))
+     */
+    public abstract char charAt(int i);
+
+    /**
+     * @return whether the residue at position i is a gap
+     */
+    public boolean isGap(int i) {
+    	return charAt(i) == PackedResidues.GAP;
+    }
+
+    /**
+     * Returns the gap bits for the positions [i, i + 64[: bit k is set if
+     * position i + k is a gap. Positions beyond the end are not gaps.
+     */
+    public long gapWord(int i) {
+    	long result = 0;
+    	int end = Math.min(getLength(), i + 64);
+    	for (int k = i; k < end; ++k)
+    		if (isGap(k))
+    			result |= 1L << (k - i);
+
+    	return result;
+    }
+
+    /**
+     * @return the position of the first residue that is not a gap, or
+     *   getLength() if the sequence only contains gaps.
+     */
+    public int firstNonGapPosition() {
+    	final int length = getLength();
+    	for (int i = 0; i < length; i += 64) {
+    		long nonGaps = ~gapWord(i);
+    		if (nonGaps != 0)
+    			return Math.min(length, i + Long.numberOfTrailingZeros(nonGaps));
+    	}
+
+    	return length;
+    }
+
+    /**
+     * @return the position of the last residue that is not a gap, or -1
+     *   if the sequence only contains gaps.
+     */
+    public int lastNonGapPosition() {
+    	final int length = getLength();
+    	for (int i = ((length - 1) >> 6) << 6; i >= 0; i -= 64) {
+    		long nonGaps = ~gapWord(i);
+    		if (length - i < 64)
+    			nonGaps &= (1L << (length - i)) - 1;
+    		if (nonGaps != 0)
+    			return i + 63 - Long.numberOfLeadingZeros(nonGaps);
+    	}
+
+    	return -1;
+    }
+
+    /**
+     * Copies the residues [srcBegin, srcEnd[ into dst, without building the
+     * sequence string.
+     */
+    public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+    	for (int i = srcBegin; i < srcEnd; ++i)
+    		dst[dstBegin++] = charAt(i);
+    }
+
+    /**
+     * Copies the residues [srcBegin, srcEnd[ as ASCII bytes into dst, for
+     * writing the sequence to a stream without building the sequence string.
+     */
+    public void getBytes(int srcBegin, int srcEnd, byte[] dst, int dstBegin) {
+    	for (int i = srcBegin; i < srcEnd; ++i)
+    		dst[dstBegin++] = (byte) charAt(i);
+    }
+
+    /**
+     * @return a view on the residues, which does not copy them.
+     */
+    public CharSequence getResidues() {
+    	return residueView(this, 0, getLength());
+    }
+
+    /**
+     * @return a view on the residues [begin, end[ of a sequence.
+     */
+    protected static CharSequence residueView(final AbstractSequence sequence,
+    		final int begin, final int end) {
+    	return new CharSequence() {
+			public int length() {
+				return end - begin;
+			}
+
+			public char charAt(int index) {
+				return sequence.charAt(begin + index);
+			}
+
+			public CharSequence subSequence(int start, int stop) {
+				return residueView(sequence, begin + start, begin + stop);
+			}
+
+			@Override
+			public String toString() {
+				char[] result = new char[length()];
+				sequence.getChars(begin, end, result, 0);
+				return new String(result);
+			}
+		};
+    }
+
     /**
      * Deletes a token from the sequence, reducing the length by 1.
      */
 	public abstract void removeChar(int i);
 
+	/**
+	 * Deletes all positions that are set in the column mask (see
+	 * {@link ColumnGaps}), reducing the length by the number of columns deleted.
+	 */
+	public void removeColumns(long[] mask) {
+		for (int i = getLength() - 1; i >= 0; --i)
+			if ((i >>> 6) < mask.length && (mask[i >>> 6] & (1L << i)) != 0)
+				removeChar(i);
+	}
+
     /**
      * Returns the original sequence that this sequence is derived from.
      * 
@@ -69,51 +189,27 @@ public abstract class AbstractSequence {
      * @return a new sequence that is the reverse complement.
      */
 	public AbstractSequence reverseCompliment() {
-		String sequence = getSequence().toUpperCase();
-		StringBuffer s = new StringBuffer();
-		for (int i = 0; i < sequence.length(); ++i) {
-			char ch = sequence.charAt(sequence.length() - i - 1);
-			switch (ch) {
-			case 'A':
-				ch = 'T'; break;
-			case 'C':
-				ch = 'G'; break;
-			case 'G':
-				ch = 'C'; break;
-			case 'T':
-				ch = 'A'; break;
-			case 'M':
-				ch = 'K'; break;
-			case 'R':
-				ch = 'Y'; break;
-			case 'W':
-				ch = 'W'; break;
-			case 'S':
-				ch = 'S'; break;
-			case 'Y':
-				ch = 'R'; break;
-			case 'K':
-				ch = 'M'; break;
-			case 'B':
-				ch = 'V'; break;
-			case 'D':
-				ch = 'H'; break;
-			case 'H':
-				ch = 'D'; break;
-			case 'V':
-				ch = 'B'; break;
-			case 'N':
-				ch = 'N'; break;
-			default:
-			}
-			s.append(ch);
-		}
-		
-		Sequence result = new Sequence(getName(), isNameCapped(), getDescription(), s.toString());
+		Sequence result = new Sequence(getName(), isNameCapped(), getDescription(),
+				packedResidues().reverseComplement());
 		result.setSourceSequence(this);
 		
 		return result;
 	}
 
+	/**
+	 * Returns the reverse complement as a view on this sequence, which does not
+	 * copy the residues.
+	 */
+	public AbstractSequence reverseComplementView() {
+		return new ReverseComplementSequence(this);
+	}
+
+	/**
+	 * @return the residues in packed form.
+	 */
+	PackedResidues packedResidues() {
+		return PackedResidues.valueOf(getResidues());
+	}
+
 	abstract public void setName(String name);
 }
\ No newline at end of file
@@ -0,0 +1,493 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.util.Arrays;
+
+/**
+ * The dynamic programming shared by the in-process aligners
+ * ({@link PairwiseAligner} and {@link ProfileAligner}).
+ *
+ * Computes an optimal alignment of a sequence a with a sequence or profile b,
+ * with affine gap penalties (Gotoh), without penalizing end gaps, in a band of
+ * diagonals around the diagonals that share k-mers. The position j of b
+ * determines the score of a residue against it, and the penalties of a gap
+ * in a opposite to it.
+ *
+ * Residues are encoded as IUB nucleotide masks (1 = A, 2 = C, 4 = G, 8 = T)
+ * or as amino acid indexes in {@link #AMINO_ACIDS}. Scores are integers,
+ * in units of 1/{@link #SCALE}.
+ */
+final class AffineAligner {
+	static final int SCALE = 100;
+	static final int NEG = Integer.MIN_VALUE / 4;
+
+	static final String AMINO_ACIDS = "ARNDCQEGHILKMFPSTWYVBZX*";
+	static final byte ANY_NUCLEOTIDE = 15;
+	static final byte ANY_AMINO_ACID = (byte) AMINO_ACIDS.indexOf('X');
+
+	private static final int MIN_BAND = 64;
+	private static final int MAX_KMER_HITS = 32;
+	private static final int MIN_KMER_VOTES = 4;
+	private static final int MAX_RETAINED_TRACE = 16 * 1024 * 1024;
+	private static final long MAX_TRACE = 512L * 1024 * 1024;
+
+	/*
+	 * Trace bits, for every cell: how the best score was obtained, and whether
+	 * the horizontal (E) and vertical (F) gaps were extended or opened.
+	 */
+	private static final int FROM_E = 1;
+	private static final int FROM_F = 2;
+	private static final int E_EXTEND = 4;
+	private static final int F_EXTEND = 8;
+
+	private static final String NUCLEOTIDES = "ACGTURYSWKMBDHVN";
+	private static final int[] NUCLEOTIDE_MASKS
+		= { 1, 2, 4, 8, 8, 1|4, 2|8, 2|4, 1|8, 4|8, 1|2, 2|4|8, 1|4|8, 1|2|8, 1|2|4, 15 };
+	private static final byte[] NUCLEOTIDE_CODES = new byte[128];
+	private static final byte[] AMINO_ACID_CODES = new byte[128];
+
+	/**
+	 * The IUB matrix, as used by clustalw: 1.9 for compatible nucleotides.
+	 */
+	static final int[][] IUB = new int[16][16];
+
+	/**
+	 * The BLOSUM62 matrix, in the order of {@link #AMINO_ACIDS}.
+	 */
+	static final int[][] BLOSUM62 = {
+		{  4, -1, -2, -2,  0, -1, -1,  0, -2, -1, -1, -1, -1, -2, -1,  1,  0, -3, -2,  0, -2, -1,  0, -4 },
+		{ -1,  5,  0, -2, -3,  1,  0, -2,  0, -3, -2,  2, -1, -3, -2, -1, -1, -3, -2, -3, -1,  0, -1, -4 },
+		{ -2,  0,  6,  1, -3,  0,  0,  0,  1, -3, -3,  0, -2, -3, -2,  1,  0, -4, -2, -3,  3,  0, -1, -4 },
+		{ -2, -2,  1,  6, -3,  0,  2, -1, -1, -3, -4, -1, -3, -3, -1,  0, -1, -4, -3, -3,  4,  1, -1, -4 },
+		{  0, -3, -3, -3,  9, -3, -4, -3, -3, -1, -1, -3, -1, -2, -3, -1, -1, -2, -2, -1, -3, -3, -2, -4 },
+		{ -1,  1,  0,  0, -3,  5,  2, -2,  0, -3, -2,  1,  0, -3, -1,  0, -1, -2, -1, -2,  0,  3, -1, -4 },
+		{ -1,  0,  0,  2, -4,  2,  5, -2,  0, -3, -3,  1, -2, -3, -1,  0, -1, -3, -2, -2,  1,  4, -1, -4 },
+		{  0, -2,  0, -1, -3, -2, -2,  6, -2, -4, -4, -2, -3, -3, -2,  0, -2, -2, -3, -3, -1, -2, -1, -4 },
+		{ -2,  0,  1, -1, -3,  0,  0, -2,  8, -3, -3, -1, -2, -1, -2, -1, -2, -2,  2, -3,  0,  0, -1, -4 },
+		{ -1, -3, -3, -3, -1, -3, -3, -4, -3,  4,  2, -3,  1,  0, -3, -2, -1, -3, -1,  3, -3, -3, -1, -4 },
+		{ -1, -2, -3, -4, -1, -2, -3, -4, -3,  2,  4, -2,  2,  0, -3, -2, -1, -2, -1,  1, -4, -3, -1, -4 },
+		{ -1,  2,  0, -1, -3,  1,  1, -2, -1, -3, -2,  5, -1, -3, -1,  0, -1, -3, -2, -2,  0,  1, -1, -4 },
+		{ -1, -1, -2, -3, -1,  0, -2, -3, -2,  1,  2, -1,  5,  0, -2, -1, -1, -1, -1,  1, -3, -1, -1, -4 },
+		{ -2, -3, -3, -3, -2, -3, -3, -3, -1,  0,  0, -3,  0,  6, -4, -2, -2,  1,  3, -1, -3, -3, -1, -4 },
+		{ -1, -2, -2, -1, -3, -1, -1, -2, -2, -3, -3, -1, -2, -4,  7, -1, -1, -4, -3, -2, -2, -1, -2, -4 },
+		{  1, -1,  1,  0, -1,  0,  0,  0, -1, -2, -2,  0, -1, -2, -1,  4,  1, -3, -2, -2,  0,  0,  0, -4 },
+		{  0, -1,  0, -1, -1, -1, -1, -2, -2, -1, -1, -1, -1, -2, -1,  1,  5, -2, -2,  0, -1, -1,  0, -4 },
+		{ -3, -3, -4, -4, -2, -2, -3, -2, -2, -3, -2, -3, -1,  1, -4, -3, -2, 11,  2, -3, -4, -3, -2, -4 },
+		{ -2, -2, -2, -3, -2, -1, -2, -3,  2, -1, -1, -2, -1,  3, -3, -2, -2,  2,  7, -1, -3, -2, -1, -4 },
+		{  0, -3, -3, -3, -1, -2, -2, -3, -3,  3,  1, -2,  1, -1, -2, -2,  0, -3, -1,  4, -3, -2, -1, -4 },
+		{ -2, -1,  3,  4, -3,  0,  1, -1,  0, -3, -4,  0, -3, -3, -2,  0, -1, -4, -3, -3,  4,  1, -1, -4 },
+		{ -1,  0,  0,  1, -3,  3,  4, -2,  0, -3, -3,  1, -1, -3, -1,  0, -1, -3, -2, -2,  1,  4, -1, -4 },
+		{  0, -1, -1, -1, -2, -1, -1, -1, -1, -1, -1, -1, -1, -1, -2,  0,  0, -2, -1, -1, -1, -1, -1, -4 },
+		{ -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4, -4,  1 }
+	};
+
+	static {
+		Arrays.fill(NUCLEOTIDE_CODES, ANY_NUCLEOTIDE);
+		for (int i = 0; i < NUCLEOTIDES.length(); ++i) {
+			char c = NUCLEOTIDES.charAt(i);
+			NUCLEOTIDE_CODES[c] = (byte) NUCLEOTIDE_MASKS[i];
+			NUCLEOTIDE_CODES[Character.toLowerCase(c)] = (byte) NUCLEOTIDE_MASKS[i];
+		}
+
+		for (int i = 0; i < 16; ++i)
+			for (int j = 0; j < 16; ++j)
+				IUB[i][j] = (i & j) != 0 ? 190 : 0;
+
+		Arrays.fill(AMINO_ACID_CODES, ANY_AMINO_ACID);
+		for (int i = 0; i < AMINO_ACIDS.length(); ++i) {
+			char c = AMINO_ACIDS.charAt(i);
+			AMINO_ACID_CODES[c] = (byte) i;
+			AMINO_ACID_CODES[Character.toLowerCase(c)] = (byte) i;
+		}
+
+		for (int i = 0; i < BLOSUM62.length; ++i)
+			for (int j = 0; j < BLOSUM62.length; ++j)
+				BLOSUM62[i][j] *= SCALE;
+	}
+
+	/**
+	 * The buffers of a thread, which are reused for every alignment.
+	 */
+	static class Buffers {
+		char[] residues1 = new char[0], residues2 = new char[0];
+		byte[] codes1 = new byte[0], codes2 = new byte[0];
+		int[][] scores = new int[0][];
+		int[] gapOpen = new int[0], gapExtension = new int[0];
+
+		private int[] hPrev = new int[0], hCur = new int[0], fPrev = new int[0], fCur = new int[0];
+		private byte[] trace = new byte[0];
+		private int[] kmerHead = new int[0], kmerNext = new int[0], votes = new int[0];
+
+		/**
+		 * @return the score table for an alphabet and sequence length.
+		 */
+		int[][] scores(int alphabet, int length) {
+			if (scores.length < alphabet || scores[0].length < length) {
+				scores = new int[alphabet][length];
+			}
+			return scores;
+		}
+	}
+
+	/**
+	 * The optimal alignment: the positions in a and b for every column (-1
+	 * for a gap), and its score.
+	 */
+	static class Path {
+		int[] a, b;
+		int length;
+		int score;
+	}
+
+	private static final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+
+	private AffineAligner() { }
+
+	static Buffers buffers() {
+		return buffers.get();
+	}
+
+	/**
+	 * Aligns a[0, n[ with b[0, m[.
+	 *
+	 * @param scores scores[c][j] is the score of residue code c against position
+	 *   j of b
+	 * @param gapOpenB, gapExtensionB the penalties for a gap in a opposite to
+	 *   position j of b
+	 * @param gapOpen, gapExtension the penalties for a gap in b
+	 * @param band the diagonals (j - i) to compute, see {@link #findBand}
+	 */
+	static Path align(Buffers buf, byte[] a, int n, int[][] scores, int m,
+			int[] gapOpenB, int[] gapExtensionB, int gapOpen, int gapExtension, int[] band)
+			throws AlignmentException {
+		final int lo = band[0];
+		final int hi = band[1];
+		final int width = hi - lo + 1;
+
+		if ((long) (n + 1) * width > MAX_TRACE)
+			throw new AlignmentException("Sequences too long for alignment: " + n + " x " + m);
+
+		byte[] trace;
+		if ((n + 1) * width > buf.trace.length) {
+			trace = new byte[(n + 1) * width];
+			if (trace.length <= MAX_RETAINED_TRACE)
+				buf.trace = trace;
+		} else
+			trace = buf.trace;
+
+		if (buf.hPrev.length < width) {
+			buf.hPrev = new int[width];
+			buf.hCur = new int[width];
+			buf.fPrev = new int[width];
+			buf.fCur = new int[width];
+		}
+
+		int[] hPrev = buf.hPrev, hCur = buf.hCur, fPrev = buf.fPrev, fCur = buf.fCur;
+
+		int bestScore = NEG, bestI = 0, bestJ = 0;
+
+		for (int k = 0; k < width; ++k) {
+			int j = k + lo;
+			hPrev[k] = (j >= 0 && j <= m) ? 0 : NEG;
+			fPrev[k] = NEG;
+		}
+		if (m - lo < width && m >= lo) {
+			bestScore = 0;
+			bestJ = m;
+		}
+
+		for (int i = 1; i <= n; ++i) {
+			Arrays.fill(hCur, 0, width, NEG);
+			Arrays.fill(fCur, 0, width, NEG);
+
+			final int jmin = Math.max(0, i + lo);
+			final int jmax = Math.min(m, i + hi);
+			final int row = i * width;
+			final int[] rowScores = scores[a[i - 1]];
+
+			int e = NEG;
+			int hLeft = NEG;
+			for (int j = jmin; j <= jmax; ++j) {
+				final int k = j - i - lo;
+
+				if (j == 0) {
+					hCur[k] = 0;
+					hLeft = 0;
+					trace[row + k] = 0;
+					continue;
+				}
+
+				int t = 0;
+
+				int eOpen = hLeft - gapOpenB[j - 1] - gapExtensionB[j - 1];
+				int eExtend = e - gapExtensionB[j - 1];
+				if (eExtend >= eOpen) {
+					e = eExtend;
+					t |= E_EXTEND;
+				} else
+					e = eOpen;
+
+				int f = NEG;
+				if (k + 1 < width) {
+					int fOpen = hPrev[k + 1] - gapOpen - gapExtension;
+					int fExtend = fPrev[k + 1] - gapExtension;
+					if (fExtend >= fOpen) {
+						f = fExtend;
+						t |= F_EXTEND;
+					} else
+						f = fOpen;
+				}
+
+				int h = hPrev[k] + rowScores[j - 1];
+				if (e > h) {
+					h = e;
+					t |= FROM_E;
+				}
+				if (f > h) {
+					h = f;
+					t = (t & ~FROM_E) | FROM_F;
+				}
+
+				hCur[k] = h;
+				fCur[k] = f;
+				hLeft = h;
+				trace[row + k] = (byte) t;
+
+				if ((j == m || i == n) && h > bestScore) {
+					bestScore = h;
+					bestI = i;
+					bestJ = j;
+				}
+			}
+
+			if (i == n && jmin == 0 && bestScore < 0) {
+				bestScore = 0;
+				bestI = n;
+				bestJ = 0;
+			}
+
+			int[] tmp = hPrev; hPrev = hCur; hCur = tmp;
+			tmp = fPrev; fPrev = fCur; fCur = tmp;
+		}
+
+		if (bestScore == NEG) {
+			bestScore = 0;
+			bestI = n;
+			bestJ = m;
+		}
+
+		Path result = traceBack(trace, width, lo, n, m, bestI, bestJ);
+		result.score = bestScore;
+
+		return result;
+	}
+
+	private static Path traceBack(byte[] trace, int width, int lo, int n, int m, int i, int j) {
+		int[] pa = new int[n + m];
+		int[] pb = new int[n + m];
+		int p = pa.length;
+
+		/*
+		 * End gaps
+		 */
+		for (int k = n - 1; k >= i; --k) {
+			--p; pa[p] = k; pb[p] = -1;
+		}
+		for (int k = m - 1; k >= j; --k) {
+			--p; pa[p] = -1; pb[p] = k;
+		}
+
+		final int H = 0, E = 1, F = 2;
+		int state = H;
+		while (i > 0 && j > 0) {
+			int t = trace[i * width + (j - i - lo)];
+
+			if (state == H) {
+				if ((t & FROM_E) != 0)
+					state = E;
+				else if ((t & FROM_F) != 0)
+					state = F;
+				else {
+					--p; pa[p] = --i; pb[p] = --j;
+				}
+			} else if (state == E) {
+				--p; pa[p] = -1; pb[p] = --j;
+				state = (t & E_EXTEND) != 0 ? E : H;
+			} else {
+				--p; pa[p] = --i; pb[p] = -1;
+				state = (t & F_EXTEND) != 0 ? F : H;
+			}
+		}
+
+		/*
+		 * Leading gaps
+		 */
+		while (i > 0) {
+			--p; pa[p] = --i; pb[p] = -1;
+		}
+		while (j > 0) {
+			--p; pa[p] = -1; pb[p] = --j;
+		}
+
+		Path result = new Path();
+		result.length = pa.length - p;
+		result.a = new int[result.length];
+		result.b = new int[result.length];
+		System.arraycopy(pa, p, result.a, 0, result.length);
+		System.arraycopy(pb, p, result.b, 0, result.length);
+
+		return result;
+	}
+
+	/**
+	 * Finds the band of diagonals (j - i) that contains the alignment, as the
+	 * range of diagonals with many shared k-mers, widened with a margin. Without
+	 * enough shared k-mers, the band contains all diagonals.
+	 */
+	static int[] findBand(Buffers buf, byte[] a, int n, byte[] b, int m, boolean dna) {
+		final int alphabet = dna ? 4 : 20;
+		final int k = dna ? 8 : 3;
+		int tableSize = 1;
+		for (int i = 0; i < k; ++i)
+			tableSize *= alphabet;
+
+		if (buf.kmerHead.length < tableSize)
+			buf.kmerHead = new int[tableSize];
+		if (buf.kmerNext.length < n)
+			buf.kmerNext = new int[n];
+		if (buf.votes.length < n + m + 1)
+			buf.votes = new int[n + m + 1];
+
+		int[] head = buf.kmerHead;
+		int[] next = buf.kmerNext;
+		int[] votes = buf.votes;
+		Arrays.fill(head, 0, tableSize, -1);
+		Arrays.fill(votes, 0, n + m + 1, 0);
+
+		int h = 0, valid = 0;
+		for (int i = 0; i < n; ++i) {
+			int c = kmerCode(a[i], dna);
+			if (c < 0) {
+				valid = 0;
+				continue;
+			}
+			h = (h * alphabet + c) % tableSize;
+			if (++valid >= k) {
+				int start = i - k + 1;
+				next[start] = head[h];
+				head[h] = start;
+			}
+		}
+
+		int maxVotes = 0;
+		h = 0;
+		valid = 0;
+		for (int j = 0; j < m; ++j) {
+			int c = kmerCode(b[j], dna);
+			if (c < 0) {
+				valid = 0;
+				continue;
+			}
+			h = (h * alphabet + c) % tableSize;
+			if (++valid >= k) {
+				int start = j - k + 1;
+				int hits = 0;
+				for (int i = head[h]; i != -1 && hits < MAX_KMER_HITS; i = next[i], ++hits) {
+					int d = start - i + n;
+					if (++votes[d] > maxVotes)
+						maxVotes = votes[d];
+				}
+			}
+		}
+
+		int lo = -n, hi = m;
+		if (maxVotes >= MIN_KMER_VOTES) {
+			int dmin = m, dmax = -n;
+			for (int d = 0; d <= n + m; ++d)
+				if (votes[d] * 2 >= maxVotes) {
+					dmin = Math.min(dmin, d - n);
+					dmax = Math.max(dmax, d - n);
+				}
+
+			int margin = MIN_BAND + Math.min(n, m) / 20;
+			lo = Math.max(-n, dmin - margin);
+			hi = Math.min(m, dmax + margin);
+		}
+
+		return new int[] { lo, hi };
+	}
+
+	private static int kmerCode(byte code, boolean dna) {
+		if (dna) {
+			switch (code) {
+			case 1: return 0;
+			case 2: return 1;
+			case 4: return 2;
+			case 8: return 3;
+			default: return -1;
+			}
+		} else
+			return code < 20 ? code : -1;
+	}
+
+	/**
+	 * Copies the residues of a sequence without gaps, and returns their number.
+	 */
+	static int ungapped(AbstractSequence s, char[] residues) {
+		final int length = s.getLength();
+		s.getChars(0, length, residues, 0);
+
+		int result = 0;
+		for (int i = 0; i < length; ++i)
+			if (residues[i] != PackedResidues.GAP)
+				residues[result++] = residues[i];
+
+		return result;
+	}
+
+	/**
+	 * As clustalw: residues are nucleotides if more than 85% of them are A, C,
+	 * G, T, U or N.
+	 */
+	static boolean isNucleotide(int nucleotides, int residues) {
+		return nucleotides > 0.85 * residues;
+	}
+
+	static int countNucleotides(char[] residues, int length) {
+		int result = 0;
+		for (int i = 0; i < length; ++i)
+			switch (residues[i]) {
+			case 'A': case 'C': case 'G': case 'T': case 'U': case 'N':
+			case 'a': case 'c': case 'g': case 't': case 'u': case 'n':
+				++result;
+			}
+
+		return result;
+	}
+
+	static byte code(char c, boolean dna) {
+		if (dna)
+			return c < 128 ? NUCLEOTIDE_CODES[c] : ANY_NUCLEOTIDE;
+		else
+			return c < 128 ? AMINO_ACID_CODES[c] : ANY_AMINO_ACID;
+	}
+
+	static byte[] encode(char[] residues, int length, boolean dna, byte[] codes) {
+		if (codes.length < length)
+			codes = new byte[length];
+
+		for (int i = 0; i < length; ++i)
+			codes[i] = code(residues[i], dna);
+
+		return codes;
+	}
+}
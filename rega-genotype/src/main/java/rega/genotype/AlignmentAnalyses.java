@@ -15,6 +15,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jdom.Document;
 import org.jdom.Element;
@@ -43,9 +44,12 @@ public class AlignmentAnalyses {
     private Map<String, AbstractAnalysis> analyses;
     private Map<String, Cluster>          clusterMap;
     private SequenceAlignment             alignment;
+    private ProfileAligner                profileAligner; // see getProfileAligner()
     private boolean                       trimAlignment;
     private GenotypeTool                  genotypeTool;
 	private Region                        region;
+	private String                        sourceStamp; // see getSourceStamp()
+	private final AtomicInteger           modifications = new AtomicInteger(); // see getModifications()
 
     /**
      * A taxus corresponds to a sequence in the alignment
@@ -81,6 +85,7 @@ public class AlignmentAnalyses {
         private List<Taxus>   taxa;
         private List<Cluster> clusters;
         private Cluster       parent;
+        private AlignmentAnalyses owner; // of a top level cluster
         private String        tags;
 		private String        taxonomyId;
 
@@ -115,16 +120,21 @@ public class AlignmentAnalyses {
         
         public void addTaxus(String taxusName) {
             taxa.add(new Taxus(taxusName));
+            modified();
         }
         
         public void addTaxus(Taxus taxus) {
             taxa.add(taxus);
+            modified();
         }
 
         public boolean removeTaxus(String taxusName) {
         	for (Taxus t: taxa)
-        		if(t.getId().equals(taxusName))
-        			return taxa.remove(t);
+        		if(t.getId().equals(taxusName)) {
+        			taxa.remove(t);
+        			modified();
+        			return true;
+        		}
 
         	return false;
         }
@@ -132,6 +142,18 @@ public class AlignmentAnalyses {
         public void addCluster(Cluster c) {
             clusters.add(c);
             c.setParent(this);
+            modified();
+        }
+
+        /*
+         * Counts a change to the taxa in the analyses that own this cluster.
+         */
+        private void modified() {
+        	Cluster root = this;
+        	while (root.parent != null)
+        		root = root.parent;
+        	if (root.owner != null)
+        		root.owner.modifications.incrementAndGet();
         }
         
         private void setParent(Cluster cluster) {
@@ -274,6 +296,19 @@ public class AlignmentAnalyses {
     	return analyses.values();
     }
 
+    /**
+     * @return a stamp of the files from which the analyses were read (their
+     *   names, sizes and modification times), or null if they were not read
+     *   from files.
+     */
+    public String getSourceStamp() {
+    	return sourceStamp;
+    }
+
+    private static String stamp(File f) {
+    	return f.getAbsolutePath() + ' ' + f.length() + ' ' + f.lastModified() + '\n';
+    }
+
     @SuppressWarnings("unchecked")
 	private void retrieve(File fileName, File workingDir)
             throws IOException, ParameterProblemException, FileFormatException {
@@ -296,14 +331,14 @@ public class AlignmentAnalyses {
             		sequenceType = SequenceAlignment.SEQUENCE_AA;
             }
 
+            File alignmentF = new File(fileName.getParent() + File.separator + alignmentFile);
             alignment
                 = new SequenceAlignment
                     (new BufferedInputStream
-                            (new FileInputStream(
-                                    fileName.getParent()
-                                    + File.separator + alignmentFile)),
+                            (new FileInputStream(alignmentF)),
                      SequenceAlignment.FILETYPE_FASTA,
                      sequenceType);
+            sourceStamp = stamp(fileName) + stamp(alignmentF);
             
             String trimAlignment = alignmentE.getAttributeValue("trim");
             if (trimAlignment != null && trimAlignment.equals("true"))
@@ -319,13 +354,16 @@ public class AlignmentAnalyses {
             		AbstractSequence seq = alignment.getSequences().get(i);
             		Cluster c = new Cluster(seq.getName(), seq.getName(), seq.getDescription(), null, null);
             		c.addTaxus(seq.getName());
+            		c.owner = this;
             		clusters.add(c);
             	}
             } else {
             	List clusterEs = clustersE.getChildren("cluster");
             
             	for (Iterator i = clusterEs.iterator(); i.hasNext();) {
-            		clusters.add(readCluster((Element) i.next()));
+            		Cluster c = readCluster((Element) i.next());
+            		c.owner = this;
+            		clusters.add(c);
             	}
             }
 
@@ -617,11 +655,27 @@ public class AlignmentAnalyses {
     }
 
     public boolean removeCluster(Cluster c){
-    	return clusters.remove(c);
+    	if (!clusters.remove(c))
+    		return false;
+
+    	c.owner = null;
+    	modifications.incrementAndGet();
+    	return true;
     }
 
     public void addCluster(Cluster c) {
     	clusters.add(c);
+    	c.owner = this;
+    	modifications.incrementAndGet();
+    }
+
+    /**
+     * @return the number of changes to the clusters and their taxa since the
+     *   analyses were read, so that indexes of the taxa (see BlastAnalysis) can
+     *   be brought up to date.
+     */
+    public int getModifications() {
+    	return modifications.get();
     }
 
     /**
@@ -633,6 +687,22 @@ public class AlignmentAnalyses {
 
 	public void setAlignment(SequenceAlignment alignment) {
 		this.alignment = alignment;
+		this.profileAligner = null;
+	}
+
+	/**
+	 * Returns the profile aligner for the alignment, which is computed only
+	 * once, or null if the given alignment is not the alignment of these
+	 * analyses.
+	 */
+	public synchronized ProfileAligner getProfileAligner(SequenceAlignment alignment) {
+		if (alignment != this.alignment)
+			return null;
+
+		if (profileAligner == null || profileAligner.getAlignment() != alignment)
+			profileAligner = new ProfileAligner(alignment);
+
+		return profileAligner;
 	}
 
     /**
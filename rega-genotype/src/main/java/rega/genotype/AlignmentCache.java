@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of the profile alignments of query sequences against reference
+ * alignments, which is shared by all analyses of a genotype tool.
+ *
+ * An alignment is stored for the content of the query (its name and a hash of
+ * its residues, so that equal queries in different objects share an entry),
+ * the reference alignment (by identity) and whether it was trimmed.
+ *
+ * The cache is bounded by the total number of residues in the cached
+ * alignments: when that is exceeded, the least recently used alignments are
+ * evicted. The cache may be used by multiple threads.
+ */
+public class AlignmentCache {
+	public static final long DEFAULT_MAX_RESIDUES = 20 * 1000 * 1000;
+
+	private static class Key {
+		private String name;
+		private int length;
+		private long hash;
+		private SequenceAlignment alignment;
+		private boolean trim;
+
+		Key(AbstractSequence sequence, SequenceAlignment alignment, boolean trim) {
+			this.name = sequence.getName();
+			this.length = sequence.getLength();
+			this.hash = contentHash(sequence);
+			this.alignment = alignment;
+			this.trim = trim;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (hash ^ (hash >>> 32)) * 31 + System.identityHashCode(alignment) + (trim ? 1 : 0);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+
+			Key other = (Key) o;
+			return hash == other.hash && length == other.length && trim == other.trim
+				&& alignment == other.alignment && name.equals(other.name);
+		}
+	}
+
+	private static class Entry {
+		SequenceAlignment alignment;
+		long weight;
+
+		Entry(SequenceAlignment alignment) {
+			this.alignment = alignment;
+			for (AbstractSequence s : alignment.getSequences())
+				weight += s.getLength();
+		}
+	}
+
+	private long maxResidues;
+	private long residues;
+	private LinkedHashMap<Key, Entry> entries;
+
+	private long hits, misses, evictions;
+
+	public AlignmentCache() {
+		this(DEFAULT_MAX_RESIDUES);
+	}
+
+	/**
+	 * @param maxResidues the maximum total number of residues in the cached
+	 *   alignments.
+	 */
+	public AlignmentCache(long maxResidues) {
+		this.maxResidues = maxResidues;
+		this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * @return the cached alignment of sequence against alignment, or null.
+	 */
+	public SequenceAlignment get(AbstractSequence sequence, SequenceAlignment alignment, boolean trim) {
+		Key key = new Key(sequence, alignment, trim);
+
+		synchronized (this) {
+			Entry e = entries.get(key);
+			if (e != null) {
+				++hits;
+				return e.alignment;
+			} else {
+				++misses;
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Stores the alignment of sequence against alignment, evicting the least
+	 * recently used alignments if the cache becomes too large.
+	 */
+	public void put(AbstractSequence sequence, SequenceAlignment alignment, boolean trim,
+			SequenceAlignment result) {
+		Key key = new Key(sequence, alignment, trim);
+		Entry e = new Entry(result);
+
+		synchronized (this) {
+			Entry old = entries.put(key, e);
+			if (old != null)
+				residues -= old.weight;
+			residues += e.weight;
+
+			for (Iterator<Map.Entry<Key, Entry>> i = entries.entrySet().iterator();
+					residues > maxResidues && i.hasNext();) {
+				Entry eldest = i.next().getValue();
+				if (eldest == e)
+					break;
+				residues -= eldest.weight;
+				i.remove();
+				++evictions;
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		residues = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getResidues() {
+		return residues;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "alignment cache: " + entries.size() + " alignments (" + residues + " residues), "
+			+ hits + " hits, " + misses + " misses, " + evictions + " evictions";
+	}
+
+	/*
+	 * A 64-bit FNV-1a hash of the residues.
+	 */
+	private static long contentHash(AbstractSequence sequence) {
+		final int length = sequence.getLength();
+		char[] buf = new char[Math.min(length, 4096)];
+
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < length; i += buf.length) {
+			final int n = Math.min(buf.length, length - i);
+			sequence.getChars(i, i + n, buf, 0);
+			for (int k = 0; k < n; ++k) {
+				hash ^= buf[k];
+				hash *= 0x100000001b3L;
+			}
+		}
+
+		return hash;
+	}
+}
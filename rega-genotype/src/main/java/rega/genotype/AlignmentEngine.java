@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import rega.genotype.config.Config.ToolConfig;
+import rega.genotype.config.ToolManifest;
+import rega.genotype.singletons.Settings;
+
+/**
+ * An engine that computes pairwise and profile alignments.
+ *
+ * The engine for profile alignments is configured in the general
+ * configuration (alignmentEngine) and may be overridden in the manifest of a
+ * tool. The engine for pairwise alignments is configured separately
+ * (pairAligner). The available engines are:
+ *  - clustalw: runs clustalw for every alignment (the default)
+ *  - mafft: runs mafft --add --keeplength, for all sequences of a job at once
+ *  - java: the in-process {@link PairwiseAligner} and {@link ProfileAligner},
+ *    whose scores differ from those of clustalw
+ *
+ * A genotype tool creates its own engine, which may keep state (such as
+ * profiles or batch results) for the alignments of the tool.
+ */
+public abstract class AlignmentEngine {
+	public static final String CLUSTALW = "clustalw";
+	public static final String MAFFT = "mafft";
+	public static final String JAVA = "java";
+
+	/**
+	 * @return a new engine with the given name.
+	 */
+	public static AlignmentEngine create(String name) {
+		if (MAFFT.equals(name))
+			return new MafftAlignmentEngine();
+		else if (JAVA.equals(name))
+			return new JavaAlignmentEngine();
+		else {
+			if (name != null && !CLUSTALW.equals(name))
+				System.err.println("Unknown alignment engine: " + name + ", using " + CLUSTALW);
+			return new ClustalWAlignmentEngine();
+		}
+	}
+
+	/**
+	 * @return the name of the engine for profile alignments of a tool: the
+	 *   engine in the tool manifest, or else the engine in the general
+	 *   configuration.
+	 */
+	public static String getConfiguredName(ToolConfig toolConfig) {
+		ToolManifest manifest = toolConfig != null ? toolConfig.getToolMenifest() : null;
+		if (manifest != null && manifest.getAlignmentEngine() != null)
+			return manifest.getAlignmentEngine();
+
+		Settings settings = Settings.getInstance();
+		if (settings != null && settings.getConfig() != null && settings.getAlignmentEngine() != null)
+			return settings.getAlignmentEngine();
+		else
+			return CLUSTALW;
+	}
+
+	/**
+	 * @return the name of the engine for pairwise alignments.
+	 */
+	public static String getConfiguredPairwiseName() {
+		Settings settings = Settings.getInstance();
+		if (settings != null && settings.getConfig() != null && settings.getPairAligner() != null)
+			return settings.getPairAligner();
+		else
+			return CLUSTALW;
+	}
+
+	/**
+	 * @return whether the engine with the given name aligns sequences in
+	 *   batches (see {@link #setBatch(List)}).
+	 */
+	public static boolean supportsBatch(String name) {
+		return MAFFT.equals(name);
+	}
+
+	public abstract String getName();
+
+	/**
+	 * Computes a pairwise alignment.
+	 *
+	 * @return the alignment of s1 and s2 (in that order), with the alignment
+	 *   score set.
+	 */
+	public abstract SequenceAlignment pairAlign(AbstractSequence s1, AbstractSequence s2,
+			File workingDir, double gapOpenPenalty, double gapExtensionPenalty) throws AlignmentException;
+
+	/**
+	 * Computes a profile alignment.
+	 *
+	 * @param trimAlignment whether to limit the alignment to the region that
+	 *   is covered by the sequence.
+	 * @return the alignment of the sequences of the alignment followed by the
+	 *   sequence.
+	 */
+	public abstract SequenceAlignment profileAlign(AbstractSequence sequence, SequenceAlignment alignment,
+			boolean trimAlignment, File workingDir) throws AlignmentException;
+
+	/**
+	 * Computes a profile alignment against an alignment of analyses, see
+	 * profileAlign(). Engines that precompute something for an alignment may
+	 * keep it with the analyses.
+	 *
+	 * @param owner the analyses, which may be null.
+	 */
+	public SequenceAlignment profileAlign(AbstractSequence sequence, SequenceAlignment alignment,
+			AlignmentAnalyses owner, boolean trimAlignment, File workingDir) throws AlignmentException {
+		return profileAlign(sequence, alignment, trimAlignment, workingDir);
+	}
+
+	/**
+	 * Computes the profile alignments of several sequences.
+	 *
+	 * @return the profile alignment of every sequence, in the same order.
+	 */
+	public List<SequenceAlignment> profileAlign(List<AbstractSequence> sequences, SequenceAlignment alignment,
+			boolean trimAlignment, File workingDir) throws AlignmentException {
+		List<SequenceAlignment> result = new ArrayList<SequenceAlignment>();
+		for (AbstractSequence s : sequences)
+			result.add(profileAlign(s, alignment, trimAlignment, workingDir));
+
+		return result;
+	}
+
+	/**
+	 * @return whether this engine aligns sequences in batches.
+	 */
+	public boolean supportsBatch() {
+		return supportsBatch(getName());
+	}
+
+	/**
+	 * Sets the sequences of the current job. An engine that supports batches
+	 * aligns all of these in one go, the first time that one of them is
+	 * aligned against an alignment.
+	 */
+	public void setBatch(List<AbstractSequence> sequences) {
+	}
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The support values of the bipartitions (splits) of a set of taxa, as
+ * reported in the bootstrap or consensus table of paup or mrbayes.
+ *
+ * A bipartition is a set of taxa, stored as a bit set in a long[] of
+ * {@link #words()} words. A set and its complement are the same bipartition:
+ * a bipartition is stored in its canonical form, which does not contain the
+ * first taxon, so that it is found with a single lookup.
+ *
+ * The bipartitions are kept in an open addressing hash table, with the keys
+ * stored consecutively in one long[].
+ */
+public class BipartitionTable {
+	private int taxa;
+	private int words;
+	private long lastWordMask;
+
+	private int size = 0;
+	private long[] keys;
+	private float[] values;
+	private boolean[] used;
+
+	/**
+	 * @param taxa the number of taxa
+	 */
+	public BipartitionTable(int taxa) {
+		this.taxa = taxa;
+		this.words = Math.max(1, (taxa + 63) / 64);
+		this.lastWordMask = taxa % 64 == 0 ? -1L : (1L << (taxa % 64)) - 1;
+		allocate(16);
+	}
+
+	/**
+	 * @return the number of taxa.
+	 */
+	public int getTaxa() {
+		return taxa;
+	}
+
+	/**
+	 * @return the number of bipartitions.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of words of a set of taxa.
+	 */
+	public int words() {
+		return words;
+	}
+
+	/**
+	 * @return an empty set of taxa.
+	 */
+	public long[] newSet() {
+		return new long[words];
+	}
+
+	public static void add(long[] set, int taxon) {
+		set[taxon >>> 6] |= 1L << taxon;
+	}
+
+	public static boolean contains(long[] set, int taxon) {
+		return (set[taxon >>> 6] & (1L << taxon)) != 0;
+	}
+
+	/**
+	 * Sets the support of a bipartition.
+	 *
+	 * @param set one side of the bipartition
+	 */
+	public void put(long[] set, float support) {
+		if ((size + 1) * 2 > used.length)
+			rehash(used.length * 2);
+
+		long[] key = canonical(set);
+		int slot = find(key, 0);
+		if (!used[slot]) {
+			used[slot] = true;
+			System.arraycopy(key, 0, keys, slot * words, words);
+			++size;
+		}
+		values[slot] = support;
+	}
+
+	/**
+	 * @return the support of a bipartition, or 0 if it is not in the table.
+	 *
+	 * @param set one side of the bipartition
+	 */
+	public float get(long[] set) {
+		int slot = find(canonical(set), 0);
+		return used[slot] ? values[slot] : 0;
+	}
+
+	/**
+	 * Adds the supports of the bipartitions of another table, of the same
+	 * taxa, to the supports in this table.
+	 */
+	public void merge(BipartitionTable other) {
+		if (other.taxa != taxa)
+			throw new IllegalArgumentException("Cannot merge bipartitions of " + other.taxa + " and " + taxa + " taxa");
+
+		for (int i = 0; i < other.used.length; ++i) {
+			if (!other.used[i])
+				continue;
+
+			if ((size + 1) * 2 > used.length)
+				rehash(used.length * 2);
+
+			int slot = find(other.keys, i * words);
+			if (!used[slot]) {
+				used[slot] = true;
+				System.arraycopy(other.keys, i * words, keys, slot * words, words);
+				values[slot] = 0;
+				++size;
+			}
+			values[slot] += other.values[i];
+		}
+	}
+
+	/**
+	 * Multiplies all supports with a factor.
+	 */
+	public void scale(float factor) {
+		for (int i = 0; i < used.length; ++i)
+			if (used[i])
+				values[i] *= factor;
+	}
+
+	/**
+	 * Writes the bipartitions as a table in the format of paup: a row of '*'
+	 * and '.' for every bipartition, followed by its support.
+	 */
+	public void write(PrintStream out) {
+		StringBuffer row = new StringBuffer();
+		for (int slot = 0; slot < used.length; ++slot) {
+			if (!used[slot])
+				continue;
+
+			row.setLength(0);
+			for (int t = 0; t < taxa; ++t)
+				row.append((keys[slot * words + (t >>> 6)] & (1L << t)) != 0 ? '*' : '.');
+			out.println(row + "  " + values[slot]);
+		}
+	}
+
+	/**
+	 * Returns the majority-rule consensus tree of the bipartitions, with the
+	 * support in %: the bipartitions with a support of more than 50, labelled
+	 * with their support, in Newick format and rooted at the first taxon.
+	 *
+	 * These bipartitions are compatible: their canonical sides (which do not
+	 * contain the first taxon) are nested or disjoint, and are the clades.
+	 *
+	 * @param labels the (Newick) labels of the taxa
+	 */
+	public String getConsensusTree(String[] labels) {
+		List<Integer> clades = new ArrayList<Integer>();
+		for (int slot = 0; slot < used.length; ++slot) {
+			if (!used[slot] || values[slot] <= 50)
+				continue;
+
+			int count = count(keys, slot * words);
+			if (count > 1 && count < taxa - 1)
+				clades.add(slot);
+		}
+
+		/*
+		 * Larger clades first, so that a clade follows the clades it is
+		 * nested in.
+		 */
+		Collections.sort(clades, new Comparator<Integer>() {
+			public int compare(Integer s1, Integer s2) {
+				return count(keys, s2 * words) - count(keys, s1 * words);
+			}
+		});
+
+		long[] all = newSet();
+		for (int t = 0; t < taxa; ++t)
+			add(all, t);
+
+		StringBuffer result = new StringBuffer();
+		writeClade(result, all, 0, clades, labels);
+		return result.append(';').toString();
+	}
+
+	/*
+	 * Writes a clade: its largest nested clades (which follow it in clades)
+	 * and the remaining taxa.
+	 */
+	private void writeClade(StringBuffer out, long[] clade, int from, List<Integer> clades, String[] labels) {
+		long[] rest = clade.clone();
+		out.append('(');
+		boolean first = true;
+		for (int i = from; i < clades.size(); ++i) {
+			int offset = clades.get(i) * words;
+			if (!isSubset(keys, offset, rest))
+				continue;
+
+			long[] child = new long[words];
+			System.arraycopy(keys, offset, child, 0, words);
+			for (int w = 0; w < words; ++w)
+				rest[w] &= ~child[w];
+
+			if (!first)
+				out.append(',');
+			first = false;
+			writeClade(out, child, i + 1, clades, labels);
+			out.append(Math.round(values[clades.get(i)]));
+		}
+
+		for (int t = 0; t < taxa; ++t)
+			if (contains(rest, t)) {
+				if (!first)
+					out.append(',');
+				first = false;
+				out.append(labels[t]);
+			}
+		out.append(')');
+	}
+
+	private int count(long[] set, int offset) {
+		int result = 0;
+		for (int w = 0; w < words; ++w)
+			result += Long.bitCount(set[offset + w]);
+		return result;
+	}
+
+	private boolean isSubset(long[] set, int offset, long[] of) {
+		for (int w = 0; w < words; ++w)
+			if ((set[offset + w] & ~of[w]) != 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Returns the summed support of the bipartitions that split the query
+	 * taxa together with a part of a cluster from the rest of the cluster:
+	 * the bipartitions query + S, for every non-empty S that is a proper
+	 * subset of the cluster.
+	 *
+	 * Instead of looking up every subset of the cluster, both sides of every
+	 * bipartition in the table are tested.
+	 */
+	public float getInnerSupport(long[] query, long[] cluster) {
+		long[] members = new long[words];
+		for (int w = 0; w < words; ++w)
+			members[w] = cluster[w] & ~query[w];
+
+		long[] complement = new long[words];
+		float result = 0;
+		for (int slot = 0; slot < used.length; ++slot) {
+			if (!used[slot])
+				continue;
+
+			int offset = slot * words;
+			for (int w = 0; w < words; ++w)
+				complement[w] = ~keys[offset + w];
+			complement[words - 1] &= lastWordMask;
+
+			if (isInner(keys, offset, query, members))
+				result += values[slot];
+			if (isInner(complement, 0, query, members))
+				result += values[slot];
+		}
+
+		return result;
+	}
+
+	/*
+	 * Whether side = query + S, with S a non-empty proper subset of members.
+	 */
+	private boolean isInner(long[] side, int offset, long[] query, long[] members) {
+		boolean empty = true, all = true;
+		for (int w = 0; w < words; ++w) {
+			long s = side[offset + w];
+			if ((s & query[w]) != query[w])
+				return false;
+
+			long rest = s & ~query[w];
+			if ((rest & ~members[w]) != 0)
+				return false;
+
+			if (rest != 0)
+				empty = false;
+			if (rest != members[w])
+				all = false;
+		}
+
+		return !empty && !all;
+	}
+
+	/*
+	 * Returns the set, or its complement if the set contains the first taxon.
+	 */
+	private long[] canonical(long[] set) {
+		long[] result = new long[words];
+		if ((set[0] & 1) == 0)
+			System.arraycopy(set, 0, result, 0, words);
+		else {
+			for (int w = 0; w < words; ++w)
+				result[w] = ~set[w];
+			result[words - 1] &= lastWordMask;
+		}
+
+		return result;
+	}
+
+	/*
+	 * Returns the slot of a key, or the empty slot where it is to be stored.
+	 */
+	private int find(long[] key, int offset) {
+		long h = 0;
+		for (int w = 0; w < words; ++w)
+			h = (h ^ key[offset + w]) * 0x9E3779B97F4A7C15L;
+
+		int mask = used.length - 1;
+		int slot = (int) (h ^ (h >>> 32)) & mask;
+		for (;;) {
+			if (!used[slot] || equals(keys, slot * words, key, offset))
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private boolean equals(long[] a, int aOffset, long[] b, int bOffset) {
+		for (int w = 0; w < words; ++w)
+			if (a[aOffset + w] != b[bOffset + w])
+				return false;
+		return true;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity * words];
+		values = new float[capacity];
+		used = new boolean[capacity];
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		float[] oldValues = values;
+		boolean[] oldUsed = used;
+
+		allocate(capacity);
+		for (int i = 0; i < oldUsed.length; ++i)
+			if (oldUsed[i]) {
+				int slot = find(oldKeys, i * words);
+				used[slot] = true;
+				System.arraycopy(oldKeys, i * words, keys, slot * words, words);
+				values[slot] = oldValues[i];
+			}
+	}
+}
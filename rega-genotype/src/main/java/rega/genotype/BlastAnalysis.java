@@ -5,12 +5,11 @@
  */
 package rega.genotype;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -21,6 +20,8 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -28,6 +29,7 @@ import java.util.TreeSet;
 
 import rega.genotype.AlignmentAnalyses.Cluster;
 import rega.genotype.singletons.Settings;
+import rega.genotype.utils.ExternalProcess;
 import rega.genotype.utils.StreamReaderRuntime;
 
 /**
@@ -169,6 +171,7 @@ public class BlastAnalysis extends AbstractAnalysis {
     }
     
     private List<Cluster> clusters;
+    private volatile TaxusIndex taxusIndex;
     private Double absCutoff;
     private Double absMaxEValue;
     private Double relativeCutoff;
@@ -180,6 +183,46 @@ public class BlastAnalysis extends AbstractAnalysis {
     private String blastOptions;
     private Map<String, ReferenceTaxus> referenceTaxa;
     private String detailsOptions;
+    private File db; // the formatted database, see formatDB()
+    private String dbFingerprint; // the fingerprint of the database in the BlastDbCache, or null
+
+    /*
+     * The sequences of the current job (and their index), those that were
+     * already blasted in a batch, the results of those that were not yet
+     * analyzed, and the number of sequences that were analyzed, see
+     * blastBatch().
+     */
+    private List<AbstractSequence> batch;
+    private Map<String, Integer> batchIndex = new HashMap<String, Integer>();
+    private Set<String> batched = new HashSet<String>();
+    private Map<String, Result> batchResults = new HashMap<String, Result>();
+    private int batchRequested;
+
+    /*
+     * The k-mer prefilter, see setPrefilter(), for the sequences of the
+     * database that was formatted. The prefilters of the most recently used
+     * databases are kept, by the fingerprint of the database (see
+     * BlastDbCache) and the clusters of its sequences.
+     */
+    private static class Prefilter {
+    	KmerClassifier classifier;
+    	String[] references; // the names of the references of the classifier
+    	long dbLength;       // the total length of the references
+    }
+
+    private static final int MAX_PREFILTERS = 8;
+    private static Map<String, Prefilter> prefilters
+    	= new LinkedHashMap<String, Prefilter>(16, 0.75f, true) {
+    		private static final long serialVersionUID = 1L;
+
+    		@Override
+    		protected boolean removeEldestEntry(Map.Entry<String, Prefilter> eldest) {
+    			return size() > MAX_PREFILTERS;
+    		}
+    	};
+
+    private boolean prefilterEnabled = false;
+    private Prefilter prefilter;
 
 	/**
 	 * A result from a blast analysis.
@@ -203,6 +246,7 @@ public class BlastAnalysis extends AbstractAnalysis {
         private ReferenceTaxus refseq;
 		private boolean reverseComplement;
 		private String detailsFile;
+		private boolean prefiltered;
 
         public Result(AbstractSequence sequence, Set<Cluster> bestClusters, float absScore, float relativeScore,
         		float absSimilarity, float relativeSimilarity,
@@ -247,6 +291,8 @@ public class BlastAnalysis extends AbstractAnalysis {
             }
 
             tracer.add("identity", String.valueOf((float)(matchLength - matchDiffs)/matchLength));
+            if (prefiltered)
+            	tracer.add("prefiltered", "true");
 
             if (!showMultiple) {
                 writeCluster(tracer, getCluster());
@@ -400,6 +446,19 @@ public class BlastAnalysis extends AbstractAnalysis {
 			this.detailsFile = detailsFile;
 		}
 
+		/**
+		 * @return whether the cluster was assigned by the k-mer prefilter
+		 *   instead of blast. Then the scores are not set, and the identity
+		 *   is estimated.
+		 */
+		public boolean isPrefiltered() {
+			return prefiltered;
+		}
+
+		public void setPrefiltered(boolean prefiltered) {
+			this.prefiltered = prefiltered;
+		}
+
 		public float getAbsScore() {
 			return absScore;
 		}
@@ -453,6 +512,45 @@ public class BlastAnalysis extends AbstractAnalysis {
         this.blastOptions = blastOptions != null ? blastOptions : "";
         this.detailsOptions = detailsOptions;
         this.referenceTaxa = new HashMap<String, ReferenceTaxus>();
+        this.taxusIndex = new TaxusIndex(clusters, owner.getModifications());
+	}
+
+	/*
+	 * An immutable index of the clusters of the analysis by taxus, for the
+	 * clusters as they were after a number of modifications of the analyses.
+	 */
+	private static class TaxusIndex {
+		final int modifications;
+		final Map<String, Cluster> clusters;
+
+		TaxusIndex(List<Cluster> clusters, int modifications) {
+			this.modifications = modifications;
+
+			Map<String, Cluster> index = new LinkedHashMap<String, Cluster>();
+			for (Cluster c : clusters)
+				for (String taxus : c.getTaxaIds())
+					if (!index.containsKey(taxus))
+						index.put(taxus, c);
+
+			this.clusters = Collections.unmodifiableMap(index);
+		}
+	}
+
+	/*
+	 * Returns for every taxus the first cluster of the analysis that contains
+	 * it (directly or in a sub cluster), in the order of the taxa in the
+	 * clusters. The index is rebuilt when clusters have been modified (in the
+	 * admin editors).
+	 */
+	private Map<String, Cluster> getTaxusIndex() {
+		TaxusIndex index = taxusIndex;
+		int modifications = owner.getModifications();
+		if (index.modifications != modifications) {
+			index = new TaxusIndex(clusters, modifications);
+			taxusIndex = index;
+		}
+
+		return index.clusters;
 	}
 
 	private void cleanOldDB() {
@@ -472,14 +570,173 @@ public class BlastAnalysis extends AbstractAnalysis {
         }
 	}
 	
-	@SuppressWarnings("unused")
+	/**
+	 * Formats the blast database with the reference sequences of the clusters.
+	 *
+	 * The database is built once, in the {@link BlastDbCache} in the base
+	 * directory, and used read-only by all jobs. Without a base directory, it
+	 * is built in the working directory.
+	 */
 	public boolean formatDB(SequenceAlignment analysis) throws ApplicationException {
-        cleanOldDB();
+        // the same as analysis.selectSequencesFromClusters(clusters)
+        SequenceAlignment analysisDb = analysis.selectSequences(new ArrayList<String>(getTaxusIndex().keySet()));
+
+        BlastDbCache cache = BlastDbCache.getInstance();
+        String fingerprint = null;
+        if (cache != null || (prefilterEnabled && !isAa()))
+        	fingerprint = BlastDbCache.fingerprint(owner.getSourceStamp(),
+        			BlastEngine.getConfigured().formatDbCommand(new File(BlastDbCache.DB_FILE), isAa()), analysisDb);
+
+        if (prefilterEnabled && !isAa())
+        	prefilter = getPrefilter(analysisDb, fingerprint);
+
+        if (cache == null) {
+        	cleanOldDB();
+        	db = getTempFile("db.fasta");
+        	dbFingerprint = null;
+        	formatDB(analysisDb, db, workingDir);
+        	return true;
+        }
 
-        SequenceAlignment analysisDb = analysis.selectSequencesFromClusters(clusters);
-	
+        final SequenceAlignment references = analysisDb;
+        dbFingerprint = fingerprint;
+        db = cache.get(dbFingerprint, new BlastDbCache.Builder() {
+        	public void build(File dir) throws ApplicationException {
+        		formatDB(references, new File(dir, BlastDbCache.DB_FILE), dir);
+        	}
+        });
+		return true;
+	}
+
+	/**
+	 * Enables or disables the k-mer prefilter. When enabled, a sequence that
+	 * is classified unambiguously by a {@link KmerClassifier} of the reference
+	 * sequences is assigned to that cluster without running blast, if the
+	 * estimated blast result (see prefilter()) passes the cutoffs. The index
+	 * is built (or taken from the cache) by formatDB().
+	 *
+	 * The prefilter is not used for amino acid references, with exact
+	 * matching (which needs the blast similarity), nor with relative cutoffs
+	 * (which need the hits of the other clusters).
+	 */
+	public void setPrefilter(boolean enabled) {
+		prefilterEnabled = enabled;
+		if (!enabled)
+			prefilter = null;
+	}
+
+	/*
+	 * Returns the prefilter for the references, from the cache or newly built.
+	 * The labels of the references (their clusters) are part of the key, since
+	 * the clusters may change without changing the database.
+	 */
+	private Prefilter getPrefilter(SequenceAlignment analysisDb, String fingerprint) {
+		List<AbstractSequence> references = new ArrayList<AbstractSequence>();
+		List<Integer> labels = new ArrayList<Integer>();
+		StringBuffer key = new StringBuffer(fingerprint);
+		for (AbstractSequence s : analysisDb.getSequences()) {
+			int label = clusters.indexOf(findCluster(s.getName()));
+			if (label >= 0) {
+				references.add(s);
+				labels.add(label);
+				key.append(' ').append(clusters.get(label).getId());
+			}
+		}
+
+		synchronized (prefilters) {
+			Prefilter result = prefilters.get(key.toString());
+			if (result != null)
+				return result;
+		}
+
+		long start = System.currentTimeMillis();
+
+		int[] l = new int[labels.size()];
+		for (int i = 0; i < l.length; ++i)
+			l[i] = labels.get(i);
+
+		Prefilter result = new Prefilter();
+		result.classifier = new KmerClassifier(references, l, clusters.size());
+		result.references = new String[references.size()];
+		for (int i = 0; i < references.size(); ++i) {
+			result.references[i] = references.get(i).getName();
+			result.dbLength += references.get(i).getLength();
+		}
+
+		System.err.println("Built k-mer prefilter: " + result.classifier.size() + " minimizers (took "
+				+ (System.currentTimeMillis() - start) + "ms)");
+
+		synchronized (prefilters) {
+			prefilters.put(key.toString(), result);
+		}
+
+		return result;
+	}
+
+	/*
+	 * Returns the result of the k-mer prefilter, or null if the sequence
+	 * needs to be blasted.
+	 *
+	 * The blast scores of the result are estimated from the identity that the
+	 * prefilter estimates, as an ungapped alignment of the whole sequence,
+	 * with the scoring of blastn (see estimateBitScore()). The sequence is
+	 * blasted when this result does not pass the cutoffs.
+	 */
+	private Result prefilter(AbstractSequence sequence) {
+		if (prefilter == null || exactMatching || isAa()
+				|| relativeCutoff != null || relativeMaxEValue != null || relativeSimilarityMinPercent != null)
+			return null;
+
+		KmerClassifier.Classification c = prefilter.classifier.classify(sequence);
+		if (c == null)
+			return null;
+
+		String taxus = prefilter.references[c.getReference()];
+		ReferenceTaxus refseq = referenceTaxa.get(taxus);
+		if (refseq == null)
+			refseq = new ReferenceTaxus(taxus, 1);
+
+		Set<Cluster> bestClusters = new HashSet<Cluster>();
+		bestClusters.add(clusters.get(c.getLabel()));
+
+		int length = sequence.getLength();
+		int diffs = Math.round(length * (1 - c.getIdentity()));
+		float similarity = calcSimilarity(length, diffs);
+
+		float score = estimateBitScore(length, diffs);
+		double eValue = (double) length * prefilter.dbLength * Math.pow(2, -score);
+		if (absMaxEValue != null && eValue > absMaxEValue)
+			score = -1;
+
+		Result result = createResult(sequence, bestClusters, refseq, score, score, similarity, similarity,
+				length, diffs, -1, -1, c.isReverseComplement());
+		result.setPrefiltered(true);
+
+		if (!result.haveSupport())
+			return null;
+
+		System.err.println("Prefiltered " + sequence.getName() + ": " + clusters.get(c.getLabel()).getId()
+				+ " (coverage " + c.getCoverage() + ")");
+
+		return result;
+	}
+
+	/**
+	 * @return an estimate of the blastn bit score of an ungapped alignment of
+	 *   the given length with the given number of mismatches, with the scores
+	 *   (1/-3) and Karlin-Altschul parameters of blastall. With the scores of
+	 *   megablast (1/-2) the bit score is higher, so the estimate is
+	 *   conservative.
+	 */
+	static float estimateBitScore(int length, int mismatches) {
+		final double lambda = 1.374, k = 0.711;
+		double raw = (length - mismatches) - 3.0 * mismatches;
+		return (float) Math.max(0, (lambda * raw - Math.log(k)) / Math.log(2));
+	}
+
+	@SuppressWarnings("unused")
+	private void formatDB(SequenceAlignment analysisDb, File db, File dir) throws ApplicationException {
 		Process formatdb = null;
-		File db = getTempFile("db.fasta");
 		FileOutputStream dbFile;
 		try {
 			dbFile = new FileOutputStream(db);
@@ -489,12 +746,11 @@ public class BlastAnalysis extends AbstractAnalysis {
 			//fd.sync();
 			dbFile.close();
 
-			String blastPath = Settings.getInstance().getBlastPathStr();
-			String cmd = blastPath + formatDbCommand + " " + formatDbOptions() + " -o T -i " + db.getAbsolutePath();
+			String cmd = BlastEngine.getConfigured().formatDbCommand(db, isAa());
 			System.err.println(cmd);
 
 
-			formatdb = StreamReaderRuntime.exec(cmd, null, workingDir);
+			formatdb = StreamReaderRuntime.exec(cmd, null, dir);
 			int exitResult = formatdb.waitFor();
 
 			if (exitResult != 0) {
@@ -513,80 +769,61 @@ public class BlastAnalysis extends AbstractAnalysis {
                 formatdb.destroy();
 			throw new ApplicationException("formatdb failed error: " + e.getMessage(), e);
 		}
+	}
 
-		return true;
+	/**
+	 * @return the formatted database.
+	 */
+	File getDb() {
+		return db != null ? db : getTempFile("db.fasta");
 	}
 
 	private Result compute(AbstractSequence sequence)
 			throws ApplicationException {
         
-        Process blast = null;
-		String blastPath = Settings.getInstance().getBlastPathStr();
+        ExternalProcess blast = null;
 
         try {
             if (sequence.getLength() != 0) {
-                File query = getTempFile("query.fasta");
-                FileOutputStream queryFile = new FileOutputStream(query);
-                //FileDescriptor fd2 = dbFile.getFD();
-                sequence.writeFastaOutput(queryFile);
-                //queryFile.flush();
-                //fd2.sync();
-                queryFile.close();
-
-        		File db = getTempFile("db.fasta");
-        		String cmd = blastPath + blastCommand + blastProgramOption() + blastOptions
-                	+ " -i " + query.getAbsolutePath()
-                    + " -m 8 -d " + db.getAbsolutePath();
-                System.err.println(cmd);
-
-                blast = Runtime.getRuntime().exec(cmd, null, workingDir);
-                InputStream inputStream = blast.getInputStream();
-
-                final LineNumberReader reader
-                    = new LineNumberReader(new InputStreamReader(inputStream));
-
-                BlastResults br = new BlastResults() {
-					public String[] next() throws ApplicationException {
-						String s = null;
-						try {
-							s = reader.readLine();
-						} catch (IOException ioe) {
-							throw new ApplicationException("Error: I/O Error while invoking blast: " + ioe.getMessage());
-						}
-		    			if (s == null)
-		    				return null;
-		    			System.err.println(s);
-		
-		    			String[] values = s.split("\t");
-		    			if (values.length != 12)
-		    				throw new ApplicationException("blast result format error");
-		    			return values;
-					}
-                };
-                
-                boolean aa = owner.getAlignment().getSequenceType() == SequenceAlignment.SEQUENCE_AA;
-                Result result = parseBlastResults(br, this, aa, sequence);
-                
-                int exitResult = blast.waitFor();
-
-                blast.getErrorStream().close();
-                blast.getInputStream().close();
-                blast.getOutputStream().close();
-
-                if (exitResult != 0) {
-                    throw new ApplicationException("blast exited with error: " + exitResult);
-                }
-
-                String detailsFile = null;
-                if (detailsOptions != null)
-                	detailsFile = collectDetails(query, db);                
-
-                query.delete();
+                /*
+                 * The query is written to the standard input of blast
+                 */
+                ByteArrayOutputStream query = new ByteArrayOutputStream();
+                sequence.writeFastaOutput(query);
+
+        		File db = getDb();
+
+        		Result result;
+        		String key = batchKey(sequence);
+        		if (blastBatch(sequence, key)) {
+        			/*
+        			 * The result was computed for the sequence of the batch,
+        			 * which the tracer does not know.
+        			 */
+        			result = takeBatchResult(key);
+        			if (result != null)
+        				result.setSequence(sequence);
+        		} else {
+        			result = prefilter(sequence);
+        			if (result == null) {
+        				blast = new ExternalProcess(blastCommand(db), workingDir);
+        				blast.writeInput(query.toByteArray());
+        				BlastHitReader hits = new BlastHitReader(blast.getOutput());
+
+        				boolean aa = owner.getAlignment().getSequenceType() == SequenceAlignment.SEQUENCE_AA;
+        				result = parseBlastResults(hits, this, aa, sequence);
+
+        				int exitResult = blast.waitFor();
+
+        				if (exitResult != 0) {
+        					throw new ApplicationException("blast exited with error: " + exitResult);
+        				}
+        			}
+        		}
 
 				if (result != null) {
-					if (detailsFile != null) {
-						result.setDetailsFile(detailsFile);
-					}
+					if (detailsOptions != null)
+						result.setDetailsFile(recordDetails(query.toByteArray(), db));
 					return result;
 				} else
 					return createResult(sequence, new HashSet<AlignmentAnalyses.Cluster>(), null, 0, 0, 0, 0, 0, 0, 0, 0, false);
@@ -604,15 +841,247 @@ public class BlastAnalysis extends AbstractAnalysis {
                 + e.getMessage());
         }
     }
-    
+
+	private String blastCommand(File db) {
+		String cmd = BlastEngine.getConfigured().blastCommand(db, isAa(), blastOptions);
+		System.err.println(cmd);
+		return cmd;
+	}
+
+	/**
+	 * @return the configured number of sequences of a job that are blasted at
+	 *   once, or 0 if every sequence is blasted separately.
+	 */
+	public static int getBatchSize() {
+		Settings settings = Settings.getInstance();
+		if (settings == null || settings.getConfig() == null)
+			return 0;
+
+		return settings.getBlastBatchSize();
+	}
+
+	private static String batchKey(AbstractSequence sequence) {
+		return sequence.getName() + "\n" + sequence.getSequence();
+	}
+
+	/*
+	 * Makes sure that the result of a sequence of the current job is in
+	 * batchResults: if it is not yet there, the next sequences of the job,
+	 * starting from this one, are blasted in one go. Sequences of which the
+	 * results will be replayed from the ResultCache are skipped.
+	 *
+	 * Not every sequence of a job may reach this analysis (e.g. in a nested
+	 * tool), and so the number of sequences is adapted to the fraction of the
+	 * sequences so far that did, as for MafftAlignmentEngine.batchSize(), up to
+	 * getBatchSize(). Results of sequences that were skipped are dropped.
+	 *
+	 * Returns false if the sequence is not part of the job (or was already
+	 * analyzed), and should be blasted separately.
+	 */
+	private synchronized boolean blastBatch(AbstractSequence sequence, String key) throws ApplicationException {
+		GenotypeTool tool = owner.getGenotypeTool();
+		List<AbstractSequence> jobSequences
+			= tool != null && getBatchSize() > 0 ? tool.getJobSequences() : null;
+
+		if (jobSequences != batch) {
+			batch = jobSequences;
+			batchResults.clear();
+			batchIndex.clear();
+			batched.clear();
+			batchRequested = 0;
+			if (batch != null)
+				for (int i = batch.size() - 1; i >= 0; --i)
+					batchIndex.put(batchKey(batch.get(i)), i);
+		}
+
+		if (batch == null)
+			return false;
+
+		Integer index = batchIndex.get(key);
+		if (index == null)
+			return false;
+
+		for (Iterator<String> i = batchResults.keySet().iterator(); i.hasNext();)
+			if (batchIndex.get(i.next()) < index)
+				i.remove();
+
+		if (batchResults.containsKey(key)) {
+			++batchRequested;
+			return true;
+		}
+
+		if (batched.contains(key))
+			return false;
+
+		++batchRequested;
+		int size = Math.min(getBatchSize(), MafftAlignmentEngine.batchSize(batchRequested, index));
+
+		List<AbstractSequence> queries = new ArrayList<AbstractSequence>();
+		for (int i = index; i < batch.size() && queries.size() < size; ++i) {
+			AbstractSequence s = batch.get(i);
+			String k = batchKey(s);
+			if (s.getLength() != 0 && batchIndex.get(k) == i && !batched.contains(k)
+					&& (i == index || !tool.isResultCached(s))) {
+				batched.add(k);
+				Result r = prefilter(s);
+				if (r != null)
+					batchResults.put(k, r);
+				else
+					queries.add(s);
+			}
+		}
+
+		if (queries.isEmpty())
+			return batchResults.containsKey(key);
+
+		Result[] results = blast(queries);
+		for (int i = 0; i < queries.size(); ++i)
+			batchResults.put(batchKey(queries.get(i)), results[i]);
+
+		return true;
+	}
+
+	/*
+	 * The hits of a blast of several queries: next() returns the hits of the
+	 * current query, nextQuery() moves on to the next query.
+	 */
+	private static class BatchResults implements BlastHits {
+		private BlastHitReader reader;
+		private BlastHit pending; // the next hit, which was already read
+		private String queryId;
+
+		BatchResults(BlastHitReader reader) {
+			this.reader = reader;
+		}
+
+		boolean nextQuery() throws ApplicationException {
+			for (;;) {
+				if (pending == null)
+					pending = reader.next();
+
+				if (pending == null)
+					return false;
+				else if (queryId != null && pending.isQuery(queryId))
+					pending = null;
+				else {
+					queryId = pending.getQueryId();
+					return true;
+				}
+			}
+		}
+
+		public BlastHit next() throws ApplicationException {
+			if (pending == null)
+				pending = reader.next();
+
+			if (pending == null || !pending.isQuery(queryId))
+				return null;
+
+			BlastHit result = pending;
+			pending = null;
+			return result;
+		}
+	}
+
+	private synchronized Result takeBatchResult(String key) {
+		return batchResults.remove(key);
+	}
+
+	/*
+	 * Blasts several sequences in one blast invocation. The queries are
+	 * renamed to their index, and the result lines (which blast writes
+	 * grouped per query) are parsed per query.
+	 *
+	 * Returns the result of every query, in the same order, or null for a
+	 * query without a hit.
+	 */
+	private Result[] blast(List<AbstractSequence> queries) throws ApplicationException {
+		Result[] results = new Result[queries.size()];
+
+		System.err.println("Blasting a batch of " + queries.size() + " sequences");
+		ExternalProcess blast = null;
+		try {
+			ByteArrayOutputStream query = new ByteArrayOutputStream();
+			for (int i = 0; i < queries.size(); ++i)
+				new Sequence(String.valueOf(i), false, "", queries.get(i).getSequence()).writeFastaOutput(query);
+
+			blast = new ExternalProcess(blastCommand(getDb()), workingDir);
+			blast.writeInput(query.toByteArray());
+
+			boolean aa = owner.getAlignment().getSequenceType() == SequenceAlignment.SEQUENCE_AA;
+
+			BatchResults br = new BatchResults(new BlastHitReader(blast.getOutput()));
+			while (br.nextQuery()) {
+				int i;
+				try {
+					i = Integer.parseInt(br.queryId);
+				} catch (NumberFormatException e) {
+					throw new ApplicationException("blast result format error");
+				}
+				if (i < 0 || i >= queries.size() || results[i] != null)
+					throw new ApplicationException("blast result format error");
+
+				results[i] = parseBlastResults(br, this, aa, queries.get(i));
+			}
+
+			int exitResult = blast.waitFor();
+
+			if (exitResult != 0) {
+				throw new ApplicationException("blast exited with error: " + exitResult);
+			}
+
+			return results;
+		} catch (IOException e) {
+			if (blast != null)
+				blast.destroy();
+			throw new ApplicationException("Error: I/O Error while invoking blast: "
+				+ e.getMessage());
+		} catch (InterruptedException e) {
+			if (blast != null)
+				blast.destroy();
+			throw new ApplicationException("Error: I/O Error while invoking blast: "
+				+ e.getMessage());
+		}
+	}
+
+    /**
+     * Blast results as the values of the result lines, see {@link BlastHits}.
+     */
     public interface BlastResults {
     	String [] next() throws ApplicationException;
     }
-	public static Result parseBlastResults(BlastResults results, BlastAnalysis ba, boolean aa, AbstractSequence sequence) throws ApplicationException {
+
+    /**
+     * Blast results as hits.
+     */
+    public interface BlastHits {
+    	/**
+    	 * @return the next hit, or null. The hit may be reused by the next
+    	 *   call.
+    	 */
+    	BlastHit next() throws ApplicationException;
+    }
+
+	public static Result parseBlastResults(final BlastResults results, BlastAnalysis ba, boolean aa, AbstractSequence sequence) throws ApplicationException {
+		return parseBlastResults(new BlastHits() {
+			BlastHit hit = new BlastHit();
+
+			public BlastHit next() throws ApplicationException {
+				String[] values = results.next();
+				if (values == null)
+					return null;
+
+				hit.set(values);
+				return hit;
+			}
+		}, ba, aa, sequence);
+	}
+
+	public static Result parseBlastResults(BlastHits results, BlastAnalysis ba, boolean aa, AbstractSequence sequence) throws ApplicationException {
 		int seqLength = sequence.getLength();
 		int queryFactor = aa ? 3 : 1;
 
-		String[] best = null, secondBest = null;
+		BlastHit best = null, secondBest = null;
 		int start = Integer.MAX_VALUE;
 		int end = -1;
 
@@ -620,20 +1089,26 @@ public class BlastAnalysis extends AbstractAnalysis {
 
 		ReferenceTaxus refseq = null;
 		Set<Cluster> bestClusters = new HashSet<Cluster>();
+		Map<String, Cluster> taxusClusters = ba.getTaxusIndex();
+		boolean relative = ba.relativeCutoff != null || ba.relativeMaxEValue != null
+			|| ba.relativeSimilarityMinPercent != null;
 
 		for (;;) {
-			String [] values = results.next();
-			if (values == null)
+			BlastHit hit = results.next();
+			if (hit == null)
 				break;
 
-			if (best == null)
-				best = values;
+			boolean first = best == null;
+			if (first)
+				best = hit.copy();
+
+			String subject = hit.getSubjectId();
+			Cluster cluster = taxusClusters.get(subject);
 
-			if (values[BLAST_RESULT_BIT_SCORE_IDX].equals(best[BLAST_RESULT_BIT_SCORE_IDX]))
-				bestClusters.add(ba.findCluster(values[BLAST_RESULT_SUBJECT_ID_IDX]));
+			if (hit.hasBitScore(best))
+				bestClusters.add(cluster);
 
-			ReferenceTaxus referenceTaxus = ba.referenceTaxa
-					.get(values[BLAST_RESULT_SUBJECT_ID_IDX]);
+			ReferenceTaxus referenceTaxus = ba.referenceTaxa.get(subject);
 
 			/*
 			 * First condition: there are no explicit reference taxa configured
@@ -643,19 +1118,15 @@ public class BlastAnalysis extends AbstractAnalysis {
 			 * higher priority than the current refseq and belongs to the same
 			 * cluster (note priority is smaller number means higher priority)
 			 */
-			if ((ba.referenceTaxa.isEmpty() && values == best)
+			if ((ba.referenceTaxa.isEmpty() && first)
 					|| (referenceTaxus != null
-							&& (ba.findCluster(values[BLAST_RESULT_SUBJECT_ID_IDX]) == bestClusters
-									.iterator().next()) && (refseq == null || referenceTaxus
-							.getPriority() < refseq.getPriority()))) {
+							&& (cluster == bestClusters.iterator().next())
+							&& (refseq == null || referenceTaxus.getPriority() < refseq.getPriority()))) {
 				refseq = referenceTaxus;
-				boolean queryReverseCompliment = Integer.parseInt(values[BLAST_RESULT_Q_END_IDX])
-						- Integer.parseInt(values[BLAST_RESULT_Q_START_IDX]) < 0;
-				boolean refReverseCompliment = Integer.parseInt(values[BLAST_RESULT_S_END_IDX])
-						- Integer.parseInt(values[BLAST_RESULT_S_START_IDX]) < 0;
-				int offsetBegin = Integer.parseInt(values[BLAST_RESULT_Q_START_IDX]);
-				int offsetEnd = seqLength
-						- Integer.parseInt(values[BLAST_RESULT_Q_END_IDX]);
+				boolean queryReverseCompliment = hit.getQueryEnd() - hit.getQueryStart() < 0;
+				boolean refReverseCompliment = hit.getSubjectEnd() - hit.getSubjectStart() < 0;
+				int offsetBegin = hit.getQueryStart();
+				int offsetEnd = seqLength - hit.getQueryEnd();
 				if (queryReverseCompliment) {
 					offsetBegin = seqLength - offsetBegin;
 					offsetEnd = seqLength - offsetEnd;
@@ -668,8 +1139,8 @@ public class BlastAnalysis extends AbstractAnalysis {
 					reverseCompliment = true;
 				}
 
-				start = Integer.parseInt(values[BLAST_RESULT_S_START_IDX]) * queryFactor - offsetBegin;
-				end = Integer.parseInt(values[BLAST_RESULT_S_END_IDX]) * queryFactor + offsetEnd;
+				start = hit.getSubjectStart() * queryFactor - offsetBegin;
+				end = hit.getSubjectEnd() * queryFactor + offsetEnd;
 
 				if (refReverseCompliment) {
 					int tmp = start;
@@ -684,23 +1155,16 @@ public class BlastAnalysis extends AbstractAnalysis {
 				}
 			}
 
-			if ((ba.relativeCutoff != null || ba.relativeMaxEValue != null 
-					|| ba.relativeSimilarityMinPercent != null )
-					&& !bestClusters.isEmpty()) {
-				Cluster c = ba.findCluster(values[BLAST_RESULT_SUBJECT_ID_IDX]);
-				if (!bestClusters.contains(c)) {
-					if (secondBest == null)
-						secondBest = values;
-				}
-			}
+			if (relative && secondBest == null && !bestClusters.isEmpty()
+					&& !bestClusters.contains(cluster))
+				secondBest = hit.copy();
 		}
 
 		if (best != null) {
-			int length = Integer.valueOf(best[BLAST_RESULT_ALINGMENT_LENGTH_IDX]);
-			int diffs = Integer.valueOf(best[BLAST_RESULT_MISMATCHES_IDX]) 
-					+ Integer.valueOf(best[BLAST_RESULT_GAP_IDX]); // #diffs + #gaps
-			float pValue = Float.valueOf(best[BLAST_RESULT_E_VALUE_IDX]);
-			float absScore = Float.valueOf(best[BLAST_RESULT_BIT_SCORE_IDX]);
+			int length = best.getAlignmentLength();
+			int diffs = best.getMismatches() + best.getGaps(); // #diffs + #gaps
+			float pValue = best.getEValue();
+			float absScore = best.getBitScore();
 			float relativeScore = absScore;
 			float similarity = calcSimilarity(length, diffs);
 			float relativeSimilarity = similarity;
@@ -711,16 +1175,15 @@ public class BlastAnalysis extends AbstractAnalysis {
 			if (ba.relativeMaxEValue != null && pValue > ba.relativeMaxEValue)
 				relativeScore = -1;
 			else if (secondBest != null) 
-				relativeScore = relativeScore / Float.valueOf(secondBest[BLAST_RESULT_BIT_SCORE_IDX]);
+				relativeScore = relativeScore / secondBest.getBitScore();
 
 			// similarity
 			if (ba.relativeSimilarityMinPercent != null 
 					&& similarity < ba.relativeSimilarityMinPercent)
 				relativeSimilarity = -1; // relative similarity test faild.
 			else if (secondBest != null) {
-				int secondBestLength = Integer.valueOf(secondBest[BLAST_RESULT_ALINGMENT_LENGTH_IDX]);
-				int secondBestDiffs = Integer.valueOf(secondBest[BLAST_RESULT_MISMATCHES_IDX]) 
-						+ Integer.valueOf(secondBest[BLAST_RESULT_GAP_IDX]); // #diffs + #gaps
+				int secondBestLength = secondBest.getAlignmentLength();
+				int secondBestDiffs = secondBest.getMismatches() + secondBest.getGaps(); // #diffs + #gaps
 
 				float secondBestSimilarity = calcSimilarity(secondBestLength, secondBestDiffs);
 				relativeSimilarity = relativeSimilarity / secondBestSimilarity;
@@ -730,7 +1193,7 @@ public class BlastAnalysis extends AbstractAnalysis {
 				start = -1;
 
 			if (refseq == null)
-				refseq = new ReferenceTaxus(best[BLAST_RESULT_SUBJECT_ID_IDX], 1);
+				refseq = new ReferenceTaxus(best.getSubjectId(), 1);
 
 			Result result = ba.createResult(sequence, bestClusters, refseq,
 					absScore, relativeScore, similarity, relativeSimilarity, length, diffs, start, end, reverseCompliment);
@@ -741,50 +1204,35 @@ public class BlastAnalysis extends AbstractAnalysis {
 		}
 	}
 
-    private String collectDetails(File query, File db) throws IOException, InterruptedException, ApplicationException {
-		String blastPath = Settings.getInstance().getBlastPathStr();
-    	String cmd = blastPath + blastCommand + blastProgramOption() + detailsOptions
-            	+ " -i " + query.getAbsolutePath()
-                + " -T -d " + db.getAbsolutePath();
-        System.err.println(cmd);
-        Process blast = Runtime.getRuntime().exec(cmd, null, workingDir);
-
-        File outputFile = getTempFile("paup.html");
-        copyToFile(outputFile, blast.getInputStream());        
-        int result = blast.waitFor();
-
-        String detailsResource = makeResource(outputFile, "html");
+    /*
+     * Records what is needed to generate the blast report of the query when
+     * it is asked for (see {@link BlastDetails}), and returns the name of the
+     * report. Only a database in the BlastDbCache outlives the job: without
+     * one, the report is generated right away.
+     */
+    private String recordDetails(byte[] query, File db)
+    		throws IOException, InterruptedException, ApplicationException {
+    	if (getTracer() == null)
+    		return null; // blast analysis can be run with no owner.
+
+    	if (dbFingerprint == null) {
+    		File report = getTracer().getResourceFile(BlastDetails.REPORT_SUFFIX.substring(1));
+    		BlastDetails.generate(db, isAa(), detailsOptions, query, report);
+    		return report.getName();
+    	}
 
-        blast.getErrorStream().close();
-        blast.getInputStream().close();
-        blast.getOutputStream().close();
+    	File descriptor;
+    	do {
+    		descriptor = getTracer().getResourceFile(BlastDetails.DESCRIPTOR_SUFFIX.substring(1));
+    	} while (new File(descriptor.getParentFile(), BlastDetails.getReportName(descriptor)).exists());
 
-		if (result != 0) { 
-			throw new ApplicationException("Blast exited with error: " + result);
-		}
-		
-		return detailsResource;
-	}
+    	BlastDetails.record(descriptor, dbFingerprint, isAa(), detailsOptions, query);
 
-	private void copyToFile(File outputFile, InputStream stdout)
-			throws IOException {
-		InputStreamReader isr = new InputStreamReader(stdout);
-        BufferedReader br = new BufferedReader(isr);
-        FileWriter osw = new FileWriter(outputFile);
-        
-        String line = null;
-        while ( (line = br.readLine()) != null)
-        	osw.write(line + '\n');
-        br.close();
-        osw.close();
-	}
+    	return BlastDetails.getReportName(descriptor);
+    }
 
 	private Cluster findCluster(String taxus) {
-        for (int i = 0; i < clusters.size(); ++i)
-            if (clusters.get(i).containsTaxus(taxus))
-            	return clusters.get(i);
-        
-        return null;
+		return getTaxusIndex().get(taxus);
     }
     
     private Result createResult(AbstractSequence sequence, Set<Cluster> bestClusters, ReferenceTaxus refseq,
@@ -994,19 +1442,8 @@ public class BlastAnalysis extends AbstractAnalysis {
 		return (float)(length - diff)/length * 100;
 	}
 
-	private String formatDbOptions() {
-		if (owner.getAlignment() != null && 
-        		owner.getAlignment().getSequenceType() == SequenceAlignment.SEQUENCE_AA) 
-			return "";
-		else
-			return "-p F";
-	}
-
-	private String blastProgramOption() {
-		if (owner.getAlignment() != null && 
-				owner.getAlignment().getSequenceType() == SequenceAlignment.SEQUENCE_AA) 
-			return " -p blastx ";
-		else
-			return " -p blastn ";
+	private boolean isAa() {
+		return owner.getAlignment() != null &&
+			owner.getAlignment().getSequenceType() == SequenceAlignment.SEQUENCE_AA;
 	}
 }
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import rega.genotype.singletons.Settings;
+import rega.genotype.utils.FileUtil;
+
+/**
+ * The formatted blast databases, in a directory that is shared by all jobs.
+ *
+ * A database is addressed by its fingerprint: a SHA-1 hash of the formatdb
+ * command and of the reference sequences (see {@link #key(String, SequenceAlignment)}).
+ * Since hashing all reference sequences for every job is costly, the
+ * fingerprint of references that were read from files is remembered by a
+ * stamp of these files (their names, sizes and modification times), together
+ * with the names and lengths of the references.
+ *
+ * A new database is built in a temporary directory which is then renamed, so
+ * that jobs never see a database that is only partly written. Using a
+ * database marks it as recently used. When a new database makes the total
+ * size exceed the maximum size, the least recently used databases are deleted,
+ * except for those that were used during the last day (which may still be in
+ * use by a job), and those that are pinned by blast details that were not yet
+ * generated (see {@link #pin(String, File)}).
+ */
+public class BlastDbCache {
+	public static final String DB_FILE = "db.fasta";
+
+	private static final String TMP_PREFIX = "tmp-";
+	private static final String PINS_FILE = "pins";
+	private static final long IN_USE_MILLIS = 24L * 60 * 60 * 1000;
+	private static final int MAX_FINGERPRINTS = 64;
+
+	private static BlastDbCache instance = null;
+
+	/*
+	 * The fingerprints of the most recently used references, by their stamp.
+	 */
+	private static Map<String, String> fingerprints
+		= new LinkedHashMap<String, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > MAX_FINGERPRINTS;
+			}
+		};
+
+	/**
+	 * Builds a database in a directory.
+	 */
+	public interface Builder {
+		void build(File dir) throws ApplicationException;
+	}
+
+	private File dir;
+	private long maxSize;
+
+	/**
+	 * @param dir the cache directory
+	 * @param maxSize the maximum size (in bytes)
+	 */
+	public BlastDbCache(File dir, long maxSize) {
+		this.dir = dir;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return the cache in the base directory, or null if there is no base
+	 *   directory.
+	 */
+	public static synchronized BlastDbCache getInstance() {
+		Settings settings = Settings.getInstance();
+		if (settings == null || settings.getConfig() == null || settings.getBaseDir() == null)
+			return null;
+
+		File dir = new File(settings.getBaseDir(), "blast-db");
+		long maxSize = settings.getBlastDbCacheSize() * 1024 * 1024;
+		if (instance == null || !instance.dir.equals(dir) || instance.maxSize != maxSize)
+			instance = new BlastDbCache(dir, maxSize);
+
+		return instance;
+	}
+
+	/**
+	 * @return the fingerprint of a database: a hash of the formatdb command
+	 *   and the reference sequences.
+	 */
+	public static String key(String formatCommand, SequenceAlignment references) throws ApplicationException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			DigestOutputStream out = new DigestOutputStream(new NullOutputStream(), digest);
+			out.write((formatCommand + "\n").getBytes());
+			references.writeFastaOutput(out);
+			out.close();
+
+			StringBuffer result = new StringBuffer();
+			for (byte b : digest.digest()) {
+				result.append(Character.forDigit((b >> 4) & 0xF, 16));
+				result.append(Character.forDigit(b & 0xF, 16));
+			}
+			return result.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new ApplicationException("formatdb failed error: " + e.getMessage(), e);
+		} catch (IOException e) {
+			throw new ApplicationException("formatdb failed error: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return the fingerprint of a database, see key(), which is only computed
+	 *   when these references were not seen before.
+	 *
+	 * @param sourceStamp a stamp of the files from which the references were
+	 *   read, or null if they were not read from files.
+	 */
+	public static String fingerprint(String sourceStamp, String formatCommand, SequenceAlignment references)
+			throws ApplicationException {
+		if (sourceStamp == null)
+			return key(formatCommand, references);
+
+		StringBuffer stamp = new StringBuffer();
+		stamp.append(sourceStamp).append('\n').append(formatCommand).append('\n');
+		for (AbstractSequence s : references.getSequences())
+			stamp.append(s.getName()).append(' ').append(s.getLength()).append('\n');
+
+		String s = stamp.toString();
+		synchronized (fingerprints) {
+			String result = fingerprints.get(s);
+			if (result != null)
+				return result;
+		}
+
+		String result = key(formatCommand, references);
+		synchronized (fingerprints) {
+			fingerprints.put(s, result);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return the database file (to give to blast) of a fingerprint, which
+	 *   may not exist.
+	 */
+	public File getDbFile(String fingerprint) {
+		return new File(new File(dir, fingerprint), DB_FILE);
+	}
+
+	/**
+	 * Returns the database with the given fingerprint, which is built first if
+	 * it does not exist.
+	 *
+	 * @return the database file (to give to blast).
+	 */
+	public File get(String fingerprint, Builder builder) throws ApplicationException {
+		File entry = new File(dir, fingerprint);
+		if (entry.exists()) {
+			entry.setLastModified(System.currentTimeMillis());
+			return new File(entry, DB_FILE);
+		}
+
+		File tmp = null;
+		try {
+			dir.mkdirs();
+			tmp = FileUtil.createTempDirectory(TMP_PREFIX + fingerprint, dir);
+			builder.build(tmp);
+			if (tmp.renameTo(entry))
+				tmp = null;
+			else if (!entry.exists())
+				throw new ApplicationException("could not publish blast database: " + entry.getAbsolutePath());
+		} catch (IOException e) {
+			throw new ApplicationException("formatdb failed error: " + e.getMessage(), e);
+		} finally {
+			if (tmp != null)
+				FileUtils.deleteQuietly(tmp);
+		}
+
+		evict();
+
+		return new File(entry, DB_FILE);
+	}
+
+	/**
+	 * Pins a database for a blast details descriptor that refers to it: the
+	 * database is not evicted while the descriptor still needs it (see
+	 * {@link BlastDetails#needsDatabase(File)}).
+	 */
+	public synchronized void pin(String fingerprint, File descriptor) throws IOException {
+		File entry = new File(dir, fingerprint);
+		if (!entry.isDirectory())
+			return;
+
+		Writer w = new OutputStreamWriter(new FileOutputStream(new File(entry, PINS_FILE), true), "UTF-8");
+		try {
+			w.write(descriptor.getAbsolutePath() + "\n");
+		} finally {
+			w.close();
+		}
+	}
+
+	/*
+	 * Whether a database is pinned by a descriptor that still needs it. The
+	 * pins of descriptors that no longer do are dropped.
+	 */
+	@SuppressWarnings("unchecked")
+	private static boolean isPinned(File entry) {
+		File pins = new File(entry, PINS_FILE);
+		if (!pins.exists())
+			return false;
+
+		try {
+			List<String> descriptors = FileUtils.readLines(pins, "UTF-8");
+			List<String> needed = new ArrayList<String>();
+			for (String d : descriptors)
+				if (d.length() > 0 && BlastDetails.needsDatabase(new File(d)))
+					needed.add(d);
+
+			if (needed.isEmpty())
+				pins.delete();
+			else if (needed.size() != descriptors.size())
+				FileUtils.writeLines(pins, "UTF-8", needed);
+
+			return !needed.isEmpty();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return true;
+		}
+	}
+
+	private static class Entry {
+		File dir;
+		long size;
+		long lastUsed;
+	}
+
+	/*
+	 * Deletes the least recently used databases while the total size is too
+	 * large. New databases are rare, so the databases are simply scanned.
+	 */
+	private synchronized void evict() {
+		File[] dirs = dir.listFiles();
+		if (dirs == null)
+			return;
+
+		List<Entry> entries = new ArrayList<Entry>();
+		long size = 0;
+		for (File d : dirs) {
+			if (!d.isDirectory() || d.getName().startsWith(TMP_PREFIX))
+				continue;
+
+			Entry e = new Entry();
+			e.dir = d;
+			e.lastUsed = d.lastModified();
+			e.size = FileUtils.sizeOfDirectory(d);
+			entries.add(e);
+			size += e.size;
+		}
+
+		if (size <= maxSize)
+			return;
+
+		Collections.sort(entries, new Comparator<Entry>() {
+			public int compare(Entry e1, Entry e2) {
+				return e1.lastUsed < e2.lastUsed ? -1 : (e1.lastUsed == e2.lastUsed ? 0 : 1);
+			}
+		});
+
+		long inUse = System.currentTimeMillis() - IN_USE_MILLIS;
+		for (Entry e : entries) {
+			if (size <= maxSize || e.lastUsed > inUse)
+				break;
+			if (isPinned(e.dir))
+				continue;
+			System.err.println("Evicting blast database: " + e.dir.getName());
+			FileUtils.deleteQuietly(e.dir);
+			size -= e.size;
+		}
+	}
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.io.IOUtils;
+
+import rega.genotype.singletons.Settings;
+import rega.genotype.utils.ExternalProcess;
+
+/**
+ * The HTML reports of blast (see {@link BlastAnalysis#getDetailsOptions()}),
+ * which are generated when they are first asked for.
+ *
+ * The analysis reports the name of the report, and only records the query and
+ * the fingerprint of its database (see {@link BlastDbCache}) in a descriptor
+ * resource, next to the report in the job directory. The type of the database
+ * and the details options are kept with the database, and the blast command
+ * is built from the configuration when the report is generated, by a pool with
+ * a limited number of threads: the requests for the same report wait for the
+ * same blast run. The database is pinned in the cache until the report is
+ * generated.
+ *
+ * Without a database cache, the report is generated right away, see
+ * {@link #generate(File, boolean, String, byte[], File)}.
+ */
+public class BlastDetails {
+	public static final String REPORT_SUFFIX = ".html";
+	public static final String DESCRIPTOR_SUFFIX = ".details";
+
+	private static final String DB = "db";
+	private static final String OPTIONS = "options";
+	private static final String QUERY = "query";
+	private static final String AA = "aa";
+
+	private static ExecutorService pool;
+	private static ConcurrentMap<File, Future<File>> pending = new ConcurrentHashMap<File, Future<File>>();
+
+	/**
+	 * Writes the descriptor of a report, and keeps the details options with
+	 * the database.
+	 *
+	 * @param descriptor the descriptor resource, which ends with DESCRIPTOR_SUFFIX
+	 * @param fingerprint the fingerprint of the database
+	 * @param aa whether the database holds amino acid sequences
+	 * @param options the details options of the analysis
+	 * @param query the query (FASTA) that is given to blast
+	 */
+	public static void record(File descriptor, String fingerprint, boolean aa, String options, byte[] query)
+			throws IOException, ApplicationException {
+		String optionsKey = Integer.toHexString(options.hashCode());
+		File settings = getSettingsFile(fingerprint, optionsKey);
+		if (!settings.exists()) {
+			Properties p = new Properties();
+			p.setProperty(AA, String.valueOf(aa));
+			p.setProperty(OPTIONS, options);
+			store(p, settings, "blast details options");
+		}
+
+		Properties p = new Properties();
+		p.setProperty(DB, fingerprint);
+		p.setProperty(OPTIONS, optionsKey);
+		p.setProperty(QUERY, new String(query, "ISO-8859-1"));
+		store(p, descriptor, "blast details");
+
+		BlastDbCache.getInstance().pin(fingerprint, descriptor);
+	}
+
+	/**
+	 * Pins the database of a copy of a descriptor (see {@link ResultCache}).
+	 */
+	static void pin(File descriptor) throws IOException {
+		String fingerprint = load(descriptor).getProperty(DB, "");
+		BlastDbCache cache = BlastDbCache.getInstance();
+		if (cache != null && fingerprint.matches("[0-9a-f]+"))
+			cache.pin(fingerprint, descriptor);
+	}
+
+	/**
+	 * @return whether a descriptor still needs its database: it exists and its
+	 *   report was not generated.
+	 */
+	static boolean needsDatabase(File descriptor) {
+		return descriptor.exists() && !new File(descriptor.getParentFile(), getReportName(descriptor)).exists();
+	}
+
+	/**
+	 * @return the name of the report of a descriptor.
+	 */
+	public static String getReportName(File descriptor) {
+		String name = descriptor.getName();
+		return name.substring(0, name.length() - DESCRIPTOR_SUFFIX.length()) + REPORT_SUFFIX;
+	}
+
+	/*
+	 * The file with the details options, in the directory of the database.
+	 */
+	private static File getSettingsFile(String fingerprint, String optionsKey) throws ApplicationException {
+		if (!fingerprint.matches("[0-9a-f]+") || !optionsKey.matches("[0-9a-f]+"))
+			throw new ApplicationException("Invalid blast details: " + fingerprint + " " + optionsKey);
+
+		BlastDbCache cache = BlastDbCache.getInstance();
+		if (cache == null)
+			throw new ApplicationException("No blast database cache");
+
+		return new File(cache.getDbFile(fingerprint).getParentFile(), "details-" + optionsKey + ".properties");
+	}
+
+	private static void store(Properties p, File f, String comments) throws IOException {
+		File tmp = new File(f.getPath() + ".tmp" + (int)(Math.random()*1000000));
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			p.store(out, comments);
+		} finally {
+			out.close();
+		}
+
+		if (!tmp.renameTo(f) && !f.exists()) {
+			tmp.delete();
+			throw new IOException("Could not create " + f);
+		}
+		tmp.delete();
+	}
+
+	private static Properties load(File f) throws IOException {
+		Properties p = new Properties();
+		InputStream in = new FileInputStream(f);
+		try {
+			p.load(in);
+		} finally {
+			in.close();
+		}
+
+		return p;
+	}
+
+	/**
+	 * @return the report of a descriptor, which is generated if it does not
+	 *   exist yet.
+	 *
+	 * @param jobDir the job directory
+	 * @param details the name of the report
+	 */
+	public static File getReport(File jobDir, String details) throws ApplicationException {
+		if (!details.endsWith(REPORT_SUFFIX) || details.indexOf(File.separatorChar) >= 0)
+			throw new ApplicationException("No blast details: " + details);
+
+		final File report = new File(jobDir, details);
+		final File descriptor = new File(jobDir,
+				details.substring(0, details.length() - REPORT_SUFFIX.length()) + DESCRIPTOR_SUFFIX);
+		if (report.exists())
+			return report;
+
+		if (!descriptor.exists())
+			throw new ApplicationException("No blast details: " + details);
+
+		Future<File> future = pending.get(report);
+		if (future == null) {
+			FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+				public File call() throws Exception {
+					if (!report.exists())
+						generate(descriptor, report);
+					return report;
+				}
+			});
+			future = pending.putIfAbsent(report, task);
+			if (future == null) {
+				future = task;
+				getPool().execute(task);
+			}
+		}
+
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new ApplicationException("Interrupted while waiting for blast details: " + details);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ApplicationException)
+				throw (ApplicationException) cause;
+			throw new ApplicationException("Error: I/O Error while invoking blast: " + cause.getMessage());
+		} finally {
+			pending.remove(report, future);
+		}
+	}
+
+	private static void generate(File descriptor, File report) throws IOException, InterruptedException, ApplicationException {
+		Properties p = load(descriptor);
+
+		String fingerprint = p.getProperty(DB, "");
+		File settings = getSettingsFile(fingerprint, p.getProperty(OPTIONS, ""));
+		File db = BlastDbCache.getInstance().getDbFile(fingerprint);
+		if (!settings.exists() || !db.exists())
+			throw new ApplicationException("The blast database of the details is gone: " + fingerprint);
+
+		Properties options = load(settings);
+		generate(db, Boolean.parseBoolean(options.getProperty(AA)), options.getProperty(OPTIONS),
+				p.getProperty(QUERY, "").getBytes("ISO-8859-1"), report);
+	}
+
+	/**
+	 * Generates a report right away, for a database that is not in the
+	 * {@link BlastDbCache} and thus does not outlive the job.
+	 *
+	 * @param db the database file (to give to blast)
+	 * @param aa whether the database holds amino acid sequences
+	 * @param options the details options of the analysis
+	 * @param query the query (FASTA) that is given to blast
+	 * @param report the report
+	 */
+	public static void generate(File db, boolean aa, String options, byte[] query, File report)
+			throws IOException, InterruptedException, ApplicationException {
+		String cmd = BlastEngine.getConfigured().detailsCommand(db, aa, options);
+		System.err.println(cmd);
+		ExternalProcess blast = new ExternalProcess(cmd, report.getParentFile());
+		blast.writeInput(query);
+
+		File tmp = new File(report.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			IOUtils.copy(blast.getOutput(), out);
+		} finally {
+			out.close();
+		}
+
+		int result = blast.waitFor();
+		if (result != 0) {
+			tmp.delete();
+			throw new ApplicationException("Blast exited with error: " + result);
+		}
+
+		if (!tmp.renameTo(report)) {
+			tmp.delete();
+			throw new IOException("Could not create " + report);
+		}
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			int threads = 2;
+			Settings settings = Settings.getInstance();
+			if (settings != null && settings.getConfig() != null)
+				threads = Math.max(1, settings.getBlastDetailsThreads());
+
+			pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "blast-details");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		return pool;
+	}
+}
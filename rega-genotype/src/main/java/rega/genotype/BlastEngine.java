@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.io.File;
+
+import rega.genotype.singletons.Settings;
+
+/**
+ * The NCBI blast programs that are used by a {@link BlastAnalysis} to format
+ * the reference database and to search it.
+ *
+ * The engine is configured in the general configuration (blastEngine):
+ *  - blastall: the legacy formatdb and blastall programs (the default)
+ *  - blast+: the BLAST+ makeblastdb, blastn and blastx programs
+ *
+ * The blast options of an analysis are written in blastall syntax, and are
+ * translated by the BLAST+ engine. Both engines write tabular results with
+ * the same columns (blastall -m 8, BLAST+ -outfmt 6), so that the results
+ * are parsed in the same way.
+ *
+ * The number of threads that blast uses for one search is configured in
+ * blastThreads.
+ */
+public abstract class BlastEngine {
+	public static final String BLASTALL = "blastall";
+	public static final String BLAST_PLUS = "blast+";
+
+	/**
+	 * @return a new engine with the given name.
+	 */
+	public static BlastEngine create(String name) {
+		if (BLAST_PLUS.equals(name))
+			return new BlastPlusEngine();
+		else {
+			if (name != null && !BLASTALL.equals(name))
+				System.err.println("Unknown blast engine: " + name + ", using " + BLASTALL);
+			return new LegacyBlastEngine();
+		}
+	}
+
+	/**
+	 * @return the configured engine.
+	 */
+	public static BlastEngine getConfigured() {
+		Settings settings = Settings.getInstance();
+		if (settings != null && settings.getConfig() != null)
+			return create(settings.getBlastEngine());
+		else
+			return create(BLASTALL);
+	}
+
+	/**
+	 * @return the configured number of threads of one blast search.
+	 */
+	public static int getThreads() {
+		Settings settings = Settings.getInstance();
+		if (settings != null && settings.getConfig() != null)
+			return Math.max(1, settings.getBlastThreads());
+		else
+			return 1;
+	}
+
+	public abstract String getName();
+
+	/**
+	 * @return the command that formats the FASTA file db into a database
+	 *   with the same name.
+	 */
+	public abstract String formatDbCommand(File db, boolean aa);
+
+	/**
+	 * @return the command that searches the database db for the queries on
+	 *   standard input, and writes tabular results (12 columns per hit) to
+	 *   standard output.
+	 */
+	public abstract String blastCommand(File db, boolean aa, String options);
+
+	/**
+	 * @return the command that searches the database db for the query on
+	 *   standard input, and writes an HTML report to standard output.
+	 */
+	public abstract String detailsCommand(File db, boolean aa, String options);
+
+	protected static String getBlastPath() {
+		return Settings.getInstance().getBlastPathStr();
+	}
+}
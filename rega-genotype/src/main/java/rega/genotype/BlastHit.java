@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+/**
+ * A hit in the tabular output of blast (blastall -m 8 or BLAST+ -outfmt 6):
+ * a line with 12 tab separated fields.
+ *
+ * The fields are located in the line without copying it, and the integer
+ * fields are parsed once. The query and subject ids and the floating point
+ * fields are only converted when they are asked for.
+ *
+ * A hit refers to the buffer of the line, which may be reused for the next
+ * line (see {@link BlastHitReader}): use {@link #copy()} to keep a hit.
+ */
+public class BlastHit {
+	public static final int FIELDS = 12;
+
+	private byte[] line;
+	private int[] fields = new int[FIELDS + 1]; // field i is [fields[i], fields[i + 1] - 1)
+
+	private int alignmentLength, mismatches, gaps;
+	private int queryStart, queryEnd, subjectStart, subjectEnd;
+
+	private String queryId, subjectId;
+
+	/**
+	 * Sets the hit to a line.
+	 *
+	 * @param line the buffer that contains the line
+	 * @param start the start of the line
+	 * @param end the end of the line (excluding the line end)
+	 */
+	public void set(byte[] line, int start, int end) throws ApplicationException {
+		this.line = line;
+		this.queryId = null;
+		this.subjectId = null;
+
+		int field = 0;
+		fields[0] = start;
+		for (int i = start; i < end; ++i)
+			if (line[i] == '\t') {
+				if (++field == FIELDS)
+					throw new ApplicationException("blast result format error");
+				fields[field] = i + 1;
+			}
+		if (field != FIELDS - 1)
+			throw new ApplicationException("blast result format error");
+		fields[FIELDS] = end + 1;
+
+		alignmentLength = parseInt(BlastAnalysis.BLAST_RESULT_ALINGMENT_LENGTH_IDX);
+		mismatches = parseInt(BlastAnalysis.BLAST_RESULT_MISMATCHES_IDX);
+		gaps = parseInt(BlastAnalysis.BLAST_RESULT_GAP_IDX);
+		queryStart = parseInt(BlastAnalysis.BLAST_RESULT_Q_START_IDX);
+		queryEnd = parseInt(BlastAnalysis.BLAST_RESULT_Q_END_IDX);
+		subjectStart = parseInt(BlastAnalysis.BLAST_RESULT_S_START_IDX);
+		subjectEnd = parseInt(BlastAnalysis.BLAST_RESULT_S_END_IDX);
+	}
+
+	/**
+	 * Sets the hit to the (12) values of a line.
+	 */
+	public void set(String[] values) throws ApplicationException {
+		StringBuffer s = new StringBuffer();
+		for (int i = 0; i < values.length; ++i) {
+			if (i != 0)
+				s.append('\t');
+			s.append(values[i]);
+		}
+
+		byte[] line = s.toString().getBytes();
+		set(line, 0, line.length);
+	}
+
+	/**
+	 * @return a copy of this hit, which does not share the line buffer.
+	 */
+	public BlastHit copy() {
+		BlastHit result = new BlastHit();
+
+		int start = fields[0], end = fields[FIELDS] - 1;
+		result.line = new byte[end - start];
+		System.arraycopy(line, start, result.line, 0, end - start);
+		for (int i = 0; i <= FIELDS; ++i)
+			result.fields[i] = fields[i] - start;
+
+		result.alignmentLength = alignmentLength;
+		result.mismatches = mismatches;
+		result.gaps = gaps;
+		result.queryStart = queryStart;
+		result.queryEnd = queryEnd;
+		result.subjectStart = subjectStart;
+		result.subjectEnd = subjectEnd;
+		result.queryId = queryId;
+		result.subjectId = subjectId;
+
+		return result;
+	}
+
+	public String getQueryId() {
+		if (queryId == null)
+			queryId = getField(BlastAnalysis.BLAST_RESULT_QUERY_ID_IDX);
+		return queryId;
+	}
+
+	/**
+	 * @return whether the query id is id (without converting the query id).
+	 */
+	public boolean isQuery(String id) {
+		int start = fields[BlastAnalysis.BLAST_RESULT_QUERY_ID_IDX];
+		int length = fields[BlastAnalysis.BLAST_RESULT_QUERY_ID_IDX + 1] - 1 - start;
+		if (length != id.length())
+			return false;
+
+		for (int i = 0; i < length; ++i)
+			if (line[start + i] != id.charAt(i))
+				return false;
+
+		return true;
+	}
+
+	public String getSubjectId() {
+		if (subjectId == null)
+			subjectId = getField(BlastAnalysis.BLAST_RESULT_SUBJECT_ID_IDX);
+		return subjectId;
+	}
+
+	public int getAlignmentLength() {
+		return alignmentLength;
+	}
+
+	public int getMismatches() {
+		return mismatches;
+	}
+
+	public int getGaps() {
+		return gaps;
+	}
+
+	public int getQueryStart() {
+		return queryStart;
+	}
+
+	public int getQueryEnd() {
+		return queryEnd;
+	}
+
+	public int getSubjectStart() {
+		return subjectStart;
+	}
+
+	public int getSubjectEnd() {
+		return subjectEnd;
+	}
+
+	public float getEValue() {
+		return Float.parseFloat(getField(BlastAnalysis.BLAST_RESULT_E_VALUE_IDX));
+	}
+
+	public float getBitScore() {
+		return Float.parseFloat(getField(BlastAnalysis.BLAST_RESULT_BIT_SCORE_IDX));
+	}
+
+	/**
+	 * @return whether the bit score is the same (as reported by blast) as
+	 *   the bit score of another hit.
+	 */
+	public boolean hasBitScore(BlastHit other) {
+		final int f = BlastAnalysis.BLAST_RESULT_BIT_SCORE_IDX;
+		int start = fields[f], length = fields[f + 1] - 1 - start;
+		int otherStart = other.fields[f], otherLength = other.fields[f + 1] - 1 - otherStart;
+		if (length != otherLength)
+			return false;
+
+		for (int i = 0; i < length; ++i)
+			if (line[start + i] != other.line[otherStart + i])
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * @return the value of a field.
+	 */
+	public String getField(int field) {
+		int start = fields[field];
+		return new String(line, start, fields[field + 1] - 1 - start);
+	}
+
+	private int parseInt(int field) throws ApplicationException {
+		int i = fields[field], end = fields[field + 1] - 1;
+		while (i < end && line[i] == ' ')
+			++i;
+
+		boolean negative = i < end && line[i] == '-';
+		if (negative)
+			++i;
+
+		if (i == end)
+			throw new ApplicationException("blast result format error");
+
+		int result = 0;
+		for (; i < end; ++i) {
+			int digit = line[i] - '0';
+			if (digit < 0 || digit > 9)
+				throw new ApplicationException("blast result format error");
+			result = result * 10 + digit;
+		}
+
+		return negative ? -result : result;
+	}
+}
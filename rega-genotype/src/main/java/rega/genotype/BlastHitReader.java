@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the hits from the tabular output of blast, as it is written.
+ *
+ * The output is read in a buffer which is reused, and each line is parsed
+ * into the same {@link BlastHit}: a hit is only valid until the next call to
+ * {@link #next()}.
+ */
+public class BlastHitReader implements BlastAnalysis.BlastHits {
+	private InputStream input;
+	private byte[] buf = new byte[64 * 1024];
+	private int pos = 0, limit = 0;
+	private boolean eof = false;
+	private BlastHit hit = new BlastHit();
+
+	public BlastHitReader(InputStream input) {
+		this.input = input;
+	}
+
+	public BlastHit next() throws ApplicationException {
+		for (;;) {
+			int end = -1;
+			for (int i = pos; i < limit; ++i)
+				if (buf[i] == '\n') {
+					end = i;
+					break;
+				}
+
+			if (end == -1) {
+				if (!eof) {
+					fill();
+					continue;
+				} else if (pos == limit)
+					return null;
+				else
+					end = limit; // the last line, without a line end
+			}
+
+			int start = pos;
+			pos = Math.min(end + 1, limit);
+
+			int lineEnd = end;
+			if (lineEnd > start && buf[lineEnd - 1] == '\r')
+				--lineEnd;
+			if (lineEnd == start)
+				continue;
+
+			hit.set(buf, start, lineEnd);
+			return hit;
+		}
+	}
+
+	/*
+	 * Moves the remaining data to the start of the buffer (growing it if a
+	 * line does not fit) and reads more data.
+	 */
+	private void fill() throws ApplicationException {
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		} else if (limit == buf.length) {
+			byte[] grown = new byte[buf.length * 2];
+			System.arraycopy(buf, 0, grown, 0, limit);
+			buf = grown;
+		}
+
+		try {
+			int n = input.read(buf, limit, buf.length - limit);
+			if (n == -1)
+				eof = true;
+			else
+				limit += n;
+		} catch (IOException e) {
+			throw new ApplicationException("Error: I/O Error while invoking blast: " + e.getMessage());
+		}
+	}
+}
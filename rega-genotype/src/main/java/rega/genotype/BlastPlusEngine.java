@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The blast engine that uses the NCBI BLAST+ programs makeblastdb, blastn and
+ * blastx.
+ *
+ * Nucleotide searches use -task blastn, which corresponds to blastall -p
+ * blastn (the default task of blastn is megablast).
+ *
+ * The blastall options of an analysis are translated to the corresponding
+ * BLAST+ options. Options that are not blastall options (such as -evalue) are
+ * passed as they are.
+ */
+class BlastPlusEngine extends BlastEngine {
+	public static String makeBlastDbCommand = "makeblastdb";
+	public static String blastnCommand = "blastn";
+	public static String blastxCommand = "blastx";
+
+	/*
+	 * blastall options that translate to a BLAST+ option with the same value.
+	 */
+	private static final Map<String, String> OPTIONS = new HashMap<String, String>();
+	static {
+		OPTIONS.put("-e", "-evalue");
+		OPTIONS.put("-W", "-word_size");
+		OPTIONS.put("-q", "-penalty");
+		OPTIONS.put("-r", "-reward");
+		OPTIONS.put("-G", "-gapopen");
+		OPTIONS.put("-E", "-gapextend");
+		OPTIONS.put("-v", "-num_descriptions");
+		OPTIONS.put("-b", "-num_alignments");
+		OPTIONS.put("-X", "-xdrop_gap");
+		OPTIONS.put("-y", "-xdrop_ungap");
+		OPTIONS.put("-Z", "-xdrop_gap_final");
+		OPTIONS.put("-M", "-matrix");
+		OPTIONS.put("-Q", "-query_gencode");
+		OPTIONS.put("-K", "-culling_limit");
+		OPTIONS.put("-Y", "-searchsp");
+		OPTIONS.put("-f", "-threshold");
+		OPTIONS.put("-A", "-window_size");
+	}
+
+	@Override
+	public String getName() {
+		return BLAST_PLUS;
+	}
+
+	@Override
+	public String formatDbCommand(File db, boolean aa) {
+		return getBlastPath() + makeBlastDbCommand + " -dbtype " + (aa ? "prot" : "nucl")
+			+ " -parse_seqids -in " + db.getAbsolutePath() + " -out " + db.getAbsolutePath();
+	}
+
+	@Override
+	public String blastCommand(File db, boolean aa, String options) {
+		return getBlastPath() + programCommand(aa) + translateOptions(options, aa)
+			+ " -num_threads " + getThreads()
+			+ " -outfmt 6 -db " + db.getAbsolutePath();
+	}
+
+	@Override
+	public String detailsCommand(File db, boolean aa, String options) {
+		return getBlastPath() + programCommand(aa) + translateOptions(options, aa)
+			+ " -html -db " + db.getAbsolutePath();
+	}
+
+	private static String programCommand(boolean aa) {
+		return aa ? blastxCommand : blastnCommand + " -task blastn";
+	}
+
+	/**
+	 * @return the BLAST+ options that correspond to blastall options.
+	 */
+	static String translateOptions(String options, boolean aa) {
+		if (options == null)
+			return "";
+
+		StringBuffer result = new StringBuffer();
+		String[] tokens = options.trim().split("\\s+");
+		for (int i = 0; i < tokens.length; ++i) {
+			String option = tokens[i];
+			if (option.length() == 0)
+				continue;
+
+			if (option.length() != 2 || option.charAt(0) != '-') {
+				result.append(' ').append(option);
+				// a negative value of a BLAST+ option, e.g. -penalty -1
+				if (option.startsWith("-") && i + 1 < tokens.length && tokens[i + 1].matches("-[0-9.]+"))
+					result.append(' ').append(tokens[++i]);
+				continue;
+			}
+
+			String translated = OPTIONS.get(option);
+			if (translated != null) {
+				// the value may be negative, e.g. -q -1
+				if (i + 1 < tokens.length)
+					result.append(' ').append(translated).append(' ').append(tokens[++i]);
+				continue;
+			}
+
+			String value = null;
+			if (i + 1 < tokens.length && !tokens[i + 1].startsWith("-"))
+				value = tokens[++i];
+
+			char c = option.charAt(1);
+			if (c == 'F') {
+				if ("F".equals(value))
+					result.append(aa ? " -seg no" : " -dust no");
+			} else if (c == 'g') {
+				if ("F".equals(value))
+					result.append(" -ungapped");
+			} else if (c == 'S') {
+				if ("1".equals(value))
+					result.append(" -strand plus");
+				else if ("2".equals(value))
+					result.append(" -strand minus");
+			} else if (c == 'U') {
+				if ("T".equals(value))
+					result.append(" -lcase_masking");
+			} else if (c == 'a' || c == 'm' || c == 'T' || c == 'p' || c == 'd' || c == 'i' || c == 'o') {
+				// threads, output format, program, database and files are set by the engine
+			} else
+				System.err.println("Blast+: ignoring unsupported blastall option: " + option
+						+ (value != null ? " " + value : ""));
+		}
+
+		return result.toString();
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ * 
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.LineNumberReader;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import rega.genotype.singletons.Settings;
+import rega.genotype.utils.ExternalProcess;
+import rega.genotype.utils.ScratchDir;
+
+/**
+ * The alignment engine that runs clustalw for every alignment.
+ * 
+ * To speed up profile alignments, there is an option to first trim the query sequence
+ * based on a pairwise alignment.
+ */
+class ClustalWAlignmentEngine extends AlignmentEngine {
+    @Override
+    public String getName() {
+        return CLUSTALW;
+    }
+
+    @Override
+    public SequenceAlignment profileAlign(AbstractSequence sequence,
+                                          SequenceAlignment alignment,
+                                          boolean trimAlignment,
+                                          File workingDir)
+            throws AlignmentException {
+        if (trimAlignment) {
+            SequenceAlignment trimmedAlignment = trimAlignment(sequence, alignment, workingDir);
+            return clustalProfileAlign(sequence, trimmedAlignment, workingDir);
+        } else
+            return clustalProfileAlign(sequence, alignment, workingDir);
+    }
+
+    private SequenceAlignment trimAlignment(AbstractSequence sequence,
+                                            SequenceAlignment alignment, File workingDir)
+            throws AlignmentException {
+        SequenceAlignment example = SequenceAlign.pairAlign(alignment.getSequences().get(0), sequence, workingDir);
+        
+        int diff = example.getLength() - alignment.getLength();
+
+        AbstractSequence query = example.getSequences().get(1);
+        
+        int start = query.firstNonGapPosition();
+        int end = query.lastNonGapPosition();
+        
+        int MARGIN = 0;
+
+        start = Math.max(0, start - MARGIN - diff);
+        end = Math.min(alignment.getLength(), end + MARGIN + diff);
+        
+        return alignment.getSubSequence(start, end);
+    }
+
+    @Override
+    public SequenceAlignment pairAlign(AbstractSequence s1, AbstractSequence s2, File workingDir, double gapOpenPenalty, double gapExtensionPenalty)
+            throws AlignmentException {
+		String clustalWPath = Settings.getInstance().getClustalWCmd();
+
+        ScratchDir scratch = null;
+        try {
+            scratch = new ScratchDir("clustalw");
+            File f = scratch.getFile("pair.fasta");
+            File f3 = scratch.getFile("aligned.fasta");
+
+            FileOutputStream fout = new FileOutputStream(f);
+            s1.writeFastaOutput(fout);
+            s2.writeFastaOutput(fout);
+            //fout.flush();
+            //fout.getFD().sync();
+            fout.close();
+
+            String cmd = clustalWPath + " -quicktree -infile=" + f.getAbsolutePath()
+                + " -output=fasta"
+                + " -gapopen=" + gapOpenPenalty
+                + " -gapext=" + gapExtensionPenalty
+                + " -outfile=" + f3.getAbsolutePath();
+            System.err.println(cmd);
+            ExternalProcess p = new ExternalProcess(cmd, scratch.getDir());
+            p.closeInput();
+            InputStream inputStream = p.getOutput();
+
+            LineNumberReader reader
+                = new LineNumberReader(new InputStreamReader(inputStream));
+
+            Pattern scorePattern = Pattern.compile("Alignment Score (-?\\d+)");
+
+            int score = 0;
+            for (;;) {
+                String s = reader.readLine();
+                if (s == null)
+                    break;
+                System.err.println(s);
+                Matcher m = scorePattern.matcher(s);
+                
+                if (m.find()) {
+                    score = Integer.valueOf(m.group(1)).intValue();
+                }
+            }
+            p.waitFor();
+
+            /*
+            * Read the generated file.
+            */
+            SequenceAlignment result
+                = new SequenceAlignment(new BufferedInputStream(new FileInputStream(f3)),
+                                        SequenceAlignment.FILETYPE_FASTA,
+                                        SequenceAlignment.SEQUENCE_ANY);
+            result.setAlignmentScore(score);
+
+            return result;
+        } catch (NumberFormatException e) {
+        	e.printStackTrace();
+            throw new AlignmentException("Could not parse clustalw score!");
+        } catch (FileNotFoundException e) {
+        	e.printStackTrace();
+            throw new AlignmentException("Clustalw did not write file!");
+        } catch (IOException e) {
+        	e.printStackTrace();
+            throw new AlignmentException("I/O error while doing clustalw");
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            throw new AlignmentException(e.getMessage());
+        } catch (ParameterProblemException e) {
+            e.printStackTrace();
+            throw new AlignmentException(e.getMessage());            
+        } catch (FileFormatException e) {
+        	e.printStackTrace();
+            throw new AlignmentException("Clustalw did not write a proper FASTA file!");
+        } finally {
+            if (scratch != null)
+                scratch.delete();
+        }
+    }
+
+    private SequenceAlignment clustalProfileAlign(AbstractSequence sequence,
+                                                  SequenceAlignment alignment,
+                                                  File workingDir)
+            throws AlignmentException {
+
+		String clustalWPath = Settings.getInstance().getClustalWCmd();
+        ScratchDir scratch = null;
+        try {
+            scratch = new ScratchDir("clustalw");
+            File f = scratch.getFile("profile.fasta");
+            File f2 = scratch.getFile("query.fasta");
+            File f3 = scratch.getFile("aligned.fasta");
+
+            FileOutputStream fout = new FileOutputStream(f);
+            alignment.writeFastaOutput(fout);
+            //fout.flush();
+            //fout.getFD().sync();
+            fout.close();
+
+            FileOutputStream fout2 = new FileOutputStream(f2);
+            sequence.writeFastaOutput(fout2);
+            //fout2.flush();
+            //fout2.getFD().sync();
+            fout2.close();
+
+            String cmd = clustalWPath + " -quicktree -profile1=" + f.getAbsolutePath()
+                + " -profile2=" + f2.getAbsolutePath() + " -output=fasta"
+                + " -outfile=" + f3.getAbsolutePath();
+            System.err.println(cmd);
+            ExternalProcess p = new ExternalProcess(cmd, scratch.getDir());
+            p.closeInput();
+            InputStream inputStream = p.getOutput();
+
+            LineNumberReader reader
+                = new LineNumberReader(new InputStreamReader(inputStream));
+
+            Pattern scorePattern = Pattern.compile("Alignment Score (-?\\d+)");
+
+            /*
+             * This is OK for profile alignments as well: two scores are given but
+             * the last one is used.
+             */
+            //int score = 0;
+            for (;;) {
+                String s = reader.readLine();
+                if (s == null)
+                    break;
+                System.err.println(s);
+                Matcher m = scorePattern.matcher(s);
+                
+                if (m.find()) {
+                    //score = Integer.valueOf(m.group(1)).intValue();
+                }
+            }
+
+            p.waitFor();
+
+            /*
+            * Read the generated file.
+            */
+            SequenceAlignment result
+                = new SequenceAlignment(new BufferedInputStream(new FileInputStream(f3)),
+                                        SequenceAlignment.FILETYPE_FASTA,
+                                        SequenceAlignment.SEQUENCE_ANY);
+
+            return result;
+        } catch (NumberFormatException e) {
+            throw new AlignmentException("Could not parse clustalw score!");
+        } catch (FileNotFoundException e) {
+            throw new AlignmentException("Clustalw did not write file!");
+        } catch (IOException e) {
+            throw new AlignmentException("I/O error while doing clustalw");
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            throw new AlignmentException(e.getMessage());
+        } catch (ParameterProblemException e) {
+            e.printStackTrace();
+            throw new AlignmentException(e.getMessage());            
+        } catch (FileFormatException e) {
+            throw new AlignmentException("Clustalw did not write a proper FASTA file!");
+        } finally {
+            if (scratch != null)
+                scratch.delete();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.util.List;
+
+/**
+ * Per-column gap information of an alignment.
+ *
+ * The information is computed in a single pass over the gap bitmaps of the
+ * sequences, 64 columns at a time. Column masks are bitmaps with bit (i % 64)
+ * of word (i / 64) corresponding to column i.
+ *
+ * The masks are a snapshot: they are not updated when the alignment changes.
+ *
+ * @author koen
+ */
+public class ColumnGaps {
+	private int length;
+	private long[] anyGap;
+	private long[] allGap;
+	private int firstNonGapPosition;
+	private int lastNonGapPosition;
+
+	public ColumnGaps(SequenceAlignment alignment) {
+		List<AbstractSequence> sequences = alignment.getSequences();
+
+		length = sequences.isEmpty() ? 0 : alignment.getLength();
+		int words = (length + 63) >>> 6;
+
+		anyGap = new long[words];
+		allGap = new long[words];
+		for (int w = 0; w < words; ++w)
+			allGap[w] = sequences.isEmpty() ? 0 : -1L;
+		if ((length & 63) != 0 && words > 0)
+			allGap[words - 1] &= (1L << (length & 63)) - 1;
+
+		firstNonGapPosition = 0;
+		lastNonGapPosition = length;
+
+		for (AbstractSequence s : sequences) {
+			int sLength = s.getLength();
+			int first = sLength, last = -1;
+
+			int sWords = Math.max(words, (sLength + 63) >>> 6);
+			for (int w = 0; w < sWords; ++w) {
+				int i = w << 6;
+				long gaps = i < sLength ? s.gapWord(i) : 0;
+				if (w < words) {
+					anyGap[w] |= gaps;
+					allGap[w] &= gaps;
+				}
+
+				long nonGaps = ~gaps;
+				if (sLength - i < 64)
+					nonGaps &= sLength - i <= 0 ? 0 : (1L << (sLength - i)) - 1;
+				if (nonGaps != 0) {
+					if (first == sLength)
+						first = i + Long.numberOfTrailingZeros(nonGaps);
+					last = i + 63 - Long.numberOfLeadingZeros(nonGaps);
+				}
+			}
+
+			firstNonGapPosition = Math.max(firstNonGapPosition, first);
+			lastNonGapPosition = Math.min(lastNonGapPosition, last);
+		}
+	}
+
+	/**
+	 * @return the number of columns
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return whether any sequence has a gap in column i
+	 */
+	public boolean isGapColumn(int i) {
+		return (anyGap[i >>> 6] & (1L << i)) != 0;
+	}
+
+	/**
+	 * @return whether all sequences have a gap in column i
+	 */
+	public boolean isAllGapColumn(int i) {
+		return (allGap[i >>> 6] & (1L << i)) != 0;
+	}
+
+	/**
+	 * @return the number of columns in which any sequence has a gap
+	 */
+	public int gapColumnCount() {
+		int result = 0;
+		for (int w = 0; w < anyGap.length; ++w)
+			result += Long.bitCount(anyGap[w]);
+
+		return result;
+	}
+
+	/**
+	 * @return the mask of columns in which any sequence has a gap. The mask
+	 *   is shared and should not be modified.
+	 */
+	public long[] getGapColumnMask() {
+		return anyGap;
+	}
+
+	/**
+	 * @return the mask of columns in which all sequences have a gap. The mask
+	 *   is shared and should not be modified.
+	 */
+	public long[] getAllGapColumnMask() {
+		return allGap;
+	}
+
+	/**
+	 * @return the first column from which every sequence has started, see
+	 *   {@link SequenceAlignment#firstNonGapPosition()}
+	 */
+	public int firstNonGapPosition() {
+		return firstNonGapPosition;
+	}
+
+	/**
+	 * @return the last column before which no sequence has ended, see
+	 *   {@link SequenceAlignment#lastNonGapPosition()}
+	 */
+	public int lastNonGapPosition() {
+		return lastNonGapPosition;
+	}
+}
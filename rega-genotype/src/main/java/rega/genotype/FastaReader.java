@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A streaming reader for sequences in FASTA format.
+ *
+ * The input is read through an NIO buffer and parsed at the byte level: only
+ * header lines are decoded to strings, while residues are checked against a
+ * lookup table for the sequence type and collected as bytes.
+ *
+ * The accepted format and the errors (with line numbers) are the same as for
+ * {@link SequenceAlignment#readFastaFileSequence(java.io.LineNumberReader, int)}.
+ */
+public class FastaReader {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private ReadableByteChannel channel;
+	private int sequenceType;
+	private boolean[] legal;
+
+	private ByteBuffer buffer;
+	private byte[] buf;
+	private int pos, limit;
+	private boolean eof, skipLF;
+	private int lineNumber;
+
+	private byte[] header;
+	private byte[] residues;
+	private int residueCount;
+
+	public FastaReader(InputStream input, int sequenceType) {
+		this(Channels.newChannel(input), sequenceType);
+	}
+
+	public FastaReader(File file, int sequenceType) throws IOException {
+		this(new FileInputStream(file).getChannel(), sequenceType);
+	}
+
+	public FastaReader(ReadableByteChannel channel, int sequenceType) {
+		this.channel = channel;
+		this.sequenceType = sequenceType;
+
+		this.legal = new boolean[256];
+		for (int i = 0; i < legal.length; ++i)
+			legal[i] = SequenceAlignment.isLegalResidue(sequenceType, (char) i);
+
+		this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		this.buf = buffer.array();
+		this.pos = this.limit = 0;
+		this.eof = this.skipLF = false;
+		this.lineNumber = 0;
+
+		this.header = new byte[256];
+		this.residues = new byte[4096];
+	}
+
+	/**
+	 * @return the number of lines read so far.
+	 */
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+	/**
+	 * Reads the next sequence.
+	 *
+	 * @return the sequence, or null if there are no more sequences.
+	 */
+	public Sequence next() throws IOException, FileFormatException {
+		/*
+		 * first read the header
+		 */
+		int headerLength;
+		do {
+			if (!startLine())
+				return null; // no new sequence to be found
+			headerLength = readHeaderLine();
+		} while (headerLength == 0);
+
+		if (header[0] != '>')
+			throw new FileFormatException("Expecting a '>'", lineNumber);
+
+		String h = new String(header, 1, headerLength - 1);
+
+		/*
+		 * next read the sequence, up to the start of a next sequence
+		 */
+		residueCount = 0;
+		while (startLine() && buf[pos] != '>')
+			readResidueLine();
+
+		return SequenceAlignment.createFastaSequence(h, PackedResidues.valueOf(residues, 0, residueCount));
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/*
+	 * Positions at the start of a line, returns false at the end of the input.
+	 */
+	private boolean startLine() throws IOException {
+		if (!fill())
+			return false;
+
+		if (skipLF) {
+			skipLF = false;
+			if (buf[pos] == '\n') {
+				++pos;
+				return fill();
+			}
+		}
+
+		return true;
+	}
+
+	private int readHeaderLine() throws IOException {
+		int length = 0;
+
+		while (fill()) {
+			byte b = buf[pos++];
+			if (b == '\n')
+				break;
+			else if (b == '\r') {
+				skipLF = true;
+				break;
+			}
+
+			if (length == header.length) {
+				byte[] h = new byte[header.length * 2];
+				System.arraycopy(header, 0, h, 0, length);
+				header = h;
+			}
+			header[length++] = b;
+		}
+
+		++lineNumber;
+
+		return length;
+	}
+
+	private void readResidueLine() throws IOException, FileFormatException {
+		int lineStart = residueCount;
+
+		while (fill()) {
+			byte b = buf[pos++];
+			if (b == '\n')
+				break;
+			else if (b == '\r') {
+				skipLF = true;
+				break;
+			} else if (b == ' ' || b == '\t')
+				continue;
+
+			if (residueCount == residues.length) {
+				byte[] r = new byte[residues.length * 2];
+				System.arraycopy(residues, 0, r, 0, residueCount);
+				residues = r;
+			}
+			residues[residueCount++] = b;
+
+			if (!legal[b & 0xFF])
+				throw SequenceAlignment.illegalResidue(sequenceType,
+						new String(residues, lineStart, residueCount - lineStart, LATIN1),
+						lineNumber + 1);
+		}
+
+		++lineNumber;
+	}
+
+	/*
+	 * Makes sure the buffer is not empty, returns false at the end of the input.
+	 */
+	private boolean fill() throws IOException {
+		if (pos < limit)
+			return true;
+
+		if (eof)
+			return false;
+
+		buffer.clear();
+		int n;
+		do {
+			n = channel.read(buffer);
+		} while (n == 0);
+
+		if (n == -1) {
+			eof = true;
+			return false;
+		}
+
+		pos = 0;
+		limit = n;
+		return true;
+	}
+}
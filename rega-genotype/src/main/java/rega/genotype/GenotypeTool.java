@@ -6,16 +6,14 @@
 package rega.genotype;
 import jargs.gnu.CmdLineParser;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.LineNumberReader;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.jdom.JDOMException;
 import org.xml.sax.InputSource;
@@ -54,6 +52,10 @@ public abstract class GenotypeTool {
     private GenotypeTool parent;
     private ResultTracer tracer;
 	private ToolConfig toolConfig;
+	private AlignmentCache alignmentCache;
+	private AlignmentEngine alignmentEngine;
+	private List<AbstractSequence> jobSequences;
+	private String resultCacheKey; // the tool key of the current job in the ResultCache, or null
 
     /**
      * @param toolId organism url path component
@@ -128,7 +130,39 @@ public abstract class GenotypeTool {
 	}
 
     public void analyze(String sequenceFile, String traceFile) throws IOException {
-    	analyze(new FileInputStream(sequenceFile), traceFile);
+    	if (AlignmentEngine.supportsBatch(AlignmentEngine.getConfiguredName(toolConfig))
+    			|| AlignmentEngine.supportsBatch(AlignmentEngine.getConfiguredName(null))
+    			|| BlastAnalysis.getBatchSize() > 0)
+    		jobSequences = readSequences(new File(sequenceFile));
+
+    	FastaReader reader = new FastaReader(new File(sequenceFile), SequenceAlignment.SEQUENCE_DNA);
+    	try {
+    		analyze(reader, traceFile);
+    	} finally {
+    		reader.close();
+    		jobSequences = null;
+    	}
+    }
+
+    /*
+     * Reads all sequences of a job, as they will be analyzed, so that they can
+     * be aligned and blasted in batches.
+     */
+    private static List<AbstractSequence> readSequences(File sequenceFile) throws IOException {
+    	List<AbstractSequence> result = new ArrayList<AbstractSequence>();
+    	FastaReader reader = new FastaReader(sequenceFile, SequenceAlignment.SEQUENCE_DNA);
+    	try {
+    		for (Sequence s = reader.next(); s != null; s = reader.next()) {
+    			s.removeGaps();
+    			result.add(s);
+    		}
+    	} catch (FileFormatException e) {
+    		return null; // reported while analyzing
+    	} finally {
+    		reader.close();
+    	}
+
+    	return result;
     }
 
 	/**
@@ -138,11 +172,15 @@ public abstract class GenotypeTool {
 	 * For each sequence in the input file, it invokes analyze(AbstractSequence)
 	 */
     public void analyze(InputStream sequenceFile, String traceFile) throws IOException {
+    	analyze(new FastaReader(sequenceFile, SequenceAlignment.SEQUENCE_DNA), traceFile);
+    }
+
+    private void analyze(FastaReader reader, String traceFile) throws IOException {
         startTracer(traceFile);
 
-        LineNumberReader reader
-            = new LineNumberReader
-                (new InputStreamReader(new BufferedInputStream(sequenceFile)));
+        ResultCache resultCache = ResultCache.getInstance();
+        String toolKey = resultCache != null && isResultCacheable() ? ResultCache.toolKey(toolConfig) : null;
+        resultCacheKey = toolKey;
 
         try {
         	formatDB();
@@ -153,27 +191,41 @@ public abstract class GenotypeTool {
 					break;
 				}
 				
-			    Sequence s = SequenceAlignment.readFastaFileSequence(reader, SequenceAlignment.SEQUENCE_DNA);
+			    Sequence s = reader.next();
 			    if (s != null) {
                     s.removeGaps();
 
 		            System.err.println("Starting analysis of: " + s.getName());
 
 		            long start = System.currentTimeMillis();
-			        try {
-                        analyze(s);
-			        } catch (AnalysisException e) {
-			            System.err.println(e.getMessage());
-			            e.printStackTrace();
-			            tracer.printError(e);
-			        }
+		            String key = toolKey != null ? resultCache.key(toolKey, s) : null;
+		            if (key != null && resultCache.replay(key, tracer)) {
+		            	System.err.println("Replayed cached results of: " + s.getName());
+		            } else {
+		            	boolean recording = key != null;
+		            	if (recording)
+		            		tracer.startRecording();
+		            	try {
+		            		analyze(s);
+		            		if (recording) {
+		            			recording = false;
+		            			resultCache.store(key, tracer.stopRecording(true), tracer.getRecordedResources());
+		            		}
+		            	} catch (AnalysisException e) {
+		            		System.err.println(e.getMessage());
+		            		e.printStackTrace();
+		            		tracer.printError(e);
+		            	} finally {
+		            		if (recording)
+		            			tracer.stopRecording(false);
+		            	}
+		            }
                     tracer.flush();
                     
 		            long elapsedTimeMillis = System.currentTimeMillis()-start;
 		            float elapsedTimeSec = elapsedTimeMillis/1000F;
 		            
 		            System.err.println("Completed analysis of: " + s.getName() + " (took " + elapsedTimeSec + "s)");
-			        SequenceAlign.forgetAll();
 			    } else
 			        break;
 			}
@@ -186,6 +238,7 @@ public abstract class GenotypeTool {
 			e1.printStackTrace();
 			tracer.printError(e1);
 		} finally {
+			resultCacheKey = null;
 			stopTracer();
 		}
     }
@@ -312,6 +365,16 @@ public abstract class GenotypeTool {
      */
     abstract public void analyze(AbstractSequence s) throws AnalysisException;
 
+    /**
+     * Whether the results of analyze(AbstractSequence) may be replayed from the
+     * {@link ResultCache}: this is only possible when the analysis writes all
+     * of its output to the tracer. A tool that also writes other files (for
+     * example input for other tools) should return false.
+     */
+    protected boolean isResultCacheable() {
+    	return true;
+    }
+
     /**
      * Abstract function that provides a self-check analysis.
      */
@@ -349,6 +412,58 @@ public abstract class GenotypeTool {
             return tracer;
     }
 
+    /**
+     * @return the cache of profile alignments of this tool, which is bounded by
+     *   the configured alignment cache size (in residues).
+     */
+    public synchronized AlignmentCache getAlignmentCache() {
+    	if (alignmentCache == null) {
+    		Settings settings = Settings.getInstance();
+    		if (settings != null && settings.getConfig() != null)
+    			alignmentCache = new AlignmentCache(settings.getAlignmentCacheSize());
+    		else
+    			alignmentCache = new AlignmentCache();
+    	}
+
+    	return alignmentCache;
+    }
+
+    /**
+     * @return the alignment engine of this tool, see {@link AlignmentEngine}.
+     */
+    public synchronized AlignmentEngine getAlignmentEngine() {
+    	if (alignmentEngine == null)
+    		alignmentEngine = AlignmentEngine.create(AlignmentEngine.getConfiguredName(toolConfig));
+    	if (alignmentEngine.supportsBatch())
+    		alignmentEngine.setBatch(getJobSequences());
+
+    	return alignmentEngine;
+    }
+
+    /**
+     * @return the sequences of the current job, if they were read in advance,
+     *   or null.
+     */
+    protected List<AbstractSequence> getJobSequences() {
+    	if (parent != null)
+    		return parent.getJobSequences();
+    	else
+    		return jobSequences;
+    }
+
+    /**
+     * @return whether the results of a sequence of the current job will be
+     *   replayed from the {@link ResultCache}, so that it will not be analyzed.
+     */
+    protected boolean isResultCached(AbstractSequence s) {
+    	if (parent != null)
+    		return parent.isResultCached(s);
+
+    	ResultCache resultCache = ResultCache.getInstance();
+    	return resultCacheKey != null && resultCache != null
+    		&& resultCache.contains(resultCache.key(resultCacheKey, s));
+    }
+
     /**
      * @return Returns the parent genotype tool for a nested genotyping tool.
      */
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The alignment engine that computes alignments in-process, with the
+ * {@link PairwiseAligner} and the {@link ProfileAligner}.
+ *
+ * The profile of the alignment of analyses is kept with the analyses (see
+ * {@link AlignmentAnalyses#getProfileAligner(SequenceAlignment)}), so that it
+ * is computed only once. The profiles of a few other recently used alignments
+ * (such as those aligned without analyses) are kept by the engine.
+ */
+class JavaAlignmentEngine extends AlignmentEngine {
+	private static final int MAX_PROFILES = 16;
+
+	private Map<SequenceAlignment, ProfileAligner> profiles
+		= new LinkedHashMap<SequenceAlignment, ProfileAligner>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<SequenceAlignment, ProfileAligner> eldest) {
+				return size() > MAX_PROFILES;
+			}
+		};
+
+	@Override
+	public String getName() {
+		return JAVA;
+	}
+
+	@Override
+	public SequenceAlignment pairAlign(AbstractSequence s1, AbstractSequence s2, File workingDir,
+			double gapOpenPenalty, double gapExtensionPenalty) throws AlignmentException {
+		return new PairwiseAligner(gapOpenPenalty, gapExtensionPenalty).align(s1, s2);
+	}
+
+	@Override
+	public SequenceAlignment profileAlign(AbstractSequence sequence, SequenceAlignment alignment,
+			boolean trimAlignment, File workingDir) throws AlignmentException {
+		return getProfile(alignment).align(sequence, trimAlignment);
+	}
+
+	@Override
+	public SequenceAlignment profileAlign(AbstractSequence sequence, SequenceAlignment alignment,
+			AlignmentAnalyses owner, boolean trimAlignment, File workingDir) throws AlignmentException {
+		ProfileAligner profile = owner != null ? owner.getProfileAligner(alignment) : null;
+		if (profile == null)
+			profile = getProfile(alignment);
+
+		return profile.align(sequence, trimAlignment);
+	}
+
+	/*
+	 * SequenceAlignment does not override equals(), so profiles are looked up
+	 * by identity.
+	 */
+	private synchronized ProfileAligner getProfile(SequenceAlignment alignment) {
+		ProfileAligner result = profiles.get(alignment);
+		if (result == null) {
+			result = new ProfileAligner(alignment);
+			profiles.put(alignment, result);
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An in-memory k-mer index of nucleotide reference sequences, which assigns a
+ * sequence to the label (cluster) of the references with which it shares the
+ * most k-mers.
+ *
+ * The index holds the (canonical, so strand independent) minimizers of the
+ * references: of every window of W consecutive k-mers, the k-mer with the
+ * smallest hash. The same minimizers are taken from a query, so that a region
+ * that is shared with a reference yields the same minimizers. A minimizer that
+ * occurs in references with different labels is kept, but does not count for
+ * any label.
+ *
+ * The index is stored in two sorted primitive arrays (minimizers and values)
+ * that are searched with a binary search, so that a sequence is classified
+ * without any allocation per k-mer.
+ *
+ * A classification is only made when it is unambiguous: enough of the
+ * minimizers of the query must be found in references with the best label,
+ * and the second best label must have much less hits.
+ */
+public class KmerClassifier {
+	public static final int K = 15;
+	public static final int W = 8;
+
+	public static final float DEFAULT_MIN_COVERAGE = 0.3f;
+	public static final float DEFAULT_MAX_AMBIGUITY = 0.2f;
+	private static final int MIN_MINIMIZERS = 10;
+
+	private static final int KMER_MASK = (1 << (2 * K)) - 1;
+	private static final int SHARED = -1;
+	private static final byte[] CODES = new byte[128];
+
+	static {
+		Arrays.fill(CODES, (byte) -1);
+		CODES['A'] = CODES['a'] = 0;
+		CODES['C'] = CODES['c'] = 1;
+		CODES['G'] = CODES['g'] = 2;
+		CODES['T'] = CODES['t'] = 3;
+		CODES['U'] = CODES['u'] = 3;
+	}
+
+	/**
+	 * The classification of a sequence.
+	 */
+	public static class Classification {
+		private int label;
+		private int reference;
+		private float coverage;
+		private float identity;
+		private boolean reverseComplement;
+
+		/**
+		 * @return the assigned label.
+		 */
+		public int getLabel() {
+			return label;
+		}
+
+		/**
+		 * @return the index of the reference (with the assigned label) that
+		 *   shares the most minimizers with the sequence.
+		 */
+		public int getReference() {
+			return reference;
+		}
+
+		/**
+		 * @return the fraction of the minimizers of the sequence that were
+		 *   found in references with the assigned label.
+		 */
+		public float getCoverage() {
+			return coverage;
+		}
+
+		/**
+		 * @return the identity (0 - 1) that is estimated from the fraction
+		 *   of shared k-mers.
+		 */
+		public float getIdentity() {
+			return identity;
+		}
+
+		/**
+		 * @return whether the sequence matches the reverse complement strand
+		 *   of the references.
+		 */
+		public boolean isReverseComplement() {
+			return reverseComplement;
+		}
+	}
+
+	private int[] labels;
+	private int labelCount;
+	private float minCoverage;
+	private float maxAmbiguity;
+
+	/*
+	 * The sorted minimizers, and for each: the reference index * 2 + the
+	 * strand of the minimizer in the reference, or SHARED.
+	 */
+	private int[] minimizers;
+	private int[] values;
+
+	public KmerClassifier(List<AbstractSequence> references, int[] labels, int labelCount) {
+		this(references, labels, labelCount, DEFAULT_MIN_COVERAGE, DEFAULT_MAX_AMBIGUITY);
+	}
+
+	/**
+	 * @param labels the label (0 - labelCount) of every reference
+	 * @param minCoverage the minimum fraction of the minimizers of a sequence
+	 *   that must be found for the best label
+	 * @param maxAmbiguity the maximum number of hits of the second best label,
+	 *   relative to the number of hits of the best label
+	 */
+	public KmerClassifier(List<AbstractSequence> references, int[] labels, int labelCount,
+			float minCoverage, float maxAmbiguity) {
+		this.labels = labels;
+		this.labelCount = labelCount;
+		this.minCoverage = minCoverage;
+		this.maxAmbiguity = maxAmbiguity;
+
+		/*
+		 * Sort (minimizer, reference * 2 + strand) pairs, packed in a long.
+		 */
+		long[] entries = new long[0];
+		int count = 0;
+		for (int r = 0; r < references.size(); ++r) {
+			int[] m = minimizers(references.get(r));
+			if (count + m.length > entries.length) {
+				long[] grown = new long[Math.max(count + m.length, entries.length * 2)];
+				System.arraycopy(entries, 0, grown, 0, count);
+				entries = grown;
+			}
+			for (int i = 0; i < m.length; ++i)
+				entries[count++] = ((long) (m[i] >>> 1) << 32) | (r * 2 + (m[i] & 1));
+		}
+		Arrays.sort(entries, 0, count);
+
+		minimizers = new int[count];
+		values = new int[count];
+		int n = 0;
+		for (int i = 0; i < count; ++i) {
+			int minimizer = (int) (entries[i] >>> 32);
+			int value = (int) entries[i];
+			if (n > 0 && minimizers[n - 1] == minimizer) {
+				if (values[n - 1] != SHARED && labels[values[n - 1] >> 1] != labels[value >> 1])
+					values[n - 1] = SHARED;
+			} else {
+				minimizers[n] = minimizer;
+				values[n] = value;
+				++n;
+			}
+		}
+
+		minimizers = copy(minimizers, n);
+		values = copy(values, n);
+	}
+
+	/**
+	 * @return the number of distinct minimizers in the index.
+	 */
+	public int size() {
+		return minimizers.length;
+	}
+
+	/**
+	 * @return the classification of the sequence, or null if it cannot be
+	 *   classified unambiguously.
+	 */
+	public Classification classify(AbstractSequence sequence) {
+		int[] m = minimizers(sequence);
+		if (m.length < MIN_MINIMIZERS)
+			return null;
+
+		int[] labelHits = new int[labelCount];
+		int[] referenceHits = new int[labels.length];
+		int hits = 0, forward = 0, reverse = 0;
+
+		for (int i = 0; i < m.length; ++i) {
+			int j = Arrays.binarySearch(minimizers, m[i] >>> 1);
+			if (j < 0)
+				continue;
+
+			++hits;
+			int value = values[j];
+			if (value == SHARED)
+				continue;
+
+			++labelHits[labels[value >> 1]];
+			++referenceHits[value >> 1];
+			if ((value & 1) == (m[i] & 1))
+				++forward;
+			else
+				++reverse;
+		}
+
+		int best = -1, second = -1;
+		for (int l = 0; l < labelCount; ++l) {
+			if (best == -1 || labelHits[l] > labelHits[best]) {
+				second = best;
+				best = l;
+			} else if (second == -1 || labelHits[l] > labelHits[second])
+				second = l;
+		}
+
+		if (best == -1 || labelHits[best] < minCoverage * m.length)
+			return null;
+
+		if (second != -1 && labelHits[second] > maxAmbiguity * labelHits[best])
+			return null;
+
+		Classification result = new Classification();
+		result.label = best;
+		result.reference = -1;
+		for (int r = 0; r < labels.length; ++r)
+			if (labels[r] == best && (result.reference == -1 || referenceHits[r] > referenceHits[result.reference]))
+				result.reference = r;
+		result.coverage = (float) labelHits[best] / m.length;
+		result.identity = (float) Math.pow((double) hits / m.length, 1.0 / K);
+		result.reverseComplement = reverse > forward;
+
+		return result;
+	}
+
+	/*
+	 * Returns the minimizers of a sequence, each as minimizer * 2 + strand
+	 * (1 if the canonical k-mer is the reverse complement). Gaps are ignored,
+	 * other non-ACGT symbols interrupt the k-mers.
+	 */
+	static int[] minimizers(AbstractSequence sequence) {
+		final int length = sequence.getLength();
+		byte[] buf = new byte[Math.min(length, 4096)];
+
+		int[] result = new int[length / W + 1];
+		int count = 0;
+
+		int[] window = new int[W]; // the last W canonical k-mers * 2 + strand
+		int[] hashes = new int[W];
+		int forward = 0, reverse = 0, valid = 0, lastMinimizer = -1;
+		long kmers = 0; // the number of k-mers of the current run
+
+		for (int i = 0; i < length; i += buf.length) {
+			final int n = Math.min(buf.length, length - i);
+			sequence.getBytes(i, i + n, buf, 0);
+
+			for (int k = 0; k < n; ++k) {
+				byte c = buf[k];
+				if (c == '-')
+					continue;
+
+				int code = c >= 0 ? CODES[c] : -1;
+				if (code < 0) {
+					valid = 0;
+					kmers = 0;
+					lastMinimizer = -1;
+					continue;
+				}
+
+				forward = ((forward << 2) | code) & KMER_MASK;
+				reverse = (reverse >>> 2) | ((3 - code) << (2 * (K - 1)));
+				if (++valid < K)
+					continue;
+
+				int kmer = forward <= reverse ? forward * 2 : reverse * 2 + 1;
+				int slot = (int) (kmers % W);
+				window[slot] = kmer;
+				hashes[slot] = hash(kmer >>> 1);
+				++kmers;
+
+				if (kmers < W)
+					continue;
+
+				int min = 0;
+				for (int w = 1; w < W; ++w)
+					if (hashes[w] < hashes[min])
+						min = w;
+
+				/*
+				 * Identify a minimizer by its position in the run, so that
+				 * it is added once for all windows that contain it.
+				 */
+				int position = (int) (kmers - 1 - ((slot - min + W) % W));
+				if (position != lastMinimizer) {
+					if (count == result.length)
+						result = copy(result, count * 2 + 1);
+					result[count++] = window[min];
+					lastMinimizer = position;
+				}
+			}
+		}
+
+		return copy(result, count);
+	}
+
+	private static int[] copy(int[] a, int length) {
+		int[] result = new int[length];
+		System.arraycopy(a, 0, result, 0, Math.min(a.length, length));
+		return result;
+	}
+
+	private static int hash(int kmer) {
+		int h = kmer * 0x9E3779B1;
+		return (h ^ (h >>> 15)) & Integer.MAX_VALUE;
+	}
+}
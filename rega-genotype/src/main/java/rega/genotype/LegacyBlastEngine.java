@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.io.File;
+
+/**
+ * The blast engine that uses the legacy NCBI formatdb and blastall programs
+ * (see {@link BlastAnalysis#formatDbCommand} and
+ * {@link BlastAnalysis#blastCommand}).
+ */
+class LegacyBlastEngine extends BlastEngine {
+	@Override
+	public String getName() {
+		return BLASTALL;
+	}
+
+	@Override
+	public String formatDbCommand(File db, boolean aa) {
+		return getBlastPath() + BlastAnalysis.formatDbCommand + " " + (aa ? "" : "-p F")
+			+ " -o T -i " + db.getAbsolutePath();
+	}
+
+	@Override
+	public String blastCommand(File db, boolean aa, String options) {
+		int threads = getThreads();
+		return getBlastPath() + BlastAnalysis.blastCommand + programOption(aa) + options
+			+ (threads > 1 ? " -a " + threads : "")
+			+ " -m 8 -d " + db.getAbsolutePath();
+	}
+
+	@Override
+	public String detailsCommand(File db, boolean aa, String options) {
+		return getBlastPath() + BlastAnalysis.blastCommand + programOption(aa) + options
+			+ " -T -d " + db.getAbsolutePath();
+	}
+
+	private static String programOption(boolean aa) {
+		return aa ? " -p blastx " : " -p blastn ";
+	}
+}
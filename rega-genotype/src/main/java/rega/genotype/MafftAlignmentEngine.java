@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import rega.genotype.singletons.Settings;
+import rega.genotype.utils.ExternalProcess;
+import rega.genotype.utils.ScratchDir;
+
+/**
+ * The alignment engine that adds sequences to a reference alignment with
+ * mafft --add --keeplength.
+ *
+ * The reference alignment is not changed: residues of a sequence that do not
+ * align with the reference (insertions) are removed. When trimming, only the
+ * columns that are covered by the sequence are kept.
+ *
+ * When a batch (the sequences of a job, in the order in which they are
+ * analyzed) is set, a profile alignment of one of its sequences also aligns
+ * some of the next sequences of the batch in the same (multithreaded) mafft
+ * call, and their later alignments against the same alignment use the result.
+ * Since not every sequence reaches every alignment of a tool, the number of
+ * sequences that is added depends on how many of the sequences so far were
+ * aligned against the alignment: all of them for an alignment that is used
+ * for every sequence (which then takes a logarithmic number of mafft calls),
+ * and none for an alignment that is used for few sequences.
+ *
+ * Pairwise alignments are computed with the in-process {@link PairwiseAligner},
+ * since mafft does not report an alignment score.
+ */
+class MafftAlignmentEngine extends AlignmentEngine {
+	private static final int MAX_BATCH_ALIGNMENTS = 8;
+
+	private List<AbstractSequence> batch;
+	private Map<String, Integer> batchIndexes; // the index in the batch of every sequence
+
+	/*
+	 * The batch sequences that were aligned against an alignment.
+	 */
+	private static class BatchAlignment {
+		Map<String, String> rows = new HashMap<String, String>();
+		Set<String> requested = new HashSet<String>();
+	}
+
+	/*
+	 * For the most recently used alignments (by identity): the aligned rows of
+	 * the batch sequences.
+	 */
+	private Map<SequenceAlignment, BatchAlignment> batchAlignments
+		= new LinkedHashMap<SequenceAlignment, BatchAlignment>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<SequenceAlignment, BatchAlignment> eldest) {
+				return size() > MAX_BATCH_ALIGNMENTS;
+			}
+		};
+
+	@Override
+	public String getName() {
+		return MAFFT;
+	}
+
+	@Override
+	public synchronized void setBatch(List<AbstractSequence> sequences) {
+		if (sequences == batch)
+			return;
+
+		batch = sequences;
+		batchAlignments.clear();
+		if (sequences == null)
+			batchIndexes = null;
+		else {
+			batchIndexes = new HashMap<String, Integer>();
+			for (int i = sequences.size() - 1; i >= 0; --i)
+				batchIndexes.put(key(sequences.get(i)), i);
+		}
+	}
+
+	@Override
+	public SequenceAlignment pairAlign(AbstractSequence s1, AbstractSequence s2, File workingDir,
+			double gapOpenPenalty, double gapExtensionPenalty) throws AlignmentException {
+		return new PairwiseAligner(gapOpenPenalty, gapExtensionPenalty).align(s1, s2);
+	}
+
+	@Override
+	public SequenceAlignment profileAlign(AbstractSequence sequence, SequenceAlignment alignment,
+			boolean trimAlignment, File workingDir) throws AlignmentException {
+		String row = null;
+
+		synchronized (this) {
+			Integer index = batchIndexes != null ? batchIndexes.get(key(sequence)) : null;
+			if (index != null)
+				row = batchAlign(index, alignment);
+		}
+
+		if (row == null)
+			row = addSequences(Collections.singletonList(sequence), alignment).get(0);
+
+		return toAlignment(sequence, row, alignment, trimAlignment);
+	}
+
+	@Override
+	public List<SequenceAlignment> profileAlign(List<AbstractSequence> sequences, SequenceAlignment alignment,
+			boolean trimAlignment, File workingDir) throws AlignmentException {
+		List<String> rows = addSequences(sequences, alignment);
+
+		List<SequenceAlignment> result = new ArrayList<SequenceAlignment>();
+		for (int i = 0; i < sequences.size(); ++i)
+			result.add(toAlignment(sequences.get(i), rows.get(i), alignment, trimAlignment));
+
+		return result;
+	}
+
+	/*
+	 * Returns the row of the batch sequence with the given index, aligning it
+	 * together with some of the next batch sequences if it was not yet
+	 * aligned (see batchSize()).
+	 */
+	private String batchAlign(int index, SequenceAlignment alignment) throws AlignmentException {
+		BatchAlignment b = batchAlignments.get(alignment);
+		if (b == null) {
+			b = new BatchAlignment();
+			batchAlignments.put(alignment, b);
+		}
+
+		String key = key(batch.get(index));
+		b.requested.add(key);
+
+		String row = b.rows.get(key);
+		if (row != null)
+			return row;
+
+		int size = batchSize(b.requested.size(), index);
+
+		List<AbstractSequence> queries = new ArrayList<AbstractSequence>();
+		List<String> keys = new ArrayList<String>();
+		Set<String> added = new HashSet<String>();
+		for (int i = index; i < batch.size() && queries.size() < size; ++i) {
+			String k = key(batch.get(i));
+			if (!b.rows.containsKey(k) && added.add(k)) {
+				queries.add(batch.get(i));
+				keys.add(k);
+			}
+		}
+
+		List<String> aligned = addSequences(queries, alignment);
+		for (int i = 0; i < queries.size(); ++i)
+			b.rows.put(keys.get(i), aligned.get(i));
+
+		return aligned.get(0);
+	}
+
+	/*
+	 * The number of batch sequences to align at once, for the sequence with
+	 * the given index, when it is the requested'th batch sequence that is
+	 * aligned against an alignment: requested * requested / (index + 1). This
+	 * is index + 1 for an alignment that every sequence reaches, and 1 for an
+	 * alignment that few sequences reach.
+	 */
+	static int batchSize(int requested, int index) {
+		return (int) Math.max(1, ((long) requested * requested + index) / (index + 1));
+	}
+
+	private static String key(AbstractSequence sequence) {
+		return sequence.getName() + "\n" + sequence.getResidues();
+	}
+
+	/*
+	 * The alignment of the reference sequences followed by the query, of which
+	 * row is the aligned residues.
+	 */
+	private static SequenceAlignment toAlignment(AbstractSequence sequence, String row,
+			SequenceAlignment alignment, boolean trimAlignment) {
+		int begin = 0, end = row.length();
+		if (trimAlignment) {
+			Sequence query = new Sequence(sequence.getName(), false, "", row);
+			if (query.lastNonGapPosition() >= 0) {
+				begin = query.firstNonGapPosition();
+				end = query.lastNonGapPosition() + 1;
+			}
+		}
+
+		List<AbstractSequence> sequences = new ArrayList<AbstractSequence>();
+		char[] residues = new char[end - begin];
+		for (AbstractSequence s : alignment.getSequences()) {
+			s.getChars(begin, end, residues, 0);
+			sequences.add(new Sequence(s.getName(), s.isNameCapped(), "", new String(residues)));
+		}
+		sequences.add(new Sequence(sequence.getName(), sequence.isNameCapped(), "", row.substring(begin, end)));
+
+		return new SequenceAlignment(sequences, SequenceAlignment.SEQUENCE_ANY);
+	}
+
+	/*
+	 * Runs mafft to add the sequences to the alignment, and returns the
+	 * aligned rows of the sequences.
+	 */
+	private List<String> addSequences(List<AbstractSequence> queries, SequenceAlignment alignment)
+			throws AlignmentException {
+		String mafftPath = Settings.getInstance().getMafftCmd();
+
+		ScratchDir scratch = null;
+		try {
+			scratch = new ScratchDir("mafft");
+			File f = scratch.getFile("profile.fasta");
+			File f2 = scratch.getFile("query.fasta");
+
+			FileOutputStream fout = new FileOutputStream(f);
+			alignment.writeFastaOutput(fout);
+			fout.close();
+
+			FileOutputStream fout2 = new FileOutputStream(f2);
+			new SequenceAlignment(queries, SequenceAlignment.SEQUENCE_ANY).writeFastaOutput(fout2);
+			fout2.close();
+
+			String cmd = mafftPath + " --quiet --preservecase"
+				+ " --thread " + Runtime.getRuntime().availableProcessors()
+				+ " --keeplength --add " + f2.getAbsolutePath()
+				+ " " + f.getAbsolutePath();
+			System.err.println(cmd);
+			ExternalProcess p = new ExternalProcess(cmd, scratch.getDir());
+			p.closeInput();
+
+			SequenceAlignment result
+				= new SequenceAlignment(new BufferedInputStream(p.getOutput()),
+										SequenceAlignment.FILETYPE_FASTA,
+										SequenceAlignment.SEQUENCE_ANY);
+
+			int exitResult = p.waitFor();
+
+			if (exitResult != 0)
+				throw new AlignmentException("mafft exited with error: " + exitResult);
+
+			final int references = alignment.getSequences().size();
+			if (result.getSequences().size() != references + queries.size())
+				throw new AlignmentException("mafft did not write all sequences!");
+
+			List<String> rows = new ArrayList<String>();
+			for (int i = 0; i < queries.size(); ++i) {
+				AbstractSequence row = result.getSequences().get(references + i);
+				if (row.getLength() != alignment.getLength())
+					throw new AlignmentException("mafft did not keep the alignment length!");
+				rows.add(row.getSequence());
+			}
+
+			return rows;
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new AlignmentException("I/O error while doing mafft");
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			throw new AlignmentException(e.getMessage());
+		} catch (ParameterProblemException e) {
+			e.printStackTrace();
+			throw new AlignmentException(e.getMessage());
+		} catch (FileFormatException e) {
+			e.printStackTrace();
+			throw new AlignmentException("mafft did not write a proper FASTA file!");
+		} finally {
+			if (scratch != null)
+				scratch.delete();
+		}
+	}
+}
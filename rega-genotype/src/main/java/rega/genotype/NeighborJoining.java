@@ -0,0 +1,497 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A distance based phylogeny engine that runs in the JVM: neighbor-joining
+ * on K2P, F84 or TN93 distances, with a nonparametric bootstrap.
+ *
+ * Only the columns of the alignment without gaps or ambiguous nucleotides
+ * are used (as with "exclude gapped" in paup). Identical columns are
+ * collapsed into site patterns, and for every pair of taxa the patterns in
+ * which they differ are kept, so that the distances of a bootstrap replicate
+ * are computed from the pattern weights of the replicate only.
+ *
+ * Groups of taxa can be constrained to be monophyletic, as with a paup
+ * backbone constraint: taxa that are not in a group (the query) may be
+ * placed anywhere, also inside a group. Neighbor-joining then only joins
+ * two nodes if the constrained taxa of the joined node are either a part of
+ * a single group, or a union of complete groups.
+ *
+ * Negative branch lengths are set to 0.
+ */
+public class NeighborJoining {
+	public static final int K2P = 0;
+	public static final int F84 = 1;
+	public static final int TN93 = 2;
+
+	private static final String[] MODELS = { "K2P", "F84", "TN93" };
+	private static final double MAX_DISTANCE = 10;
+
+	// the classes of a difference: A <-> G, C <-> T and transversions
+	private static final int P1 = 0;
+	private static final int P2 = 1;
+	private static final int Q = 2;
+
+	private static final byte[] CODES = new byte[128];
+
+	static {
+		Arrays.fill(CODES, (byte) -1);
+		CODES['A'] = CODES['a'] = 0;
+		CODES['C'] = CODES['c'] = 1;
+		CODES['G'] = CODES['g'] = 2;
+		CODES['T'] = CODES['t'] = 3;
+		CODES['U'] = CODES['u'] = 3;
+	}
+
+	private int taxa;
+	private int model;
+	private String[] names;
+
+	private int columns;
+	private int[] columnPatterns;  // the pattern of every used column
+	private int[] patternCounts;   // the number of columns of every pattern
+	private int[] composition;     // the nucleotides (4) of every pattern
+	private byte[][] patternColumns;
+	private int[][] differences;   // for every pair: pattern * 4 + class
+
+	private int[] groups;          // the constraint group of every taxon, or -1
+	private int[] groupSizes;
+
+	/**
+	 * @param alignment a nucleotide alignment
+	 * @param model the distance model: K2P, F84 or TN93
+	 * @param constraints the groups of taxa (indexes in the alignment) that
+	 *   must be monophyletic, or null
+	 */
+	public NeighborJoining(SequenceAlignment alignment, int model, int[][] constraints) throws ApplicationException {
+		if (alignment.getSequenceType() == SequenceAlignment.SEQUENCE_AA)
+			throw new ApplicationException("Neighbor-joining: only nucleotide alignments are supported");
+
+		List<AbstractSequence> sequences = alignment.getSequences();
+		this.taxa = sequences.size();
+		this.model = model;
+		this.names = new String[taxa];
+		if (taxa < 3)
+			throw new ApplicationException("Neighbor-joining: need at least 3 sequences");
+
+		byte[][] residues = new byte[taxa][];
+		int length = alignment.getLength();
+		for (int i = 0; i < taxa; ++i) {
+			AbstractSequence s = sequences.get(i);
+			names[i] = s.getName();
+			residues[i] = new byte[length];
+			s.getBytes(0, Math.min(length, s.getLength()), residues[i], 0);
+		}
+
+		collectPatterns(residues, length);
+		collectDifferences();
+
+		groups = new int[taxa];
+		Arrays.fill(groups, -1);
+		groupSizes = new int[constraints == null ? 0 : constraints.length];
+		for (int g = 0; g < groupSizes.length; ++g)
+			for (int i = 0; i < constraints[g].length; ++i) {
+				int taxon = constraints[g][i];
+				if (taxon >= 0 && taxon < taxa && groups[taxon] == -1) {
+					groups[taxon] = g;
+					++groupSizes[g];
+				}
+			}
+	}
+
+	/**
+	 * @return the model with the given name (K2P, F84 or TN93), or -1.
+	 */
+	public static int parseModel(String name) {
+		for (int i = 0; i < MODELS.length; ++i)
+			if (MODELS[i].equalsIgnoreCase(name))
+				return i;
+		return -1;
+	}
+
+	/**
+	 * @return the name of a model.
+	 */
+	public static String getModelName(int model) {
+		return MODELS[model];
+	}
+
+	public int getTaxa() {
+		return taxa;
+	}
+
+	/**
+	 * @return the number of columns that are used.
+	 */
+	public int getColumns() {
+		return columns;
+	}
+
+	/**
+	 * @return the neighbor-joining tree of the alignment, in Newick format.
+	 */
+	public String getTree() {
+		String[] labels = new String[taxa];
+		for (int i = 0; i < taxa; ++i)
+			labels[i] = newickName(names[i]);
+
+		return join(distances(patternCounts), null, labels);
+	}
+
+	/**
+	 * Counts the bipartitions of the neighbor-joining trees of bootstrap
+	 * replicates of the alignment.
+	 *
+	 * @param replicates the number of replicates
+	 * @param workers the number of threads that compute the replicates
+	 * @param seed the seed of the random resampling
+	 * @return the bipartitions, with their support: the percentage of the
+	 *   replicates in which they were found.
+	 */
+	public BipartitionTable bootstrap(int replicates, int workers, long seed) throws ApplicationException {
+		workers = Math.max(1, Math.min(workers, replicates));
+
+		BipartitionTable result;
+		if (workers == 1)
+			result = bootstrap(replicates, new Random(seed));
+		else {
+			ExecutorService pool = Executors.newFixedThreadPool(workers);
+			try {
+				List<Future<BipartitionTable>> parts = new ArrayList<Future<BipartitionTable>>();
+				for (int w = 0; w < workers; ++w) {
+					final int n = replicates / workers + (w < replicates % workers ? 1 : 0);
+					final long s = seed + w;
+					parts.add(pool.submit(new Callable<BipartitionTable>() {
+						public BipartitionTable call() {
+							return bootstrap(n, new Random(s));
+						}
+					}));
+				}
+
+				result = parts.get(0).get();
+				for (int w = 1; w < workers; ++w)
+					result.merge(parts.get(w).get());
+			} catch (InterruptedException e) {
+				throw new ApplicationException("Interrupted while bootstrapping");
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+
+		result.scale(100f / replicates);
+		return result;
+	}
+
+	private BipartitionTable bootstrap(int replicates, Random random) {
+		BipartitionTable result = new BipartitionTable(taxa);
+		int[] weights = new int[patternCounts.length];
+
+		for (int r = 0; r < replicates; ++r) {
+			Arrays.fill(weights, 0);
+			for (int c = 0; c < columns; ++c)
+				++weights[columnPatterns[random.nextInt(columns)]];
+
+			join(distances(weights), result, null);
+		}
+
+		return result;
+	}
+
+	/*
+	 * Collapses the columns without gaps or ambiguities into patterns.
+	 */
+	private void collectPatterns(byte[][] residues, int length) throws ApplicationException {
+		Map<String, Integer> patterns = new HashMap<String, Integer>();
+		List<Integer> counts = new ArrayList<Integer>();
+		columnPatterns = new int[length];
+		columns = 0;
+
+		char[] column = new char[taxa];
+		for (int c = 0; c < length; ++c) {
+			boolean complete = true;
+			for (int i = 0; i < taxa && complete; ++i) {
+				byte b = residues[i][c];
+				int code = b >= 0 ? CODES[b] : -1;
+				if (code < 0)
+					complete = false;
+				else
+					column[i] = (char) ('0' + code);
+			}
+			if (!complete)
+				continue;
+
+			String key = new String(column);
+			Integer p = patterns.get(key);
+			if (p == null) {
+				p = counts.size();
+				patterns.put(key, p);
+				counts.add(0);
+			}
+			counts.set(p, counts.get(p) + 1);
+			columnPatterns[columns++] = p;
+		}
+
+		if (columns == 0)
+			throw new ApplicationException("Neighbor-joining: no columns without gaps");
+
+		patternCounts = new int[counts.size()];
+		composition = new int[counts.size() * 4];
+		byte[][] patternColumns = new byte[counts.size()][];
+		for (Map.Entry<String, Integer> e : patterns.entrySet()) {
+			int p = e.getValue();
+			patternCounts[p] = counts.get(p);
+			patternColumns[p] = new byte[taxa];
+			for (int i = 0; i < taxa; ++i) {
+				int code = e.getKey().charAt(i) - '0';
+				patternColumns[p][i] = (byte) code;
+				++composition[p * 4 + code];
+			}
+		}
+
+		this.patternColumns = patternColumns;
+	}
+
+	private void collectDifferences() {
+		differences = new int[taxa * (taxa - 1) / 2][];
+		int[] counts = new int[differences.length];
+		for (int p = 0; p < patternColumns.length; ++p) {
+			byte[] column = patternColumns[p];
+			for (int i = 0, pair = 0; i < taxa; ++i)
+				for (int j = i + 1; j < taxa; ++j, ++pair)
+					if (column[i] != column[j])
+						++counts[pair];
+		}
+
+		for (int pair = 0; pair < differences.length; ++pair)
+			differences[pair] = new int[counts[pair]];
+		Arrays.fill(counts, 0);
+
+		for (int p = 0; p < patternColumns.length; ++p) {
+			byte[] column = patternColumns[p];
+			for (int i = 0, pair = 0; i < taxa; ++i)
+				for (int j = i + 1; j < taxa; ++j, ++pair)
+					if (column[i] != column[j]) {
+						int a = column[i], b = column[j];
+						int c;
+						if ((a == 0 && b == 2) || (a == 2 && b == 0))
+							c = P1;
+						else if ((a == 1 && b == 3) || (a == 3 && b == 1))
+							c = P2;
+						else
+							c = Q;
+						differences[pair][counts[pair]++] = p * 4 + c;
+					}
+		}
+
+		patternColumns = null;
+	}
+
+	/*
+	 * Returns the distance matrix for the given pattern weights.
+	 */
+	private double[][] distances(int[] weights) {
+		double total = 0;
+		double[] freqs = new double[4];
+		for (int p = 0; p < weights.length; ++p)
+			if (weights[p] != 0) {
+				total += weights[p];
+				for (int b = 0; b < 4; ++b)
+					freqs[b] += (double) weights[p] * composition[p * 4 + b];
+			}
+		for (int b = 0; b < 4; ++b)
+			freqs[b] /= total * taxa;
+
+		double[][] result = new double[taxa][taxa];
+		double[] s = new double[3];
+		for (int i = 0, pair = 0; i < taxa; ++i)
+			for (int j = i + 1; j < taxa; ++j, ++pair) {
+				s[P1] = s[P2] = s[Q] = 0;
+				int[] d = differences[pair];
+				for (int k = 0; k < d.length; ++k)
+					s[d[k] & 3] += weights[d[k] >> 2];
+
+				result[i][j] = result[j][i] = distance(s[P1] / total, s[P2] / total, s[Q] / total, freqs);
+			}
+
+		return result;
+	}
+
+	private double distance(double p1, double p2, double q, double[] freqs) {
+		double a = freqs[0], c = freqs[1], g = freqs[2], t = freqs[3];
+		double r = a + g, y = c + t;
+		boolean degenerate = a == 0 || c == 0 || g == 0 || t == 0;
+
+		double d;
+		if (model == K2P || degenerate) {
+			double l1 = 1 - 2 * (p1 + p2) - q, l2 = 1 - 2 * q;
+			if (l1 <= 0 || l2 <= 0)
+				return MAX_DISTANCE;
+			d = -0.5 * Math.log(l1) - 0.25 * Math.log(l2);
+		} else if (model == F84) {
+			double A = c * t / y + a * g / r, B = c * t + a * g, C = r * y;
+			double l1 = 1 - (p1 + p2) / (2 * A) - (A - B) * q / (2 * A * C), l2 = 1 - q / (2 * C);
+			if (l1 <= 0 || l2 <= 0)
+				return MAX_DISTANCE;
+			d = -2 * A * Math.log(l1) + 2 * (A - B - C) * Math.log(l2);
+		} else {
+			double l1 = 1 - r * p1 / (2 * a * g) - q / (2 * r);
+			double l2 = 1 - y * p2 / (2 * c * t) - q / (2 * y);
+			double l3 = 1 - q / (2 * r * y);
+			if (l1 <= 0 || l2 <= 0 || l3 <= 0)
+				return MAX_DISTANCE;
+			d = -2 * a * g / r * Math.log(l1) - 2 * c * t / y * Math.log(l2)
+				- 2 * (r * y - a * g * y / r - c * t * r / y) * Math.log(l3);
+		}
+
+		return Math.min(Math.max(d, 0), MAX_DISTANCE);
+	}
+
+	/*
+	 * Neighbor-joining on a distance matrix (which is modified), respecting
+	 * the constraint groups. Counts the (non-trivial) bipartitions of the
+	 * tree in splits, and returns the tree in Newick format if labels are
+	 * given.
+	 *
+	 * The constraint state of a node is: -1 (no constrained taxa), -2 (a
+	 * union of complete groups) or a group (with count taxa of the group).
+	 */
+	private String join(double[][] d, BipartitionTable splits, String[] labels) {
+		int[] alive = new int[taxa];
+		long[][] sets = new long[taxa][];
+		int[] group = new int[taxa];
+		int[] count = new int[taxa];
+		double[] r = new double[taxa];
+
+		for (int i = 0; i < taxa; ++i) {
+			alive[i] = i;
+			if (splits != null) {
+				sets[i] = splits.newSet();
+				BipartitionTable.add(sets[i], i);
+			}
+			group[i] = groups[i];
+			count[i] = groups[i] >= 0 ? 1 : 0;
+			for (int k = 0; k < taxa; ++k)
+				r[i] += d[i][k];
+		}
+
+		int m = taxa;
+		while (m > 3) {
+			int bestA = -1, bestB = -1;
+			double best = 0;
+			for (int a = 0; a < m; ++a) {
+				int i = alive[a];
+				for (int b = a + 1; b < m; ++b) {
+					int j = alive[b];
+					if (!canJoin(group[i], count[i], group[j], count[j]))
+						continue;
+
+					double q = (m - 2) * d[i][j] - r[i] - r[j];
+					if (bestA == -1 || q < best) {
+						best = q;
+						bestA = a;
+						bestB = b;
+					}
+				}
+			}
+
+			int i = alive[bestA], j = alive[bestB];
+			double dij = d[i][j];
+			double li = Math.max(0, 0.5 * dij + (r[i] - r[j]) / (2 * (m - 2)));
+			double lj = Math.max(0, dij - li);
+
+			r[i] = 0;
+			for (int c = 0; c < m; ++c) {
+				int k = alive[c];
+				if (k == i || k == j)
+					continue;
+
+				double dk = 0.5 * (d[i][k] + d[j][k] - dij);
+				r[k] += dk - d[i][k] - d[j][k];
+				d[i][k] = d[k][i] = dk;
+				r[i] += dk;
+			}
+
+			if (group[i] != group[j]) {
+				if (group[i] == -1) {
+					group[i] = group[j];
+					count[i] = count[j];
+				} else if (group[j] != -1)
+					group[i] = -2;
+			} else
+				count[i] += count[j];
+
+			if (labels != null)
+				labels[i] = "(" + labels[i] + ":" + format(li) + "," + labels[j] + ":" + format(lj) + ")";
+
+			if (splits != null) {
+				int size = 0;
+				for (int w = 0; w < sets[i].length; ++w) {
+					sets[i][w] |= sets[j][w];
+					size += Long.bitCount(sets[i][w]);
+				}
+				if (size >= 2 && size <= taxa - 2)
+					splits.put(sets[i], splits.get(sets[i]) + 1);
+			}
+
+			alive[bestB] = alive[--m];
+		}
+
+		if (labels == null)
+			return null;
+
+		int i = alive[0], j = alive[1], k = alive[2];
+		double li = Math.max(0, 0.5 * (d[i][j] + d[i][k] - d[j][k]));
+		double lj = Math.max(0, 0.5 * (d[i][j] + d[j][k] - d[i][k]));
+		double lk = Math.max(0, 0.5 * (d[i][k] + d[j][k] - d[i][j]));
+
+		return "(" + labels[i] + ":" + format(li) + "," + labels[j] + ":" + format(lj)
+			+ "," + labels[k] + ":" + format(lk) + ");";
+	}
+
+	/*
+	 * Whether two nodes can be joined without breaking a constraint group.
+	 */
+	private boolean canJoin(int groupI, int countI, int groupJ, int countJ) {
+		boolean incompleteI = groupI >= 0 && countI < groupSizes[groupI];
+		boolean incompleteJ = groupJ >= 0 && countJ < groupSizes[groupJ];
+
+		if (incompleteI)
+			return groupJ == -1 || groupJ == groupI;
+		else if (incompleteJ)
+			return groupI == -1;
+		else
+			return true;
+	}
+
+	private static String format(double length) {
+		return new DecimalFormat("0.########", new DecimalFormatSymbols(Locale.US)).format(length);
+	}
+
+	static String newickName(String name) {
+		if (name.matches("[A-Za-z0-9_.\\-]+"))
+			return name;
+		else
+			return "'" + name.replace("'", "''") + "'";
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes Nexus files for a fixed set of reference sequences together with one
+ * other sequence (usually the query), which becomes the first taxon.
+ *
+ * The taxa and the matrix rows of the reference sequences are encoded once,
+ * when the writer is created, so that writing a file only needs to encode the
+ * row of the query sequence. The output is identical to
+ * {@link SequenceAlignment#writeOutput(OutputStream, int)} for the alignment
+ * of the query followed by the references.
+ *
+ * The reference sequences must not be modified while the writer is used.
+ * Writers are looked up by a {@link Key}, which identifies the references by
+ * the rows they view rather than by their residues.
+ */
+class NexusWriter {
+	private List<AbstractSequence> references;
+	private List<String> names;
+	private int sequenceType;
+	private int length;
+
+	private Set<String> usedNames;
+	private byte[] taxa;
+	private byte[][] blocks;
+
+	NexusWriter(List<AbstractSequence> references, int sequenceType) throws IOException {
+		this.references = new ArrayList<AbstractSequence>(references);
+		this.names = new ArrayList<String>();
+		this.sequenceType = sequenceType;
+		this.length = references.isEmpty() ? 0 : references.get(0).getLength();
+
+		/*
+		 * All names that are compared against while naming the references: if
+		 * the query name is one of these, then the references would get
+		 * different names when the query is named first.
+		 */
+		this.usedNames = new HashSet<String>();
+
+		Set<String> nameSet = new HashSet<String>();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ResidueWriter writer = new ResidueWriter(bytes);
+		for (int i = 0; i < references.size(); ++i) {
+			AbstractSequence seq = references.get(i);
+
+			String name = SequenceAlignment.nexusName(seq, nameSet, SequenceAlignment.MAX_NEXUS_TAXUS_LENGTH);
+			String plain = SequenceAlignment.nexusName(seq, new HashSet<String>(), SequenceAlignment.MAX_NEXUS_TAXUS_LENGTH);
+			names.add(name);
+			nameSet.add(name);
+			usedNames.add(name);
+			usedNames.add(plain);
+			if (plain.startsWith("_"))
+				usedNames.add(plain.substring(1));
+
+			SequenceAlignment.writeNexusTaxus(writer, name, seq);
+
+			if (seq.getLength() != length)
+				length = -1;
+		}
+		writer.flush();
+		this.taxa = bytes.toByteArray();
+
+		if (length >= 0) {
+			this.blocks = new byte[(length + SequenceAlignment.NEXUS_BLOCK_LENGTH - 1) / SequenceAlignment.NEXUS_BLOCK_LENGTH][];
+			for (int b = 0; b < blocks.length; ++b) {
+				bytes.reset();
+				for (int i = 0; i < references.size(); ++i)
+					SequenceAlignment.writeNexusRow(writer, names.get(i), references.get(i),
+							b * SequenceAlignment.NEXUS_BLOCK_LENGTH);
+				writer.flush();
+				blocks[b] = bytes.toByteArray();
+			}
+		}
+	}
+
+	/**
+	 * Writes the Nexus file for the query followed by the reference sequences.
+	 */
+	void write(OutputStream out, AbstractSequence query) throws IOException {
+		String name = SequenceAlignment.nexusName(query, new HashSet<String>(), SequenceAlignment.MAX_NEXUS_TAXUS_LENGTH);
+
+		if (blocks == null || query.getLength() != length || usedNames.contains(name)) {
+			List<AbstractSequence> all = new ArrayList<AbstractSequence>();
+			all.add(query);
+			all.addAll(references);
+			new SequenceAlignment(all, sequenceType).writeNexusOutput(out);
+			return;
+		}
+
+		ResidueWriter writer = new ResidueWriter(out);
+		writer.write("#NEXUS\n\n");
+		SequenceAlignment.writeNexusTaxus(writer, name, query);
+		writer.write(taxa);
+
+		SequenceAlignment.writeNexusMatrixHeader(writer, references.size() + 1, length, sequenceType);
+
+		for (int b = 0; b < blocks.length; ++b) {
+			SequenceAlignment.writeNexusRow(writer, name, query, b * SequenceAlignment.NEXUS_BLOCK_LENGTH);
+			writer.write(blocks[b]);
+			writer.write('\n');
+		}
+
+		SequenceAlignment.writeNexusEnd(writer);
+		writer.flush();
+	}
+
+	/**
+	 * Identifies a list of reference sequences by the residues (identity) and
+	 * the window of the rows they view, and their names.
+	 *
+	 * The analysis alignment is selected again for every analysis, and a scan
+	 * analysis views its windows through new sub sequences, but the rows they
+	 * view are shared: those of the (cached) profile alignment. Since packed
+	 * residues are immutable, and a sequence gets new residues when it is
+	 * modified, equal keys mean equal references, without comparing residues.
+	 */
+	static class Key {
+		private int sequenceType;
+		private PackedResidues[] rows;
+		private int[] windows;
+		private String[] names;
+		private int hash;
+
+		private Key(int sequenceType, int size) {
+			this.sequenceType = sequenceType;
+			this.rows = new PackedResidues[size];
+			this.windows = new int[size * 2];
+			this.names = new String[size];
+		}
+
+		/**
+		 * @return the key for the given references, or null if a reference
+		 *   is not backed by packed residues (and thus cannot be identified).
+		 */
+		static Key valueOf(List<AbstractSequence> references, int sequenceType) {
+			Key result = new Key(sequenceType, references.size());
+			int hash = sequenceType;
+			for (int i = 0; i < references.size(); ++i) {
+				AbstractSequence seq = references.get(i);
+				int begin = 0;
+				AbstractSequence row = seq;
+				if (seq instanceof SubSequence) {
+					SubSequence sub = (SubSequence) seq;
+					row = sub.baseSequence();
+					begin = sub.beginIndex();
+				}
+				if (!(row instanceof Sequence))
+					return null;
+
+				result.rows[i] = ((Sequence) row).packedResidues();
+				result.windows[2 * i] = begin;
+				result.windows[2 * i + 1] = seq.getLength();
+				result.names[i] = seq.getName();
+				hash = hash * 31 + System.identityHashCode(result.rows[i]);
+				hash = hash * 31 + begin;
+			}
+			result.hash = hash;
+
+			return result;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+
+			Key other = (Key) o;
+			if (hash != other.hash || sequenceType != other.sequenceType
+					|| rows.length != other.rows.length)
+				return false;
+
+			for (int i = 0; i < rows.length; ++i)
+				if (rows[i] != other.rows[i])
+					return false;
+
+			return Arrays.equals(windows, other.windows) && Arrays.equals(names, other.names);
+		}
+	}
+}
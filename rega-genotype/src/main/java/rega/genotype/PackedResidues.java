@@ -0,0 +1,538 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+/**
+ * Compact, immutable storage for the residues of a sequence.
+ *
+ * Nucleotide sequences (IUPAC codes, all upper case or all lower case) are
+ * stored as 4-bit codes, two residues per byte. Any other sequence (amino acids,
+ * mixed case, unusual symbols) is stored as one byte per residue.
+ *
+ * In both cases a bitmap keeps track of the gap ('-') positions, so that gap
+ * queries do not need to decode the residues.
+ *
+ * The class implements CharSequence, which provides a char view for code that
+ * works on the textual representation.
+ *
+ * @author koen
+ */
+public final class PackedResidues implements CharSequence {
+	/*
+	 * The 4-bit nucleotide alphabet, gaps are not part of it since these are
+	 * kept in the gap bitmap.
+	 */
+	private static final char[] NUCLEOTIDES = "ACGTURYSWKMBDHVN".toCharArray();
+	private static final byte[] NUCLEOTIDE_CODES = new byte[128];
+
+	public static final char GAP = '-';
+
+	public static final PackedResidues EMPTY = new PackedResidues(0, true, false, new byte[0], new long[0]);
+
+	/*
+	 * Lookup tables for the transforms: the upper case and the (upper case)
+	 * complement of a residue, and the complement of a 4-bit nucleotide code.
+	 */
+	private static final char[] UPPER_CASE = new char[256];
+	private static final char[] COMPLEMENT = new char[256];
+	private static final byte[] CODE_COMPLEMENT = new byte[16];
+
+	static {
+		for (int i = 0; i < NUCLEOTIDE_CODES.length; ++i)
+			NUCLEOTIDE_CODES[i] = -1;
+
+		for (int i = 0; i < NUCLEOTIDES.length; ++i)
+			NUCLEOTIDE_CODES[NUCLEOTIDES[i]] = (byte) i;
+
+		for (int i = 0; i < UPPER_CASE.length; ++i) {
+			char u = Character.toUpperCase((char) i);
+			UPPER_CASE[i] = u < 256 ? u : (char) i;
+			COMPLEMENT[i] = UPPER_CASE[i];
+		}
+
+		String from = "ACGTMRWSYKBDHVN", to = "TGCAKYWSRMVHDBN";
+		for (int i = 0; i < from.length(); ++i) {
+			COMPLEMENT[from.charAt(i)] = to.charAt(i);
+			COMPLEMENT[Character.toLowerCase(from.charAt(i))] = to.charAt(i);
+		}
+
+		for (int i = 0; i < NUCLEOTIDES.length; ++i)
+			CODE_COMPLEMENT[i] = NUCLEOTIDE_CODES[COMPLEMENT[NUCLEOTIDES[i]]];
+	}
+
+	private final int length;
+	private final boolean packed;
+	private final boolean lowerCase;
+	private final byte[] data;
+	private final long[] gaps;
+	private int hash;
+
+	private PackedResidues(int length, boolean packed, boolean lowerCase, byte[] data, long[] gaps) {
+		this.length = length;
+		this.packed = packed;
+		this.lowerCase = lowerCase;
+		this.data = data;
+		this.gaps = gaps;
+	}
+
+	/**
+	 * Packs the given residues.
+	 */
+	public static PackedResidues valueOf(CharSequence s) {
+		if (s instanceof PackedResidues)
+			return (PackedResidues) s;
+
+		int length = s.length();
+		if (length == 0)
+			return EMPTY;
+
+		boolean upper = true, lower = true;
+		for (int i = 0; i < length && (upper || lower); ++i) {
+			char c = s.charAt(i);
+			if (c == GAP)
+				continue;
+			if (c >= 128 || NUCLEOTIDE_CODES[c] == -1)
+				upper = false;
+			char u = Character.toUpperCase(c);
+			if (c == u || u >= 128 || NUCLEOTIDE_CODES[u] == -1)
+				lower = false;
+		}
+
+		long[] gaps = new long[bitmapSize(length)];
+		byte[] data;
+		boolean packed = upper || lower;
+
+		if (packed) {
+			data = new byte[(length + 1) / 2];
+			for (int i = 0; i < length; ++i) {
+				char c = s.charAt(i);
+				if (c == GAP)
+					gaps[i >>> 6] |= 1L << i;
+				else
+					data[i >>> 1] |= NUCLEOTIDE_CODES[Character.toUpperCase(c)] << ((i & 1) << 2);
+			}
+		} else {
+			data = new byte[length];
+			for (int i = 0; i < length; ++i) {
+				char c = s.charAt(i);
+				if (c == GAP)
+					gaps[i >>> 6] |= 1L << i;
+				data[i] = (byte) c;
+			}
+		}
+
+		return new PackedResidues(length, packed, lower && !upper, data, gaps);
+	}
+
+	/**
+	 * Packs the given residues, which are ASCII bytes.
+	 */
+	public static PackedResidues valueOf(final byte[] residues, final int offset, final int length) {
+		return valueOf(new CharSequence() {
+			public int length() {
+				return length;
+			}
+
+			public char charAt(int index) {
+				return (char) (residues[offset + index] & 0xFF);
+			}
+
+			public CharSequence subSequence(int start, int end) {
+				if (start < 0 || end > length || start > end)
+					throw new IndexOutOfBoundsException("Range " + start + "-" + end + ", length " + length);
+
+				char[] result = new char[end - start];
+				for (int i = start; i < end; ++i)
+					result[i - start] = (char) (residues[offset + i] & 0xFF);
+				return new String(result);
+			}
+
+			public String toString() {
+				return subSequence(0, length).toString();
+			}
+		});
+	}
+
+	private static int bitmapSize(int length) {
+		return (length + 63) >>> 6;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public char charAt(int i) {
+		if (i < 0 || i >= length)
+			throw new IndexOutOfBoundsException("Index " + i + ", length " + length);
+
+		return decode(i);
+	}
+
+	private char decode(int i) {
+		if (isGap(i))
+			return GAP;
+		else if (packed) {
+			char c = NUCLEOTIDES[(data[i >>> 1] >>> ((i & 1) << 2)) & 0xF];
+			return lowerCase ? Character.toLowerCase(c) : c;
+		} else
+			return (char) (data[i] & 0xFF);
+	}
+
+	/**
+	 * @return whether the residue at position i is a gap
+	 */
+	public boolean isGap(int i) {
+		return (gaps[i >>> 6] & (1L << i)) != 0;
+	}
+
+	/**
+	 * Returns the gap bits for the positions [i, i + 64[, with bit k set if
+	 * position i + k is a gap. Positions beyond the end are not gaps.
+	 */
+	public long gapWord(int i) {
+		int w = i >>> 6, shift = i & 63;
+		if (w >= gaps.length)
+			return 0;
+
+		long result = gaps[w] >>> shift;
+		if (shift != 0 && w + 1 < gaps.length)
+			result |= gaps[w + 1] << (64 - shift);
+
+		return result;
+	}
+
+	/**
+	 * @return whether residues are stored using 4 bits per residue.
+	 */
+	public boolean isPacked() {
+		return packed;
+	}
+
+	/**
+	 * Copies the residues [srcBegin, srcEnd[ into dst, like String.getChars().
+	 */
+	public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+		checkRange(srcBegin, srcEnd);
+
+		for (int i = srcBegin; i < srcEnd; ++i)
+			dst[dstBegin++] = decode(i);
+	}
+
+	/**
+	 * Copies the residues [srcBegin, srcEnd[ as ASCII bytes into dst.
+	 */
+	public void getBytes(int srcBegin, int srcEnd, byte[] dst, int dstBegin) {
+		checkRange(srcBegin, srcEnd);
+
+		if (!packed)
+			System.arraycopy(data, srcBegin, dst, dstBegin, srcEnd - srcBegin);
+		else
+			for (int i = srcBegin; i < srcEnd; ++i)
+				dst[dstBegin++] = (byte) decode(i);
+	}
+
+	/**
+	 * @return the position of the first residue that is not a gap, or length()
+	 *   if the sequence only contains gaps.
+	 */
+	public int firstNonGap() {
+		for (int w = 0; w < gaps.length; ++w) {
+			long nonGaps = ~gaps[w];
+			if (nonGaps != 0) {
+				int result = (w << 6) + Long.numberOfTrailingZeros(nonGaps);
+				return Math.min(result, length);
+			}
+		}
+
+		return length;
+	}
+
+	/**
+	 * @return the position of the last residue that is not a gap, or -1
+	 *   if the sequence only contains gaps.
+	 */
+	public int lastNonGap() {
+		for (int w = gaps.length - 1; w >= 0; --w) {
+			long nonGaps = ~gaps[w];
+			if (w == gaps.length - 1 && (length & 63) != 0)
+				nonGaps &= (1L << (length & 63)) - 1;
+			if (nonGaps != 0)
+				return (w << 6) + 63 - Long.numberOfLeadingZeros(nonGaps);
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return the number of gaps.
+	 */
+	public int gapCount() {
+		int result = 0;
+		for (int w = 0; w < gaps.length; ++w)
+			result += Long.bitCount(gaps[w]);
+
+		return result;
+	}
+
+	/**
+	 * @return a copy of the residues in [begin, end[
+	 */
+	public PackedResidues copy(int begin, int end) {
+		checkRange(begin, end);
+
+		if (begin == 0 && end == length)
+			return this;
+
+		int newLength = end - begin;
+		if (newLength == 0)
+			return EMPTY;
+
+		byte[] newData = newData(newLength);
+		long[] newGaps = new long[bitmapSize(newLength)];
+		copyResidues(begin, end, newData, newGaps, 0);
+
+		return new PackedResidues(newLength, packed, lowerCase, newData, newGaps);
+	}
+
+	/**
+	 * @return a copy of these residues with [begin, end[ deleted.
+	 */
+	public PackedResidues delete(int begin, int end) {
+		checkRange(begin, end);
+
+		if (begin == end)
+			return this;
+
+		int newLength = length - (end - begin);
+		if (newLength == 0)
+			return EMPTY;
+
+		byte[] newData = newData(newLength);
+		long[] newGaps = new long[bitmapSize(newLength)];
+		int j = copyResidues(0, begin, newData, newGaps, 0);
+		copyResidues(end, length, newData, newGaps, j);
+
+		return new PackedResidues(newLength, packed, lowerCase, newData, newGaps);
+	}
+
+	/**
+	 * Returns these residues with all gaps removed.
+	 */
+	public PackedResidues removeGaps() {
+		int gapCount = gapCount();
+		if (gapCount == 0)
+			return this;
+
+		int newLength = length - gapCount;
+		if (newLength == 0)
+			return EMPTY;
+
+		byte[] newData = newData(newLength);
+		long[] newGaps = new long[bitmapSize(newLength)];
+
+		int j = 0;
+		for (int i = 0; i < length; ++i)
+			if (!isGap(i))
+				copyResidue(i, newData, newGaps, j++);
+
+		return new PackedResidues(newLength, packed, lowerCase, newData, newGaps);
+	}
+
+	/**
+	 * Returns a copy of these residues with all positions that are set in the
+	 * column mask deleted, in a single pass.
+	 *
+	 * @see ColumnGaps
+	 */
+	public PackedResidues deleteColumns(long[] mask) {
+		int deleted = 0;
+		for (int w = 0; w < mask.length && w < gaps.length; ++w) {
+			long m = mask[w];
+			if (w == gaps.length - 1 && (length & 63) != 0)
+				m &= (1L << (length & 63)) - 1;
+			deleted += Long.bitCount(m);
+		}
+
+		if (deleted == 0)
+			return this;
+
+		int newLength = length - deleted;
+		if (newLength == 0)
+			return EMPTY;
+
+		byte[] newData = newData(newLength);
+		long[] newGaps = new long[bitmapSize(newLength)];
+
+		int j = 0;
+		for (int i = 0; i < length; ++i)
+			if ((i >>> 6) >= mask.length || (mask[i >>> 6] & (1L << i)) == 0)
+				copyResidue(i, newData, newGaps, j++);
+
+		return new PackedResidues(newLength, packed, lowerCase, newData, newGaps);
+	}
+
+	/**
+	 * @return these residues in reverse order
+	 */
+	public PackedResidues reverse() {
+		return transform(true, false, false);
+	}
+
+	/**
+	 * @return the complement of these residues, in upper case
+	 */
+	public PackedResidues complement() {
+		return transform(false, true, true);
+	}
+
+	/**
+	 * @return the reverse complement of these residues, in upper case
+	 */
+	public PackedResidues reverseComplement() {
+		return transform(true, true, true);
+	}
+
+	/**
+	 * @return these residues in upper case
+	 */
+	public PackedResidues toUpperCase() {
+		if (packed && !lowerCase)
+			return this;
+		else
+			return transform(false, false, true);
+	}
+
+	/*
+	 * Transforms the residues in a single pass, using the lookup tables.
+	 */
+	private PackedResidues transform(boolean reverse, boolean complement, boolean upperCase) {
+		if (length == 0)
+			return this;
+
+		byte[] newData = new byte[data.length];
+		long[] newGaps = new long[gaps.length];
+
+		for (int i = 0; i < length; ++i) {
+			int j = reverse ? length - 1 - i : i;
+
+			if (isGap(i)) {
+				newGaps[j >>> 6] |= 1L << j;
+				if (!packed)
+					newData[j] = (byte) GAP;
+			} else if (packed) {
+				int code = (data[i >>> 1] >>> ((i & 1) << 2)) & 0xF;
+				if (complement)
+					code = CODE_COMPLEMENT[code];
+				newData[j >>> 1] |= code << ((j & 1) << 2);
+			} else {
+				int b = data[i] & 0xFF;
+				newData[j] = (byte) (complement ? COMPLEMENT[b] : (upperCase ? UPPER_CASE[b] : b));
+			}
+		}
+
+		return new PackedResidues(length, packed, lowerCase && !upperCase, newData, newGaps);
+	}
+
+	/**
+	 * @return the upper case complement of a residue
+	 */
+	public static char complement(char c) {
+		return c < 256 ? COMPLEMENT[c] : Character.toUpperCase(c);
+	}
+
+	/**
+	 * Reverse complements the residues [begin, end[ in place.
+	 */
+	public static void reverseComplement(char[] residues, int begin, int end) {
+		for (int i = begin, j = end - 1; i <= j; ++i, --j) {
+			char c = residues[i];
+			residues[i] = complement(residues[j]);
+			residues[j] = complement(c);
+		}
+	}
+
+	/**
+	 * Reverse complements the (ASCII) residues [begin, end[ in place.
+	 */
+	public static void reverseComplement(byte[] residues, int begin, int end) {
+		for (int i = begin, j = end - 1; i <= j; ++i, --j) {
+			byte b = residues[i];
+			residues[i] = (byte) COMPLEMENT[residues[j] & 0xFF];
+			residues[j] = (byte) COMPLEMENT[b & 0xFF];
+		}
+	}
+
+	private byte[] newData(int newLength) {
+		return new byte[packed ? (newLength + 1) / 2 : newLength];
+	}
+
+	private int copyResidues(int begin, int end, byte[] newData, long[] newGaps, int j) {
+		for (int i = begin; i < end; ++i)
+			copyResidue(i, newData, newGaps, j++);
+
+		return j;
+	}
+
+	private void copyResidue(int i, byte[] newData, long[] newGaps, int j) {
+		if (isGap(i))
+			newGaps[j >>> 6] |= 1L << j;
+
+		if (!packed)
+			newData[j] = data[i];
+		else if (!isGap(i))
+			newData[j >>> 1] |= ((data[i >>> 1] >>> ((i & 1) << 2)) & 0xF) << ((j & 1) << 2);
+	}
+
+	public CharSequence subSequence(int begin, int end) {
+		return copy(begin, end);
+	}
+
+	private void checkRange(int begin, int end) {
+		if (begin < 0 || end > length || begin > end)
+			throw new IndexOutOfBoundsException("Range [" + begin + ", " + end + "[, length " + length);
+	}
+
+	@Override
+	public String toString() {
+		char[] result = new char[length];
+		getChars(0, length, result, 0);
+		return new String(result);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+
+		if (!(o instanceof PackedResidues))
+			return false;
+
+		PackedResidues other = (PackedResidues) o;
+		if (other.length != length || other.hashCode() != hashCode())
+			return false;
+
+		for (int i = 0; i < length; ++i)
+			if (other.decode(i) != decode(i))
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Content based hash code, consistent with String.hashCode().
+	 */
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if (h == 0 && length > 0) {
+			for (int i = 0; i < length; ++i)
+				h = 31 * h + decode(i);
+			hash = h;
+		}
+
+		return h;
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An in-process pairwise aligner, which is used instead of clustalw to
+ * position a query sequence on a reference sequence.
+ *
+ * The alignment is an optimal alignment with affine gap penalties (Gotoh),
+ * computed in a band of diagonals around the diagonals that share k-mers.
+ * As in clustalw, gaps in the input sequences are ignored and end gaps are
+ * not penalized. A gap of length k costs gapOpen + k * gapExtension.
+ * Nucleotide sequences are scored with the IUB matrix (1.9 for compatible
+ * nucleotides, including ambiguity codes), protein sequences with BLOSUM62.
+ *
+ * This does not reproduce clustalw: clustalw scales the gap penalties with
+ * the matrix, the sequence lengths and their identity, uses residue specific
+ * gap penalties for proteins, and reports the score of its own progressive
+ * alignment. The gaps may therefore be placed differently, and the alignment
+ * score (the score of this alignment, in matrix units) is not comparable with
+ * the "Alignment Score" of clustalw. It is only used when configured as the
+ * pairAligner.
+ *
+ * The dynamic programming buffers are reused by each thread.
+ */
+public class PairwiseAligner {
+	public static final double DEFAULT_GAP_OPEN = 15.0;
+	public static final double DEFAULT_GAP_EXTENSION = 6.66;
+
+	private int gapOpen;
+	private int gapExtension;
+
+	public PairwiseAligner() {
+		this(DEFAULT_GAP_OPEN, DEFAULT_GAP_EXTENSION);
+	}
+
+	public PairwiseAligner(double gapOpenPenalty, double gapExtensionPenalty) {
+		this.gapOpen = (int) Math.round(gapOpenPenalty * AffineAligner.SCALE);
+		this.gapExtension = (int) Math.round(gapExtensionPenalty * AffineAligner.SCALE);
+	}
+
+	/**
+	 * Aligns two sequences.
+	 *
+	 * @return the alignment of s1 and s2 (in that order), with the alignment
+	 *   score set.
+	 */
+	public SequenceAlignment align(AbstractSequence s1, AbstractSequence s2) throws AlignmentException {
+		AffineAligner.Buffers buf = AffineAligner.buffers();
+
+		if (buf.residues1.length < s1.getLength())
+			buf.residues1 = new char[s1.getLength()];
+		final int n = AffineAligner.ungapped(s1, buf.residues1);
+		if (buf.residues2.length < s2.getLength())
+			buf.residues2 = new char[s2.getLength()];
+		final int m = AffineAligner.ungapped(s2, buf.residues2);
+
+		final boolean dna = AffineAligner.isNucleotide(AffineAligner.countNucleotides(buf.residues1, n)
+				+ AffineAligner.countNucleotides(buf.residues2, m), n + m);
+		buf.codes1 = AffineAligner.encode(buf.residues1, n, dna, buf.codes1);
+		buf.codes2 = AffineAligner.encode(buf.residues2, m, dna, buf.codes2);
+
+		final int[][] matrix = dna ? AffineAligner.IUB : AffineAligner.BLOSUM62;
+		int[][] scores = buf.scores(matrix.length, m);
+		for (int c = 0; c < matrix.length; ++c)
+			for (int j = 0; j < m; ++j)
+				scores[c][j] = matrix[c][buf.codes2[j]];
+
+		if (buf.gapOpen.length < m) {
+			buf.gapOpen = new int[m];
+			buf.gapExtension = new int[m];
+		}
+		Arrays.fill(buf.gapOpen, 0, m, gapOpen);
+		Arrays.fill(buf.gapExtension, 0, m, gapExtension);
+
+		int[] band = AffineAligner.findBand(buf, buf.codes1, n, buf.codes2, m, dna);
+		AffineAligner.Path path = AffineAligner.align(buf, buf.codes1, n, scores, m,
+				buf.gapOpen, buf.gapExtension, gapOpen, gapExtension, band);
+
+		char[] out1 = new char[path.length];
+		char[] out2 = new char[path.length];
+		for (int p = 0; p < path.length; ++p) {
+			out1[p] = path.a[p] < 0 ? PackedResidues.GAP : buf.residues1[path.a[p]];
+			out2[p] = path.b[p] < 0 ? PackedResidues.GAP : buf.residues2[path.b[p]];
+		}
+
+		List<AbstractSequence> sequences = new ArrayList<AbstractSequence>();
+		sequences.add(new Sequence(s1.getName(), s1.isNameCapped(), "", new String(out1)));
+		sequences.add(new Sequence(s2.getName(), s2.isNameCapped(), "", new String(out2)));
+
+		SequenceAlignment result = new SequenceAlignment(sequences, SequenceAlignment.SEQUENCE_ANY);
+		result.setAlignmentScore((int) Math.round(path.score / (double) AffineAligner.SCALE));
+
+		return result;
+	}
+}
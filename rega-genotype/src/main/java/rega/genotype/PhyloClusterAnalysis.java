@@ -7,7 +7,6 @@ package rega.genotype;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -21,9 +20,8 @@ import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -31,12 +29,18 @@ import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.commons.io.FileUtils;
+
 import rega.genotype.AlignmentAnalyses.Cluster;
 import rega.genotype.singletons.Settings;
+import rega.genotype.utils.ExternalProcess;
+import rega.genotype.utils.ScratchDir;
+import rega.genotype.utils.StreamReaderThread;
 
 /**
  * Implements a clustering analysis using phylogenetic methods:
- *  - paup or mrbayes for phylogeny estimation and bootstrapping
+ *  - paup or mrbayes for phylogeny estimation and bootstrapping, or
+ *    neighbor-joining in the JVM (phylo-engine=nj in the options)
  *  - tree puzzle for phylogenetic signal analysis
  *  
  * @author koen
@@ -50,14 +54,33 @@ public class PhyloClusterAnalysis extends AbstractAnalysis {
     private static final String PUZZLE_REPORT  = "infile.puzzle";
     private static final String PUZZLE_DIST    = "infile.dist";
     static private final int MRBAYES_ANALYSIS  = 0;
-    static private final int PAUP_ANALYSIS     = 1;
+    static final int PAUP_ANALYSIS             = 1;
+    static private final int NJ_ANALYSIS       = 2;
+    private static final String PHYLO_ENGINE         = "phylo-engine";
+    private static final String DISTANCE             = "distance";
+    private static final String BOOTSTRAP_WORKERS    = "bootstrap-workers";
+    private static final String BOOTSTRAP_REPLICATES = "bootstrap-replicates";
+    private static final Pattern BOOTSTRAP_COMMAND = Pattern.compile("(?im)(?:^|;)\\s*(boot\\w*\\b[^;]*);");
+    private static final Pattern NREPS = Pattern.compile("(?i)\\s*\\bnreps?\\s*=\\s*(\\d+)");
+    private static final Pattern BSEED = Pattern.compile("(?i)\\s*\\bbseed\\s*=\\s*(\\d+)");
   
+    private static final int MAX_NEXUS_WRITERS = 8;
+
     static public String mrBayesCommand = "mrbayes";
 
     private List<Cluster> clusters;
     private Double cutoff;
     private String commandBlock;
-    private Map<String, Float> patterns;
+    private BipartitionTable patterns;
+    private Map<NexusWriter.Key, NexusWriter> nexusWriters
+    	= new LinkedHashMap<NexusWriter.Key, NexusWriter>(16, 0.75f, true) {
+    		private static final long serialVersionUID = 1L;
+
+    		@Override
+    		protected boolean removeEldestEntry(Map.Entry<NexusWriter.Key, NexusWriter> eldest) {
+    			return size() > MAX_NEXUS_WRITERS;
+    		}
+    	};
     public PhyloClusterAnalysis(AlignmentAnalyses owner,
                                 String id, List<Cluster> clusters, String paupBlock, Double cutoff,
                                 File workingDir) {
@@ -408,21 +431,245 @@ public class PhyloClusterAnalysis extends AbstractAnalysis {
 		return true;
 	}
 
+    /*
+     * Runs the bootstrap replicates of the paup block (bootstrap-replicates in
+     * the options, or nreps of the block) with a number of paup processes at
+     * the same time, each with a part of the replicates and its own seed, and
+     * returns the sum of their bipartition tables (which is the table of a
+     * single run with all replicates), with the support in % of the
+     * replicates.
+     *
+     * The first process runs in the working directory, and writes the log,
+     * tree and alignment of the analysis. The others run in a scratch
+     * directory from which only their log is read. A tree that is saved after
+     * the bootstrap (its consensus) is replaced by the majority-rule consensus
+     * of all replicates.
+     */
+    private BipartitionTable runPaupBootstrap(SequenceAlignment a, String paupBlock, int workers)
+            throws ApplicationException {
+        Matcher m = BOOTSTRAP_COMMAND.matcher(paupBlock);
+        m.find();
+        String bootstrap = m.group(1);
+
+        int replicates = 100; // the default of paup
+        Matcher nreps = NREPS.matcher(bootstrap);
+        if (nreps.find())
+            replicates = Integer.parseInt(nreps.group(1));
+        if (getOptionValue(BOOTSTRAP_REPLICATES) != null)
+            replicates = parseIntOption(BOOTSTRAP_REPLICATES);
+
+        int seed;
+        Matcher bseed = BSEED.matcher(bootstrap);
+        if (bseed.find() && Integer.parseInt(bseed.group(1)) != 0)
+            seed = Integer.parseInt(bseed.group(1));
+        else
+            seed = 1 + (int)(Math.random() * 1000000);
+
+        bootstrap = BSEED.matcher(NREPS.matcher(bootstrap).replaceAll("")).replaceAll("");
+
+        workers = Math.max(1, Math.min(workers, replicates));
+        File[] dirs = new File[workers];
+        ExternalProcess[] processes = new ExternalProcess[workers];
+        List<ScratchDir> scratchDirs = new ArrayList<ScratchDir>();
+
+        try {
+            File[] nexFiles = new File[workers];
+            for (int i = 0; i < workers; ++i) {
+                if (i == 0)
+                    dirs[i] = workingDir;
+                else {
+                    ScratchDir scratch = new ScratchDir("paup");
+                    scratchDirs.add(scratch);
+                    dirs[i] = scratch.getDir();
+                }
+
+                int n = replicates / workers + (i < replicates % workers ? 1 : 0);
+                String block = paupBlock.substring(0, m.start(1))
+                    + bootstrap + " nreps=" + n + " bseed=" + (seed + i)
+                    + paupBlock.substring(m.end(1));
+                nexFiles[i] = writeNexusFile(a, dirs[i], block, true);
+            }
+
+            Thread[] outputs = new Thread[workers];
+            String paupCmd = Settings.getInstance().getPaupCmd();
+            for (int i = 0; i < workers; ++i) {
+                String cmd = paupCmd + " -n " + nexFiles[i].getAbsolutePath();
+                System.err.println(cmd + " (pwd=" + dirs[i] + ")");
+                processes[i] = new ExternalProcess(cmd, dirs[i]);
+                processes[i].closeInput();
+                outputs[i] = new StreamReaderThread(processes[i].getOutput());
+                outputs[i].start();
+            }
+
+            List<File> logs = new ArrayList<File>();
+            for (int i = 0; i < workers; ++i) {
+                outputs[i].join();
+                int exit = processes[i].waitFor();
+                processes[i] = null;
+                if (exit != 0)
+                    throw new ApplicationException("Paup exited with error: " + exit);
+
+                logs.add(new File(dirs[i], PAUP_LOG));
+            }
+
+            BipartitionTable result = mergeBootstrapTables(logs, replicates);
+
+            /*
+             * The log of the first worker only holds its part of the
+             * replicates: replace it by the combined table.
+             */
+            PrintStream log = new PrintStream(new FileOutputStream(getTempFile(PAUP_LOG)));
+            log.println("Paup bootstrap (" + replicates + " replicates in " + workers + " runs, support in %)");
+            log.println();
+            result.write(log);
+            log.close();
+
+            if (workers > 1 && paupBlock.indexOf(PAUP_TREE, m.start(1)) >= 0) {
+                String[] labels = new String[a.getSequences().size()];
+                for (int i = 0; i < labels.length; ++i)
+                    labels[i] = NeighborJoining.newickName(a.getSequences().get(i).getName());
+                FileUtils.writeStringToFile(getTempFile(PAUP_TREE), result.getConsensusTree(labels) + "\n");
+            }
+
+            nexFiles[0].delete();
+
+            return result;
+        } catch (IOException e) {
+            throw new ApplicationException("Error: I/O Error while invoking Paup: "
+                + e.getMessage());
+        } catch (InterruptedException e) {
+            throw new ApplicationException("Interrupted while running Paup");
+        } finally {
+            for (int i = 0; i < workers; ++i)
+                if (processes[i] != null)
+                    processes[i].destroy();
+            for (ScratchDir scratch : scratchDirs)
+                scratch.delete();
+        }
+    }
+
+    /*
+     * Merges the bootstrap tables of the paup logs of the workers, and scales
+     * the summed frequencies of the bipartitions to a percentage of all
+     * replicates.
+     */
+    static BipartitionTable mergeBootstrapTables(List<File> logs, int replicates)
+            throws ApplicationException {
+        BipartitionTable result = null;
+        for (File log : logs) {
+            BipartitionTable table = retrieveClusterSupports(PAUP_ANALYSIS, log);
+            if (result == null)
+                result = table;
+            else if (table.getTaxa() != result.getTaxa())
+                throw new ApplicationException("Paup bootstrap replicates with different taxa");
+            else
+                result.merge(table);
+        }
+
+        result.scale(100f / replicates);
+
+        return result;
+    }
+
+    /*
+     * Runs neighbor-joining with bootstrap in the JVM, with the clusters of
+     * the backbone constraint as monophyletic groups. Writes the tree, and
+     * the bipartition table as log, as paup would.
+     */
+    private BipartitionTable runNeighborJoining(SequenceAlignment a, String backboneClusters)
+            throws ApplicationException, IOException {
+        int model = NeighborJoining.F84;
+        String distance = getOptionValue(DISTANCE);
+        if (distance != null) {
+            model = NeighborJoining.parseModel(distance);
+            if (model == -1)
+                throw new ApplicationException("Invalid value for option " + DISTANCE + ": " + distance);
+        }
+
+        int replicates = 100;
+        if (getOptionValue(BOOTSTRAP_REPLICATES) != null)
+            replicates = parseIntOption(BOOTSTRAP_REPLICATES);
+
+        /*
+         * The backbone lists the clusters as groups of (1-based) taxa.
+         */
+        List<int[]> groups = new ArrayList<int[]>();
+        Matcher m = Pattern.compile("\\(([\\d,]+)\\)").matcher(backboneClusters);
+        while (m.find()) {
+            String[] taxa = m.group(1).split(",");
+            int[] group = new int[taxa.length];
+            for (int i = 0; i < taxa.length; ++i)
+                group[i] = Integer.parseInt(taxa[i]) - 1;
+            groups.add(group);
+        }
+
+        long start = System.currentTimeMillis();
+        NeighborJoining nj = new NeighborJoining(a, model, groups.toArray(new int[groups.size()][]));
+        BipartitionTable result = nj.bootstrap(replicates, getBootstrapWorkers(), (long)(Math.random() * Long.MAX_VALUE));
+        FileUtils.writeStringToFile(getTempFile(PAUP_TREE), nj.getTree() + "\n");
+
+        PrintStream log = new PrintStream(new FileOutputStream(getTempFile(PAUP_LOG)));
+        log.println("Neighbor-joining (" + NeighborJoining.getModelName(model) + " distances, " + nj.getColumns() + " columns without gaps, "
+            + replicates + " bootstrap replicates, " + (System.currentTimeMillis() - start) + "ms)");
+        log.println();
+        result.write(log);
+        log.close();
+
+        if (haveOption("alignment")) {
+            FileOutputStream alignment = new FileOutputStream(getTempFile(PAUP_ALIGNMENT));
+            try {
+                a.writeOutput(alignment, SequenceAlignment.FILETYPE_NEXUS);
+            } catch (ParameterProblemException e) {
+                throw new RuntimeException(e);
+            } finally {
+                alignment.close();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the number of paup processes (or threads of the neighbor-joining
+     *   engine) that run the bootstrap replicates (bootstrap-workers=N in the
+     *   options, 1 by default).
+     */
+    public int getBootstrapWorkers() throws ApplicationException {
+        if (getOptionValue(BOOTSTRAP_WORKERS) == null)
+            return 1;
+        else
+            return parseIntOption(BOOTSTRAP_WORKERS);
+    }
+
+    private int parseIntOption(String option) throws ApplicationException {
+        String value = getOptionValue(option);
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new ApplicationException("Invalid value for option " + option + ": " + value);
+        }
+    }
+
 	private File writeNexusFile(SequenceAlignment a, File workingDir,
 			                    String appText, boolean needQuit)
 			throws ApplicationException {
-        File f = getTempFile("tmp.nex");
+        File f = new File(workingDir, "tmp.nex");
 
         try {
 			FileOutputStream outFile = new FileOutputStream(f);
-			a.writeOutput(outFile, SequenceAlignment.FILETYPE_NEXUS);
+			List<AbstractSequence> sequences = a.getSequences();
+			if (sequences.isEmpty())
+				a.writeOutput(outFile, SequenceAlignment.FILETYPE_NEXUS);
+			else
+				getNexusWriter(sequences.subList(1, sequences.size()), a.getSequenceType())
+					.write(outFile, sequences.get(0));
 		    
 			/*
 			 * Append App block.
 			 */
 			appendAppBlock(appText, outFile, needQuit);
-			//outFile.flush();
-            //outFile.getFD().sync();
+			if (Settings.getInstance().isSyncFiles())
+				outFile.getFD().sync();
 			outFile.close();
 		
 		} catch (FileNotFoundException e) {
@@ -435,6 +682,26 @@ public class PhyloClusterAnalysis extends AbstractAnalysis {
 		return f;
 	}
 
+	/*
+	 * The reference sequences of an analysis alignment are often the same for
+	 * successive analyses (of the same query, or of the same window of a scan):
+	 * keep them encoded and only encode the first (query) sequence.
+	 */
+	private synchronized NexusWriter getNexusWriter(List<AbstractSequence> references, int sequenceType)
+			throws IOException {
+		NexusWriter.Key key = NexusWriter.Key.valueOf(references, sequenceType);
+		if (key == null)
+			return new NexusWriter(references, sequenceType);
+
+		NexusWriter result = nexusWriters.get(key);
+		if (result == null) {
+			result = new NexusWriter(references, sequenceType);
+			nexusWriters.put(key, result);
+		}
+
+		return result;
+	}
+
 	private void appendAppBlock(String appText, OutputStream outputFile,
 							    boolean needQuit) throws IOException {
 		Writer writer = new OutputStreamWriter(outputFile);
@@ -464,7 +731,7 @@ public class PhyloClusterAnalysis extends AbstractAnalysis {
 		writer.flush();
 	}
 	
-    private static Map<String, Float> retrieveClusterSupports(int analysisMethod, File inputFile)
+    private static BipartitionTable retrieveClusterSupports(int analysisMethod, File inputFile)
         throws ApplicationException {
 
         final class Match {
@@ -512,23 +779,36 @@ public class PhyloClusterAnalysis extends AbstractAnalysis {
                 }
             }
 
-            Map<String,Float> result = new HashMap<String, Float>();
-
+            /*
+             * A wide table is split in blocks of columns: the rows of the
+             * last block carry the values.
+             */
+            int r = 0;
             if (!finds1.isEmpty()) {
                 // If you see: "java.lang.ArithmeticException: / by zero" check that you are using the correct version of paup.
-                int r = finds1.size() / finds2.size();
-                
-                for (int i = 0; i < finds2.size(); ++i) {
-                    String p1 = "";
-                    for (int j = 0; j < r; ++j)
-                        p1 += finds1.get((finds2.size() * j) + i).p;
-            
-                    result.put(p1 + finds2.get(i).p, finds2.get(i).v);
+                r = finds1.size() / finds2.size();
+            }
+
+            int numTaxa = 0;
+            if (!finds2.isEmpty()) {
+                for (int j = 0; j < r; ++j)
+                    numTaxa += finds1.get(finds2.size() * j).p.length();
+                numTaxa += finds2.get(0).p.length();
+            }
+
+            BipartitionTable result = new BipartitionTable(numTaxa);
+            for (int i = 0; i < finds2.size(); ++i) {
+                long[] set = result.newSet();
+                int taxon = 0;
+                for (int j = 0; j <= r; ++j) {
+                    String p1 = j < r ? finds1.get((finds2.size() * j) + i).p : finds2.get(i).p;
+                    for (int k = 0; k < p1.length() && taxon < numTaxa; ++k, ++taxon)
+                        if (p1.charAt(k) == '*')
+                            BipartitionTable.add(set, taxon);
                 }
-            } else {
-                for (int i = 0; i < finds2.size(); ++i) {            
-                    result.put(finds2.get(i).p, finds2.get(i).v);
-                } 
+
+                if (taxon == numTaxa)
+                    result.put(set, finds2.get(i).v);
             }
 
             return result;
@@ -542,42 +822,33 @@ public class PhyloClusterAnalysis extends AbstractAnalysis {
 	private float retrieveResultValues(int[] taxaIndexes, int numTaxa)
         throws ApplicationException {
         
-        StringBuffer posMaskBuf = new StringBuffer();
-		StringBuffer negMaskBuf = new StringBuffer();
-
 		if (taxaIndexes.length < 1) {
 			throw new ApplicationException("Select 1 or more taxa");
 		}
 
-		Arrays.sort(taxaIndexes);
-		int tax = 0;
-		for (int i = 0; i < numTaxa; ++i) {
-			if (i != taxaIndexes[tax]) {
-				posMaskBuf.append('.');
-				negMaskBuf.append('*');
-			} else {
-				posMaskBuf.append('*');
-				negMaskBuf.append('.');
-
-				// skip this, and all other duplicates in the taxaIndexes
-				// list                
-				while (i == taxaIndexes[tax] && tax < taxaIndexes.length - 1)
-					++tax;
-			}
-		}
+		long[] set = taxaSet(taxaIndexes, numTaxa);
+		if (set == null)
+			return 0;
 
-		String posMask = posMaskBuf.toString();
-		String negMask = negMaskBuf.toString();
-		
-        if (patterns.containsKey(posMask)) {
-            return patterns.get(posMask).floatValue();
-        }
+		return patterns.get(set);
+	}
 
-        if (patterns.containsKey(negMask)) {
-            return patterns.get(negMask).floatValue();
-        }
+	/*
+	 * Returns the taxa as a set of the bipartition table, or null if they are
+	 * not all in the table.
+	 */
+	private long[] taxaSet(int[] taxaIndexes, int numTaxa) {
+		if (numTaxa != patterns.getTaxa())
+			return null;
+
+		long[] result = patterns.newSet();
+		for (int i = 0; i < taxaIndexes.length; ++i) {
+			if (taxaIndexes[i] < 0 || taxaIndexes[i] >= numTaxa)
+				return null;
+			BipartitionTable.add(result, taxaIndexes[i]);
+		}
 
-        return 0;
+		return result;
 	}
 
 	protected List<Double> retrieveClustersValues(SequenceAlignment alignment,
@@ -599,10 +870,7 @@ public class PhyloClusterAnalysis extends AbstractAnalysis {
     private float retrieveResultValues(SequenceAlignment alignment, List<String> queryTaxa)    
         throws ApplicationException {
 
-        int[] allTaxaIndexes = new int[queryTaxa.size()];
-
-        for (int j = 0; j < queryTaxa.size(); ++j)
-            allTaxaIndexes[j] = alignment.getIndex(alignment.findSequence(queryTaxa.get(j)));
+        int[] allTaxaIndexes = alignment.getIndexes(queryTaxa);
 
         return retrieveResultValues(allTaxaIndexes, alignment.getSequences().size());
     }
@@ -611,6 +879,7 @@ public class PhyloClusterAnalysis extends AbstractAnalysis {
                              List<String> queryTaxa, int analysisMethod, String backboneClusters)
 			throws IOException, ApplicationException {
 		File bootstrapFile = null;
+		patterns = null;
 
 		switch (analysisMethod) {
 		case MRBAYES_ANALYSIS:
@@ -619,12 +888,22 @@ public class PhyloClusterAnalysis extends AbstractAnalysis {
 			bootstrapFile = new File("analysis.parts");
 			break;
 		case PAUP_ANALYSIS:
-			if (!runPaup(alignment, workingDir, commandBlock.replace(PAUP_BACKBONE, backboneClusters)))
-				throw new ApplicationException("internal error: weirdness running paup");
+			String paupBlock = commandBlock.replace(PAUP_BACKBONE, backboneClusters);
 			bootstrapFile = getTempFile(PAUP_LOG);
+			if (BOOTSTRAP_COMMAND.matcher(paupBlock).find()) {
+				patterns = runPaupBootstrap(alignment, paupBlock, getBootstrapWorkers());
+				break;
+			}
+
+			if (!runPaup(alignment, workingDir, paupBlock))
+				throw new ApplicationException("internal error: weirdness running paup");
+			break;
+		case NJ_ANALYSIS:
+			patterns = runNeighborJoining(alignment, backboneClusters);
 		}
 
-        patterns = retrieveClusterSupports(analysisMethod, bootstrapFile);        
+        if (patterns == null)
+        	patterns = retrieveClusterSupports(analysisMethod, bootstrapFile);
 
         List<Double> results
             = retrieveClustersValues(alignment, queryTaxa);
@@ -674,34 +953,38 @@ public class PhyloClusterAnalysis extends AbstractAnalysis {
         return r;
 	}
 
+    /*
+     * Puzzle reads its input and writes its reports in a scratch directory,
+     * from which only the likelihood mapping plot is kept (as PUZZLE_LMA).
+     */
     private double runPuzzle(SequenceAlignment alignment)
             throws ApplicationException, FileNotFoundException, IOException {
-        File infile = getTempFile("infile");
-        FileOutputStream fout = new FileOutputStream(infile);
-        FileDescriptor fd = fout.getFD();
-        alignment.writePhylipOutput(fout);
-        fout.flush();
-        fd.sync();
-        fout.close();
-        Runtime runtime = Runtime.getRuntime();
-        Process puzzle = null;
+        ScratchDir scratch = new ScratchDir("puzzle");
+        ExternalProcess puzzle = null;
 
         try {
+            File infile = scratch.getFile("infile");
+            FileOutputStream fout = new FileOutputStream(infile);
+            alignment.writePhylipOutput(fout);
+            if (Settings.getInstance().isSyncFiles())
+                fout.getFD().sync();
+            fout.close();
+
             /*
              * Run puzzle
              */
 			String puzzleCommand = Settings.getInstance().getTreePuzzleCmd();
             String cmd = puzzleCommand + " " + infile.getAbsolutePath();
             System.err.println("cmd: " + cmd);
-            puzzle = runtime.exec(cmd, null, workingDir);
+            puzzle = new ExternalProcess(cmd, scratch.getDir());
 
-            InputStream puzzleOut = puzzle.getInputStream();
-            OutputStream puzzleIn = puzzle.getOutputStream();
+            InputStream puzzleOut = puzzle.getOutput();
+            OutputStream puzzleIn = puzzle.getInput();
             PrintStream ps = new PrintStream(puzzleIn);
 
             ps.println("b\ny");
             ps.flush();
-            
+
             InputStreamReader isr = new InputStreamReader(puzzleOut);
             BufferedReader br = new BufferedReader(isr);
             String line = null;
@@ -715,11 +998,13 @@ public class PhyloClusterAnalysis extends AbstractAnalysis {
                 throw new ApplicationException("Puzzle exited with error: " + result);
             }
 
-            File report = getTempFile(PUZZLE_REPORT);            
-            
-            infile.delete();
-            getTempFile(PUZZLE_DIST).delete();
-            
+            File lma = scratch.getFile(PUZZLE_LMA);
+            if (lma.exists()) {
+                getTempFile(PUZZLE_LMA).delete();
+                FileUtils.moveFile(lma, getTempFile(PUZZLE_LMA));
+            }
+
+            File report = scratch.getFile(PUZZLE_REPORT);
             LineNumberReader reader
                = new LineNumberReader(new InputStreamReader(new FileInputStream(report)));
 
@@ -745,8 +1030,8 @@ public class PhyloClusterAnalysis extends AbstractAnalysis {
                 }
 
             }
-            
-            report.delete();
+            reader.close();
+
             return (float) (signal / total);
         } catch (InterruptedIOException e) {
             puzzle.destroy();
@@ -759,6 +1044,8 @@ public class PhyloClusterAnalysis extends AbstractAnalysis {
         } catch (InterruptedException e) {
             puzzle.destroy();
             return -1;
+        } finally {
+            scratch.delete();
         }
 
     }
@@ -786,34 +1073,17 @@ public class PhyloClusterAnalysis extends AbstractAnalysis {
                           File inputFile, int analysisMethod)
             throws ApplicationException {
 
-		int numSubClusters = 1;
-        List<String> clusterTaxa = cluster.getTaxaIds();
-		for (int i = 0; i < clusterTaxa.size(); ++i)
-			numSubClusters *= 2;
-
-        if (numSubClusters > 10000) {
-            System.err.println("Inner support for " + numSubClusters + " possible subclusters will take for ages." +
-                    " Sure you want this ?");
-        }
-
-		float result = 0;
-		for (int i = 1; i < numSubClusters - 1; ++i) { // excluding the empty and full cluster
-			List<Integer> idxesList = new ArrayList<Integer>();
-
-			for (int j = 0; j < clusterTaxa.size(); ++j)
-				if ((i & (1 << j)) != 0)
-					idxesList.add(new Integer(j));
-
-			List<String> taxa = new ArrayList<String>(queryTaxa);
-
-            for (int j = 0; j < idxesList.size(); ++j) {
-				taxa.add(clusterTaxa.get(((Integer) idxesList.get(j)).intValue()));
-			}
-
-			result += retrieveResultValues(alignment, taxa);
-		}		
-
-        return result;
+		/*
+		 * The support of the query with every part of the cluster, excluding
+		 * the empty and full cluster.
+		 */
+		int numTaxa = alignment.getSequences().size();
+		long[] query = taxaSet(alignment.getIndexes(queryTaxa), numTaxa);
+		long[] clusterSet = taxaSet(alignment.getIndexes(cluster.getTaxaIds()), numTaxa);
+		if (query == null || clusterSet == null)
+			return 0;
+
+		return patterns.getInnerSupport(query, clusterSet);
 	}
 
     public Result run(SequenceAlignment alignment, AbstractSequence sequence)
@@ -867,7 +1137,8 @@ public class PhyloClusterAnalysis extends AbstractAnalysis {
             List<String> queryTaxa = new ArrayList<String>();
             if (sequence != null)
                 queryTaxa.add(sequence.getName());
-            return compute(analysisAlignment, sequence, queryTaxa, PAUP_ANALYSIS, backboneClusters.toString());
+            int method = "nj".equalsIgnoreCase(getOptionValue(PHYLO_ENGINE)) ? NJ_ANALYSIS : PAUP_ANALYSIS;
+            return compute(analysisAlignment, sequence, queryTaxa, method, backboneClusters.toString());
         } catch (AlignmentException e) {
             throw new AnalysisException(getId(), sequence, e);
         } catch (IOException e) {
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An in-process profile aligner, which is used instead of clustalw to align a
+ * query sequence to a reference alignment.
+ *
+ * The profile of the reference alignment is computed once, when the aligner
+ * is created: for every column, the (average) score of every residue against
+ * the residues in the column, and the gap penalties for the query, which are
+ * reduced in proportion to the gaps already in the column. Every query is then
+ * aligned to the profile (see {@link PairwiseAligner}), in O(query length x
+ * columns), or less within a band of diagonals.
+ *
+ * As clustalw, the result contains the reference sequences followed by the
+ * query sequence. Columns of the reference alignment are kept, and columns are
+ * inserted for residues of the query that do not align with the reference.
+ *
+ * Default gap penalties are those of clustalw: 15.0 / 6.66 for nucleotides and
+ * 10.0 / 0.2 for amino acids.
+ */
+public class ProfileAligner {
+	public static final double DEFAULT_PROTEIN_GAP_OPEN = 10.0;
+	public static final double DEFAULT_PROTEIN_GAP_EXTENSION = 0.2;
+
+	private SequenceAlignment alignment;
+	private boolean dna;
+	private int columns;
+	private int gapOpen;
+	private int gapExtension;
+
+	private int[][] scores;
+	private int[] columnGapOpen;
+	private int[] columnGapExtension;
+	private byte[] consensus;
+
+	public ProfileAligner(SequenceAlignment alignment) {
+		this(alignment, -1, -1);
+	}
+
+	/**
+	 * Creates the profile of an alignment, with the given gap penalties (or
+	 * the defaults if they are negative).
+	 */
+	public ProfileAligner(SequenceAlignment alignment, double gapOpenPenalty, double gapExtensionPenalty) {
+		this.alignment = alignment;
+		this.columns = alignment.getSequences().isEmpty() ? 0 : alignment.getLength();
+
+		final List<AbstractSequence> sequences = alignment.getSequences();
+		final int rows = sequences.size();
+
+		if (alignment.getSequenceType() == SequenceAlignment.SEQUENCE_DNA)
+			dna = true;
+		else if (alignment.getSequenceType() == SequenceAlignment.SEQUENCE_AA)
+			dna = false;
+		else {
+			int nucleotides = 0, total = 0;
+			for (AbstractSequence s : sequences) {
+				char[] buf = new char[s.getLength()];
+				int n = AffineAligner.ungapped(s, buf);
+				nucleotides += AffineAligner.countNucleotides(buf, n);
+				total += n;
+			}
+			dna = AffineAligner.isNucleotide(nucleotides, total);
+		}
+
+		if (gapOpenPenalty < 0)
+			gapOpenPenalty = dna ? PairwiseAligner.DEFAULT_GAP_OPEN : DEFAULT_PROTEIN_GAP_OPEN;
+		if (gapExtensionPenalty < 0)
+			gapExtensionPenalty = dna ? PairwiseAligner.DEFAULT_GAP_EXTENSION : DEFAULT_PROTEIN_GAP_EXTENSION;
+		this.gapOpen = (int) Math.round(gapOpenPenalty * AffineAligner.SCALE);
+		this.gapExtension = (int) Math.round(gapExtensionPenalty * AffineAligner.SCALE);
+
+		final int[][] matrix = dna ? AffineAligner.IUB : AffineAligner.BLOSUM62;
+		final int codes = matrix.length;
+
+		/*
+		 * Count the residue codes (and gaps, as the last code) in every column.
+		 */
+		int[][] counts = new int[columns][codes + 1];
+		char[] row = new char[columns];
+		for (int s = 0; s < rows; ++s) {
+			AbstractSequence seq = sequences.get(s);
+			final int length = Math.min(columns, seq.getLength());
+			seq.getChars(0, length, row, 0);
+			for (int j = 0; j < length; ++j) {
+				char c = row[j];
+				if (c == PackedResidues.GAP)
+					++counts[j][codes];
+				else
+					++counts[j][AffineAligner.code(c, dna)];
+			}
+			for (int j = length; j < columns; ++j)
+				++counts[j][codes];
+		}
+
+		scores = new int[codes][columns];
+		columnGapOpen = new int[columns];
+		columnGapExtension = new int[columns];
+		consensus = new byte[columns];
+
+		for (int j = 0; j < columns; ++j) {
+			final int[] count = counts[j];
+
+			int best = -1;
+			for (int c = 0; c < codes; ++c)
+				if (count[c] > 0 && (best == -1 || count[c] > count[best]))
+					best = c;
+			consensus[j] = best == -1
+				? (dna ? AffineAligner.ANY_NUCLEOTIDE : AffineAligner.ANY_AMINO_ACID) : (byte) best;
+
+			for (int x = 0; x < codes; ++x) {
+				long score = 0;
+				for (int c = 0; c < codes; ++c)
+					if (count[c] > 0)
+						score += (long) count[c] * matrix[x][c];
+				scores[x][j] = (int) (score / rows);
+			}
+
+			int nonGaps = rows - count[codes];
+			columnGapOpen[j] = (int) ((long) gapOpen * nonGaps / rows);
+			columnGapExtension[j] = (int) ((long) gapExtension * nonGaps / rows);
+		}
+	}
+
+	/**
+	 * @return the reference alignment
+	 */
+	public SequenceAlignment getAlignment() {
+		return alignment;
+	}
+
+	/**
+	 * Aligns a query sequence to the profile.
+	 *
+	 * @param trim whether to return only the columns that are covered by the
+	 *   query
+	 * @return the alignment of the reference sequences and the query (last),
+	 *   with the alignment score set.
+	 */
+	public SequenceAlignment align(AbstractSequence query, boolean trim) throws AlignmentException {
+		AffineAligner.Buffers buf = AffineAligner.buffers();
+
+		if (buf.residues1.length < query.getLength())
+			buf.residues1 = new char[query.getLength()];
+		final int n = AffineAligner.ungapped(query, buf.residues1);
+		buf.codes1 = AffineAligner.encode(buf.residues1, n, dna, buf.codes1);
+
+		int[] band = AffineAligner.findBand(buf, buf.codes1, n, consensus, columns, dna);
+		AffineAligner.Path path = AffineAligner.align(buf, buf.codes1, n, scores, columns,
+				columnGapOpen, columnGapExtension, gapOpen, gapExtension, band);
+
+		int begin = 0, end = path.length;
+		if (trim) {
+			while (begin < end && path.a[begin] < 0)
+				++begin;
+			while (end > begin && path.a[end - 1] < 0)
+				--end;
+		}
+
+		final int length = end - begin;
+		List<AbstractSequence> sequences = new ArrayList<AbstractSequence>();
+
+		char[] row = buf.residues2.length < columns ? new char[columns] : buf.residues2;
+		buf.residues2 = row;
+		char[] out = new char[length];
+		for (AbstractSequence s : alignment.getSequences()) {
+			final int rowLength = Math.min(columns, s.getLength());
+			s.getChars(0, rowLength, row, 0);
+			Arrays.fill(row, rowLength, columns, PackedResidues.GAP);
+			for (int p = 0; p < length; ++p) {
+				int j = path.b[begin + p];
+				out[p] = j < 0 ? PackedResidues.GAP : row[j];
+			}
+			sequences.add(new Sequence(s.getName(), s.isNameCapped(), "", new String(out)));
+		}
+
+		for (int p = 0; p < length; ++p) {
+			int i = path.a[begin + p];
+			out[p] = i < 0 ? PackedResidues.GAP : buf.residues1[i];
+		}
+		sequences.add(new Sequence(query.getName(), query.isNameCapped(), "", new String(out)));
+
+		SequenceAlignment result = new SequenceAlignment(sequences, SequenceAlignment.SEQUENCE_ANY);
+		result.setAlignmentScore((int) Math.round(path.score / (double) AffineAligner.SCALE));
+
+		return result;
+	}
+}
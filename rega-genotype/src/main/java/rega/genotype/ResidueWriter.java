@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A buffered byte writer used by the sequence file writers.
+ *
+ * Residues are copied straight from the sequence (or the sequence view) into
+ * the byte buffer, without building intermediate strings.
+ *
+ * Flushing writes the buffer to the underlying stream and flushes that
+ * stream, but does not close it.
+ */
+class ResidueWriter {
+	private static final int BUFFER_SIZE = 8192;
+
+	private OutputStream out;
+	private byte[] buf;
+	private int count;
+
+	ResidueWriter(OutputStream out) {
+		this.out = out;
+		this.buf = new byte[BUFFER_SIZE];
+		this.count = 0;
+	}
+
+	void write(char c) throws IOException {
+		if (c >= 128) {
+			write(String.valueOf(c));
+			return;
+		}
+
+		if (count == buf.length)
+			flushBuffer();
+		buf[count++] = (byte) c;
+	}
+
+	void write(String s) throws IOException {
+		final int length = s.length();
+		for (int i = 0; i < length; ++i)
+			if (s.charAt(i) >= 128) {
+				write(s.getBytes());
+				return;
+			}
+
+		for (int i = 0; i < length;) {
+			if (count == buf.length)
+				flushBuffer();
+			int n = Math.min(buf.length - count, length - i);
+			for (int j = 0; j < n; ++j)
+				buf[count++] = (byte) s.charAt(i++);
+		}
+	}
+
+	void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+
+	void write(byte[] b, int offset, int length) throws IOException {
+		if (length > buf.length - count) {
+			flushBuffer();
+			if (length > buf.length) {
+				out.write(b, offset, length);
+				return;
+			}
+		}
+
+		System.arraycopy(b, offset, buf, count, length);
+		count += length;
+	}
+
+	/**
+	 * Writes the residues [begin, end[ of a sequence.
+	 */
+	void writeResidues(AbstractSequence seq, int begin, int end) throws IOException {
+		for (int i = begin; i < end;) {
+			if (count == buf.length)
+				flushBuffer();
+			int n = Math.min(buf.length - count, end - i);
+			seq.getBytes(i, i + n, buf, count);
+			count += n;
+			i += n;
+		}
+	}
+
+	/**
+	 * Writes a string padded with spaces up to the given width.
+	 */
+	void writePadBack(String s, int width) throws IOException {
+		write(s);
+		writeSpaces(width - s.length());
+	}
+
+	/**
+	 * Writes a string preceded with spaces up to the given width.
+	 */
+	void writePadFront(String s, int width) throws IOException {
+		writeSpaces(width - s.length());
+		write(s);
+	}
+
+	private void writeSpaces(int n) throws IOException {
+		for (int i = 0; i < n; ++i)
+			write(' ');
+	}
+
+	void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buf, 0, count);
+			count = 0;
+		}
+	}
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import rega.genotype.config.Config.ToolConfig;
+import rega.genotype.singletons.Settings;
+
+/**
+ * An on-disk cache of the analysis results of sequences, which is shared by
+ * all jobs.
+ *
+ * For every sequence that was analyzed by a tool, the cache stores the
+ * results as they were written to the {@link ResultTracer}, together with the
+ * resource files (trees, alignments, BLAST reports, ...) that they refer to.
+ * When the same sequence is submitted again to the same tool, these are
+ * replayed into the tracer of the new job instead of analyzing the sequence
+ * again.
+ *
+ * An entry is addressed by a SHA-1 hash of the sequence (name and residues)
+ * and of the tool: its id and version, the name, size and modification time
+ * of every file in its configuration directory (which defines the analyses
+ * and their options), the configured alignment engines and blast prefilter.
+ * Changing a tool thus invalidates its entries, which are eventually evicted.
+ *
+ * The cache is bounded by the total size of the entries: when that is
+ * exceeded, the least recently used entries are evicted. The size is counted
+ * when the cache is first used and then kept up to date by store(), so that
+ * the entries are only scanned again when some must be evicted. Entries are
+ * written to a temporary directory which is then renamed, so that multiple
+ * jobs may use the cache at the same time.
+ *
+ * Only the results of tools that write all their output to the tracer can be
+ * cached (see {@link GenotypeTool#isResultCacheable()}).
+ */
+public class ResultCache {
+	private static final String RESULT_FILE = "result.xml";
+	private static final String TMP_PREFIX = "tmp-";
+
+	/*
+	 * After evicting, the cache is at most this fraction of its maximum size,
+	 * so that it is not scanned again for every new entry.
+	 */
+	private static final double EVICT_TO = 0.9;
+
+	private static ResultCache instance = null;
+
+	private File dir;
+	private long maxSize;
+	private long size = -1; // the total size of the entries, -1 if not yet counted
+
+	/**
+	 * @param dir the cache directory
+	 * @param maxSize the maximum size (in bytes)
+	 */
+	public ResultCache(File dir, long maxSize) {
+		this.dir = dir;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return the configured result cache in the base directory, or null if it
+	 *   is disabled.
+	 */
+	public static synchronized ResultCache getInstance() {
+		Settings settings = Settings.getInstance();
+		if (settings == null || settings.getConfig() == null || settings.getResultCacheSize() <= 0)
+			return null;
+
+		File dir = new File(settings.getBaseDir(), "result-cache");
+		long maxSize = settings.getResultCacheSize() * 1024 * 1024;
+		if (instance == null || !instance.dir.equals(dir) || instance.maxSize != maxSize)
+			instance = new ResultCache(dir, maxSize);
+
+		return instance;
+	}
+
+	/**
+	 * @return the part of the key that identifies the tool, or null if the
+	 *   tool cannot be identified.
+	 */
+	public static String toolKey(ToolConfig toolConfig) {
+		if (toolConfig == null || toolConfig.getId() == null || toolConfig.getConfiguration() == null)
+			return null;
+
+		StringBuffer result = new StringBuffer();
+		result.append(toolConfig.getId()).append('\n').append(toolConfig.getVersion()).append('\n');
+		result.append(AlignmentEngine.getConfiguredPairwiseName()).append('\n');
+		result.append(AlignmentEngine.getConfiguredName(toolConfig)).append('\n');
+		result.append(Settings.getInstance().isBlastPrefilter()).append('\n');
+
+		appendFiles(result, toolConfig.getConfigurationFile(), "");
+
+		return result.toString();
+	}
+
+	private static void appendFiles(StringBuffer result, File dir, String path) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+
+		Arrays.sort(files);
+		for (File f : files) {
+			if (f.isDirectory())
+				appendFiles(result, f, path + f.getName() + "/");
+			else
+				result.append(path).append(f.getName()).append(' ').append(f.length())
+					.append(' ').append(f.lastModified()).append('\n');
+		}
+	}
+
+	/**
+	 * @return the key of the results of a tool for a sequence.
+	 */
+	public String key(String toolKey, AbstractSequence sequence) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(toolKey.getBytes("UTF-8"));
+			digest.update((byte) 0);
+			digest.update(sequence.getName().getBytes("UTF-8"));
+			digest.update((byte) 0);
+
+			byte[] residues = new byte[sequence.getLength()];
+			sequence.getBytes(0, residues.length, residues, 0);
+			digest.update(residues);
+
+			StringBuffer result = new StringBuffer();
+			for (byte b : digest.digest()) {
+				result.append(Character.forDigit((b >> 4) & 0xF, 16));
+				result.append(Character.forDigit(b & 0xF, 16));
+			}
+
+			return result.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private File entryDir(String key) {
+		return new File(new File(dir, key.substring(0, 2)), key);
+	}
+
+	/**
+	 * @return whether results are cached for the key (which does not
+	 *   guarantee that they can be replayed).
+	 */
+	public boolean contains(String key) {
+		return new File(entryDir(key), RESULT_FILE).exists();
+	}
+
+	/**
+	 * Replays the cached results into the tracer, copying the resource files
+	 * to the output directory of the tracer.
+	 *
+	 * @return whether the results were found in the cache.
+	 */
+	public boolean replay(String key, ResultTracer tracer) {
+		File entry = entryDir(key);
+		File resultFile = new File(entry, RESULT_FILE);
+		if (!resultFile.exists())
+			return false;
+
+		try {
+			String output = FileUtils.readFileToString(resultFile, "UTF-8");
+
+			File outputDir = new File(tracer.getOutputPath());
+			File[] resources = entry.listFiles();
+			if (resources == null)
+				return false;
+
+			for (File f : resources)
+				if (!f.getName().equals(RESULT_FILE) && new File(outputDir, f.getName()).exists())
+					return false;
+
+			for (File f : resources)
+				if (!f.getName().equals(RESULT_FILE)) {
+					FileUtils.copyFile(f, new File(outputDir, f.getName()));
+					if (f.getName().endsWith(BlastDetails.DESCRIPTOR_SUFFIX))
+						BlastDetails.pin(new File(outputDir, f.getName()));
+				}
+
+			tracer.replay(output);
+			entry.setLastModified(System.currentTimeMillis());
+
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Stores the results of a sequence, and evicts the least recently used
+	 * entries if the cache becomes too large.
+	 *
+	 * @param output the output that was written to the tracer
+	 * @param resources the resource files that are referred to by the output
+	 */
+	public void store(String key, String output, List<File> resources) {
+		File entry = entryDir(key);
+		if (entry.exists())
+			return;
+
+		File tmp = null;
+		long entrySize = 0;
+		try {
+			entry.getParentFile().mkdirs();
+			tmp = new File(dir, TMP_PREFIX + key + "-" + (int)(Math.random()*1000000000));
+			if (!tmp.mkdirs())
+				return;
+
+			for (File f : resources)
+				if (f.exists()) {
+					FileUtils.copyFile(f, new File(tmp, f.getName()));
+					entrySize += f.length();
+					if (f.getName().endsWith(BlastDetails.DESCRIPTOR_SUFFIX))
+						BlastDetails.pin(new File(entry, f.getName()));
+				}
+			File resultFile = new File(tmp, RESULT_FILE);
+			FileUtils.writeStringToFile(resultFile, output, "UTF-8");
+			entrySize += resultFile.length();
+
+			if (!tmp.renameTo(entry))
+				return;
+			tmp = null;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		} finally {
+			if (tmp != null)
+				FileUtils.deleteQuietly(tmp);
+		}
+
+		added(entrySize);
+	}
+
+	/*
+	 * Counts a new entry, and evicts entries when the cache is too large.
+	 */
+	private synchronized void added(long entrySize) {
+		if (size < 0)
+			size = evict(Long.MAX_VALUE);
+		else
+			size += entrySize;
+
+		if (size > maxSize)
+			size = evict((long)(maxSize * EVICT_TO));
+	}
+
+	/**
+	 * @return the total size of the entries (in bytes).
+	 */
+	public synchronized long getSize() {
+		if (size < 0)
+			size = evict(Long.MAX_VALUE);
+
+		return size;
+	}
+
+	private static class Entry {
+		File dir;
+		long size;
+		long lastUsed;
+	}
+
+	/*
+	 * Scans the entries, and evicts the least recently used entries until
+	 * their total size is at most the given size.
+	 *
+	 * @return the total size of the remaining entries.
+	 */
+	private long evict(long targetSize) {
+		List<Entry> entries = new ArrayList<Entry>();
+		long size = 0;
+
+		File[] prefixes = dir.listFiles();
+		if (prefixes == null)
+			return 0;
+
+		for (File prefix : prefixes) {
+			if (prefix.getName().startsWith(TMP_PREFIX))
+				continue;
+
+			File[] dirs = prefix.listFiles();
+			if (dirs == null)
+				continue;
+
+			for (File d : dirs) {
+				Entry e = new Entry();
+				e.dir = d;
+				e.lastUsed = d.lastModified();
+				File[] files = d.listFiles();
+				if (files != null)
+					for (File f : files)
+						e.size += f.length();
+				entries.add(e);
+				size += e.size;
+			}
+		}
+
+		if (size <= targetSize)
+			return size;
+
+		Collections.sort(entries, new Comparator<Entry>() {
+			public int compare(Entry e1, Entry e2) {
+				return e1.lastUsed < e2.lastUsed ? -1 : (e1.lastUsed == e2.lastUsed ? 0 : 1);
+			}
+		});
+
+		for (Entry e : entries) {
+			if (size <= targetSize)
+				break;
+			FileUtils.deleteQuietly(e.dir);
+			size -= e.size;
+		}
+
+		return size;
+	}
+}
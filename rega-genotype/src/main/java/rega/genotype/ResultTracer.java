@@ -5,11 +5,17 @@
  */
 package rega.genotype;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A utility class that serializes genotyping results to the results.xml file.
@@ -22,9 +28,42 @@ public class ResultTracer {
     AbstractSequence currentSequence;
     int indent;
 
+    /*
+     * Copies the output to a buffer while recording (see ResultCache).
+     */
+    private static class RecordingWriter extends Writer {
+        Writer out;
+        StringBuffer recording;
+
+        RecordingWriter(OutputStream output) {
+            this.out = new BufferedWriter(new OutputStreamWriter(output));
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            if (recording != null)
+                recording.append(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private RecordingWriter recorder;
+    private List<File> recordedResources;
+
     public ResultTracer(OutputStream output) {
         this.file = null;
-        this.w = new PrintWriter(output);
+        this.recorder = new RecordingWriter(output);
+        this.w = new PrintWriter(recorder);
         this.indent = 0;
         writeXMLHeader();
         currentSequence = null;
@@ -32,7 +71,8 @@ public class ResultTracer {
 
     public ResultTracer(File file) throws FileNotFoundException {
         this.file = file;
-        this.w = new PrintWriter(new FileOutputStream(file));
+        this.recorder = new RecordingWriter(new FileOutputStream(file));
+        this.w = new PrintWriter(recorder);
         writeXMLHeader();
         currentSequence = null;
     }
@@ -98,6 +138,48 @@ public class ResultTracer {
     void flush() {
         w.flush();
     }
+
+    /**
+     * Starts recording the output and the resource files for one sequence,
+     * finishing the previous sequence first.
+     */
+    void startRecording() {
+        finishCurrentSequence();
+        recorder.recording = new StringBuffer();
+        recordedResources = new ArrayList<File>();
+    }
+
+    /**
+     * Stops recording.
+     *
+     * @param complete whether the output for the sequence is complete, in
+     *   which case the sequence is finished.
+     * @return the recorded output, or null if not complete.
+     */
+    String stopRecording(boolean complete) {
+        if (complete)
+            finishCurrentSequence();
+
+        String result = complete ? recorder.recording.toString() : null;
+        recorder.recording = null;
+        return result;
+    }
+
+    /**
+     * @return the resource files that were created while recording.
+     */
+    List<File> getRecordedResources() {
+        return recordedResources;
+    }
+
+    /**
+     * Writes recorded output for a sequence.
+     */
+    void replay(String output) {
+        finishCurrentSequence();
+        w.print(output);
+        w.flush();
+    }
     
     void increaseIndent() {
         indent += 2;
@@ -163,6 +245,9 @@ public class ResultTracer {
             result = new File(getOutputPath() + File.separator + name);
         } while (result.exists());
 
+        if (recorder.recording != null)
+            recordedResources.add(result);
+
         return result;
     }
 
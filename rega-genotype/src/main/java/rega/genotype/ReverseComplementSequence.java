@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
+ *
+ * See the LICENSE file for terms of use.
+ */
+package rega.genotype;
+
+/**
+ * Implements the abstract sequence interface as the reverse complement of
+ * another AbstractSequence.
+ *
+ * This is a view: residues are complemented (using a lookup table) when they
+ * are read, and are not copied. The source sequence is the source sequence of
+ * the underlying sequence.
+ *
+ * The view does not write through: the first change (removeChar()) takes a
+ * private copy of the underlying residues, which is cheap since packed
+ * residues are shared.
+ *
+ * @author koen
+ */
+public class ReverseComplementSequence extends AbstractSequence {
+	private String name;
+	private AbstractSequence sequence;
+	private AbstractSequence source;
+	private boolean copied = false;
+
+	public ReverseComplementSequence(AbstractSequence sequence) {
+		this.name = sequence.getName();
+		this.sequence = sequence;
+		this.source = sequence.sourceSequence();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean isNameCapped() {
+		return sequence.isNameCapped();
+	}
+
+	public String getDescription() {
+		return sequence.getDescription();
+	}
+
+	public String getSequence() {
+		char[] result = new char[getLength()];
+		getChars(0, result.length, result, 0);
+		return new String(result);
+	}
+
+	public int getLength() {
+		return sequence.getLength();
+	}
+
+	public char charAt(int i) {
+		return PackedResidues.complement(sequence.charAt(getLength() - 1 - i));
+	}
+
+	public boolean isGap(int i) {
+		return sequence.isGap(getLength() - 1 - i);
+	}
+
+	public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+		int length = getLength();
+		sequence.getChars(length - srcEnd, length - srcBegin, dst, dstBegin);
+		PackedResidues.reverseComplement(dst, dstBegin, dstBegin + srcEnd - srcBegin);
+	}
+
+	public void getBytes(int srcBegin, int srcEnd, byte[] dst, int dstBegin) {
+		int length = getLength();
+		sequence.getBytes(length - srcEnd, length - srcBegin, dst, dstBegin);
+		PackedResidues.reverseComplement(dst, dstBegin, dstBegin + srcEnd - srcBegin);
+	}
+
+	public void removeChar(int i) {
+		if (!copied) {
+			sequence = new Sequence(sequence.getName(), sequence.isNameCapped(), sequence.getDescription(),
+					sequence.packedResidues());
+			copied = true;
+		}
+
+		sequence.removeChar(getLength() - 1 - i);
+	}
+
+	@Override
+	public AbstractSequence sourceSequence() {
+		return source;
+	}
+
+	@Override
+	public void setName(String name) {
+		this.name = name;
+	}
+}
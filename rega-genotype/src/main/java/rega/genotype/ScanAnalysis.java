@@ -298,17 +298,17 @@ public class ScanAnalysis extends AbstractAnalysis {
         try {
             SequenceAlignment aligned = profileAlign(alignment, sequence, workingDir);
 
-            int begin = aligned.firstNonGapPosition();
-            int end = aligned.lastNonGapPosition();
+            ColumnGaps gaps = aligned.getColumnGaps();
+            int begin = gaps.firstNonGapPosition();
+            int end = gaps.lastNonGapPosition();
             SequenceAlignment trimmed = aligned.getSubSequence(begin, end);
             
-            List<SequenceAlignment> windows
-                = SlidingGene.generateSlidingWindow(trimmed, window, step);
+            SlidingGene windows = new SlidingGene(trimmed, window, step);
             List<Scannable> windowResults
-                = new ArrayList<Scannable>();
+                = new ArrayList<Scannable>(windows.size());
 
-            for (int i = 0; i < windows.size(); ++i) {
-                windowResults.add((Scannable) analysis.run(windows.get(i), sequence));
+            for (SequenceAlignment w : windows) {
+                windowResults.add((Scannable) analysis.run(w, sequence));
             }
 
         	List<FragmentResult> recombinationResults = null;
@@ -16,14 +16,18 @@ public class Sequence extends AbstractSequence
     private String name;
     private boolean nameCapped;
 	private String description;
-    private String sequence;
+    private PackedResidues residues;
 	private AbstractSequence sourceSequence = this;
 
     public Sequence(String name, boolean nameCapped, String description, String sequence) {
+        this(name, nameCapped, description, PackedResidues.valueOf(sequence));
+    }
+
+    public Sequence(String name, boolean nameCapped, String description, PackedResidues residues) {
         this.name = name;
         this.nameCapped = nameCapped;
         this.description = description;
-        this.sequence = sequence;
+        this.residues = residues;
     }
 
     public String getName() {
@@ -39,45 +43,64 @@ public class Sequence extends AbstractSequence
     }
 
     public String getSequence() {
-        return sequence;
+        return residues.toString();
+    }
+
+    /**
+     * @return the packed residues, which are shared (immutable) and thus
+     *   cheap to copy into another sequence.
+     */
+    public PackedResidues getResidues() {
+        return residues;
+    }
+
+    PackedResidues packedResidues() {
+        return residues;
     }
 
     public int getLength() {
-        return sequence.length();
+        return residues.length();
+    }
+
+    public char charAt(int i) {
+        return residues.charAt(i);
+    }
+
+    public boolean isGap(int i) {
+        return residues.isGap(i);
+    }
+
+    public long gapWord(int i) {
+        return residues.gapWord(i);
+    }
+
+    public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+        residues.getChars(srcBegin, srcEnd, dst, dstBegin);
+    }
+
+    public void getBytes(int srcBegin, int srcEnd, byte[] dst, int dstBegin) {
+        residues.getBytes(srcBegin, srcEnd, dst, dstBegin);
     }
 
 	public void removeChar(int i) {
-		sequence = new StringBuffer(sequence).deleteCharAt(i).toString();
+		residues = residues.delete(i, i + 1);
 	}
 	
+	public void removeColumns(long[] mask) {
+		residues = residues.deleteColumns(mask);
+	}
+
 	public int firstNonGapPosition() {
-		for (int i = 0; i < sequence.length(); ++i) {
-			if (sequence.charAt(i) != '-')
-				return i;
-		}
-		return sequence.length();
+		return residues.firstNonGap();
 	}
 
 	public int lastNonGapPosition() {
-		for (int i = sequence.length() - 1; i >= 0; --i) {
-			if (sequence.charAt(i) != '-')
-				return i;
-		}
-
-		return -1;
+		return residues.lastNonGap();
 	}
     
     public void removeGaps() {
-        StringBuffer sb = new StringBuffer(sequence);
-        for (int i = 0; i < sb.length(); ++i) {
-            if (sb.charAt(i) == '-') {
-                sb.deleteCharAt(i);
-                --i;
-            }
-        }
-
-        sequence = sb.toString();
-     }
+        residues = residues.removeGaps();
+    }
 
 	public int getStart() {
 		return 0;
@@ -9,15 +9,15 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
-import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import rega.genotype.AlignmentAnalyses.Cluster;
@@ -34,6 +34,14 @@ public class SequenceAlignment
     int sequenceType = SEQUENCE_DNA;
     int alignmentScore = -1;
 
+    /*
+     * Maps a sequence name to the index of the first sequence with that name.
+     * It is built when first needed, kept up to date by addSequence(), and
+     * rebuilt after other changes to the list of sequences, which may also be
+     * changed directly (see lookup()).
+     */
+    private Map<String, Integer> nameIndex = null;
+
     public final static int FILETYPE_FASTA = 0;
     public final static int FILETYPE_CLUSTAL = 1;
     public final static int FILETYPE_NEXUS = 2;
@@ -45,6 +53,7 @@ public class SequenceAlignment
     
     public final static int MAX_NEXUS_TAXUS_LENGTH = 20;
     public final static int MAX_PHYLIP_TAXUS_LENGTH = 8;
+    final static int NEXUS_BLOCK_LENGTH = 100;
 
     public SequenceAlignment() {
     	this.sequenceType = FILETYPE_FASTA;
@@ -76,30 +85,29 @@ public class SequenceAlignment
     }
 
 	/**
-	 * Removes all-gap columns from the alignment.
+	 * Removes all columns that contain a gap from the alignment.
+	 *
+	 * The gap columns are determined once, and then removed from each sequence
+	 * in a single pass.
 	 */
 	public void degap() {
-		for (int i = 0; i < getLength();) {
-			boolean hasGap = false;
-
-			for (int j = 0; j < sequences.size(); ++j) {
-				AbstractSequence s = sequences.get(j);
-				
-				if (s.getSequence().charAt(i) == '-') {
-					hasGap = true;
-					break;
-				}
-			}
-
-			if (hasGap) {
-				for (int j = 0; j < sequences.size(); ++j) {
-					AbstractSequence s = sequences.get(j);
-
-					s.removeChar(i);
-				}
-			} else
-				++i;
-		}
+		ColumnGaps gaps = getColumnGaps();
+
+		if (gaps.gapColumnCount() == 0)
+			return;
+
+		for (int j = 0; j < sequences.size(); ++j)
+			sequences.get(j).removeColumns(gaps.getGapColumnMask());
+	}
+
+	/**
+	 * Computes the per-column gap information of the alignment.
+	 *
+	 * This is a snapshot: use it when several gap queries are needed on an
+	 * alignment that does not change in the mean time.
+	 */
+	public ColumnGaps getColumnGaps() {
+		return new ColumnGaps(this);
 	}
 
 	/**
@@ -118,9 +126,10 @@ public class SequenceAlignment
                 length = s.getLength();
             else
                 if (s.getLength() != length) {
-                    if (force)
+                    if (force) {
                         i.remove();
-                    else
+                        nameIndex = null;
+                    } else
                         return false;
                 }
         }
@@ -143,11 +152,10 @@ public class SequenceAlignment
          * http://www.ncbi.nlm.nih.gov/BLAST/fasta.html
          */
 
-        LineNumberReader reader
-            = new LineNumberReader(new InputStreamReader(inputFile));
+        FastaReader reader = new FastaReader(inputFile, sequenceType);
 
         for (;;) {
-            Sequence s = readFastaFileSequence(reader, sequenceType);
+            Sequence s = reader.next();
 
             if (s != null) {
                 sequences.add(s);
@@ -156,6 +164,13 @@ public class SequenceAlignment
         }
     }
 
+    /**
+     * Reads the next sequence in FASTA format from a reader.
+     * 
+     * To read a stream or a file, {@link FastaReader} is more efficient.
+     * 
+     * @return the sequence, or null if there are no more sequences.
+     */
     public static Sequence readFastaFileSequence(LineNumberReader reader, int sequenceType)
         throws IOException, FileFormatException
     {
@@ -173,25 +188,6 @@ public class SequenceAlignment
             throw new FileFormatException("Expecting a '>'",
                                           reader.getLineNumber());
 
-        // eat '>'
-        header = header.substring(1);
-        while (header.charAt(0) == ' ')
-			header = header.substring(1);
-        // separate name from description
-        int spacePos = header.indexOf(' ');
-        String name;
-        boolean nameCapped;
-        String description;
-        if (spacePos != -1) {   // only a name	
-           name = makeLegalName(header.substring(0, spacePos));
-           nameCapped = name.length() < header.substring(0, spacePos).length();
-           description = header.substring(spacePos);
-        } else {
-           name = makeLegalName(header);
-           nameCapped = name.length() < header.length();
-           description = "";
-        }
-
         /*
          * next read the sequence
          */
@@ -211,36 +207,112 @@ public class SequenceAlignment
             }
         } while (s != null);
 
-        return new Sequence(name, nameCapped, description, sequence.toString());
+        return createFastaSequence(header.substring(1), sequence.toString());
     }
 
-    private static String checkLegal(String s, int line, int sequenceType) throws FileFormatException {
-    	s = s.replaceAll("[ \\t\\n\\r]", "");
-    	
+    /**
+     * Creates a sequence from a FASTA header line (without the '>') and its residues.
+     */
+    static Sequence createFastaSequence(String header, CharSequence residues) {
+        int start = 0;
+        while (start < header.length() && header.charAt(start) == ' ')
+            ++start;
+        header = header.substring(start);
+
+        // separate name from description
+        int spacePos = header.indexOf(' ');
+        String name;
+        boolean nameCapped;
+        String description;
+        if (spacePos != -1) {   // only a name	
+           name = makeLegalName(header.substring(0, spacePos));
+           nameCapped = name.length() < header.substring(0, spacePos).length();
+           description = header.substring(spacePos);
+        } else {
+           name = makeLegalName(header);
+           nameCapped = name.length() < header.length();
+           description = "";
+        }
+
+        return new Sequence(name, nameCapped, description, PackedResidues.valueOf(residues));
+    }
+
+    /*
+     * For each sequence type, a table that indicates which (ASCII) characters
+     * are legal residues. Upper and lower case are both legal.
+     */
+    private static final boolean[][] LEGAL_RESIDUES = {
+    	legalResidues("ABCDEFGHIJKLMNOPQRSTUVWXYZ-.*"), // SEQUENCE_ANY
+    	legalResidues("ACGITRYSWKMBDHVN-.*"),           // SEQUENCE_DNA, bionumerics gives an occasional I?
+    	legalResidues("ACDEFGHIKLMNPQRSTUVWXY-.*")      // SEQUENCE_AA
+    };
+
+    private static boolean[] legalResidues(String residues) {
+    	boolean[] result = new boolean[256];
+    	for (int i = 0; i < residues.length(); ++i) {
+    		char c = residues.charAt(i);
+    		result[c] = true;
+    		result[Character.toLowerCase(c)] = true;
+    	}
+    	return result;
+    }
+
+    /**
+     * @return whether c is a legal residue for the given sequence type
+     */
+    static boolean isLegalResidue(int sequenceType, char c) {
+    	if (sequenceType < 0 || sequenceType >= LEGAL_RESIDUES.length)
+    		return true;
+    	else
+    		return c < 256 && LEGAL_RESIDUES[sequenceType][c];
+    }
+
+    /**
+     * @return whether c is white space that is ignored within sequence data.
+     */
+    static boolean isSequenceWhiteSpace(char c) {
+    	return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    /**
+     * Creates the exception for an illegal residue.
+     * 
+     * @param residues the (white space stripped) residues of the line, up to and
+     *   including the illegal residue
+     */
+    static FileFormatException illegalResidue(int sequenceType, CharSequence residues, int line) {
     	switch (sequenceType) {
-    	case SEQUENCE_ANY:
-    		if (!s.toUpperCase().matches("[A-Z\\-.*]*"))
-    			throw new FileFormatException("Illegal character in input", line);
-    		break;
     	case SEQUENCE_DNA:
-    		// bionumerics gives an occasional I?
-    		if (!s.toUpperCase().matches("[ACGITRYSWKMBDHVN\\-.*]*")) {
-    			String illegal = "";
-    			for (char c : s.toUpperCase().toCharArray()) {
-    				if (!"ACGITRYSWKMBDHVN-".contains(c+"")) {
-    					illegal += c;
-    					break;
-    				}
+    		String illegal = "";
+    		for (int i = 0; i < residues.length(); ++i) {
+    			char c = Character.toUpperCase(residues.charAt(i));
+    			if ("ACGITRYSWKMBDHVN-".indexOf(c) == -1) {
+    				illegal += c;
+    				break;
     			}
-    			throw new FileFormatException("Illegal nucleotide character (" + illegal + ") in input", line);
     		}
-    		break;
+    		return new FileFormatException("Illegal nucleotide character (" + illegal + ") in input", line);
     	case SEQUENCE_AA:
-    		if (!s.toUpperCase().matches("[ACDEFGHIKLMNPQRSTUVWXY\\-.*]*"))
-    			throw new FileFormatException("Illegal amino acid character in input", line);
+    		return new FileFormatException("Illegal amino acid character in input", line);
+    	default:
+    		return new FileFormatException("Illegal character in input", line);
+    	}
+    }
+
+    private static String checkLegal(String s, int line, int sequenceType) throws FileFormatException {
+    	StringBuffer result = new StringBuffer(s.length());
+
+    	for (int i = 0; i < s.length(); ++i) {
+    		char c = s.charAt(i);
+    		if (isSequenceWhiteSpace(c))
+    			continue;
+
+    		result.append(c);
+    		if (!isLegalResidue(sequenceType, c))
+    			throw illegalResidue(sequenceType, result, line);
     	}
-    		
-    	return s;
+
+    	return result.toString();
 	}
 
 	/**
@@ -312,11 +384,9 @@ public class SequenceAlignment
 	}
 
 	public AbstractSequence getSequence(String sequenceName) {
-		for (AbstractSequence s: sequences)
-			if (s.getName().equals(sequenceName))
-				return s;
+		int i = lookup(sequenceName);
 
-		return null;
+		return i == -1 ? null : sequences.get(i);
 	}
 
 	public List<AbstractSequence> getSequences() {
@@ -383,22 +453,25 @@ public class SequenceAlignment
          * http://www.ncbi.nlm.nih.gov/BLAST/fasta.html
          */
 
-        Writer writer = new OutputStreamWriter(outputFile);
+        ResidueWriter writer = new ResidueWriter(outputFile);
         final char endl = '\n';
+        final int lineLength = 50;
          
         Iterator<AbstractSequence> i = sequences.iterator();
         
         while (i.hasNext()) {
             AbstractSequence seq = i.next();
             
-            writer.write('>' + seq.getName() + " " + seq.getDescription() + endl);
-            
-            final int lineLength = 50;
+            writer.write('>');
+            writer.write(seq.getName());
+            writer.write(' ');
+            writer.write(seq.getDescription());
+            writer.write(endl);
             
             final int seqLength = seq.getLength();
             for (int j = 0; j < seqLength; j += lineLength) {
                 int end = Math.min(j + lineLength, seqLength);
-                writer.write(seq.getSequence().substring(j, end));
+                writer.writeResidues(seq, j, end);
                 writer.write(endl);
             }
         }
@@ -412,7 +485,7 @@ public class SequenceAlignment
          * The phylip format (for multiple sequences)
          */
 
-        Writer writer = new OutputStreamWriter(outputFile);
+        ResidueWriter writer = new ResidueWriter(outputFile);
         final char endl = '\n';
 
         writer.write(sequences.size() + " " + getLength() + endl);
@@ -425,8 +498,9 @@ public class SequenceAlignment
             String name = nexusName(seq, nameSet, MAX_PHYLIP_TAXUS_LENGTH);
             nameSet.add(name);
 
-            writer.write(padBack(new StringBuffer(name), MAX_PHYLIP_TAXUS_LENGTH + 2)
-            		     + seq.getSequence() + endl);
+            writer.writePadBack(name, MAX_PHYLIP_TAXUS_LENGTH + 2);
+            writer.writeResidues(seq, 0, seq.getLength());
+            writer.write(endl);
         }
         
         writer.flush();
@@ -437,7 +511,7 @@ public class SequenceAlignment
         /*
          * The Nexus file format, as taken from an example file
          */
-        Writer writer = new OutputStreamWriter(outputFile);
+        ResidueWriter writer = new ResidueWriter(outputFile);
         final char endl = '\n';
         
         writer.write("#NEXUS" + endl);
@@ -450,49 +524,77 @@ public class SequenceAlignment
             String name = nexusName(seq, nameSet, MAX_NEXUS_TAXUS_LENGTH);
             nameList.add(name);
             nameSet.add(name);
-            writer.write("[Name: " + padBack(new StringBuffer(name), MAX_NEXUS_TAXUS_LENGTH + 2)
-                        + "Len: " +  padBack(new StringBuffer().append(seq.getLength()), 10)
-                        + "Check: 0]" + endl);
-            
+            writeNexusTaxus(writer, name, seq);
         }
         
-        writer.write(endl);
+        writeNexusMatrixHeader(writer, sequences.size(), getLength(), sequenceType);
+
+        for (int j = 0; j < getLength(); j += NEXUS_BLOCK_LENGTH) {
+            for (int i = 0; i < sequences.size(); ++i)
+                writeNexusRow(writer, nameList.get(i), sequences.get(i), j);
+            
+            writer.write(endl);
+        }
         
+        writeNexusEnd(writer);
+        writer.flush();
+    }
+
+    /*
+     * The parts of the Nexus format, shared with NexusWriter.
+     */
+    static void writeNexusTaxus(ResidueWriter writer, String name, AbstractSequence seq)
+        throws IOException
+    {
+        writer.write("[Name: ");
+        writer.writePadBack(name, MAX_NEXUS_TAXUS_LENGTH + 2);
+        writer.write("Len: ");
+        writer.writePadBack(String.valueOf(seq.getLength()), 10);
+        writer.write("Check: 0]\n");
+    }
+
+    static void writeNexusMatrixHeader(ResidueWriter writer, int ntax, int nchar, int sequenceType)
+        throws IOException
+    {
+        final char endl = '\n';
         String dataType[] = { "DNA", "protein" };
-        
+
+        writer.write(endl);
         writer.write("begin data;" + endl);
-        writer.write(" dimensions ntax=" + sequences.size() + " nchar=" + getLength() + ";" + endl);
+        writer.write(" dimensions ntax=" + ntax + " nchar=" + nchar + ";" + endl);
         writer.write(" format datatype=" + dataType[sequenceType] + " interleave missing=? gap=-;" + endl);
         writer.write("  matrix" + endl);
+    }
 
+    /**
+     * Writes the row of a sequence in the matrix block that starts at column j.
+     */
+    static void writeNexusRow(ResidueWriter writer, String name, AbstractSequence seq, int j)
+        throws IOException
+    {
         final int blockUnit = 20;
-        final int blockUnitsPerBlock = 5;
-        for (int j = 0; j < getLength(); j += (blockUnit * blockUnitsPerBlock)) {
-            for (int i = 0; i < sequences.size(); ++i) {
-                AbstractSequence seq = sequences.get(i);
-                
-                writer.write(new String(padFront(new StringBuffer((String) nameList.get(i)), MAX_NEXUS_TAXUS_LENGTH + 2)));
-                for (int k = 0; k < blockUnitsPerBlock; ++k) {
-                    int start = j + (k * blockUnit);
-                    int end = Math.min(start + blockUnit, seq.getSequence().length());
-                    String s = seq.getSequence().substring(start, end);
-                    
-                    writer.write(" " + s);
-                    if (s.length() < blockUnit)
-                        break;
-                }
-                writer.write(endl);
-            }
-            
-            writer.write(endl);
+        final int blockUnitsPerBlock = NEXUS_BLOCK_LENGTH / blockUnit;
+
+        writer.writePadFront(name, MAX_NEXUS_TAXUS_LENGTH + 2);
+        for (int k = 0; k < blockUnitsPerBlock; ++k) {
+            int start = j + (k * blockUnit);
+            int end = Math.min(start + blockUnit, seq.getLength());
+
+            writer.write(' ');
+            writer.writeResidues(seq, start, end);
+            if (end - start < blockUnit)
+                break;
         }
-        
-        writer.write("  ;" + endl);
-        writer.write("end;" + endl);
-        writer.flush();
+        writer.write('\n');
+    }
+
+    static void writeNexusEnd(ResidueWriter writer) throws IOException
+    {
+        writer.write("  ;\n");
+        writer.write("end;\n");
     }
 
-    String nexusName(AbstractSequence seq, Set<String> names, int maxlength) {
+    static String nexusName(AbstractSequence seq, Set<String> names, int maxlength) {
         String name = seq.getName();
         name = name.substring(0, Math.min(maxlength, name.length()));
         name = name.replace('-', '_');
@@ -522,28 +624,9 @@ public class SequenceAlignment
         return name;
     }
 
-    private static StringBuffer padBack(StringBuffer s, int total) {
-        StringBuffer result = s;
-        int numAdded = total - s.length();
-        for (int i = 0; i < numAdded; ++i)
-          result.append(' ');
-        
-        return result;
-    }
-
-    private static StringBuffer padFront(StringBuffer s, int total) {
-        StringBuffer result = new StringBuffer();
-        int numAdded = total - s.length();
-        for (int i = 0; i < numAdded; ++i)
-          result.append(' ');
-
-        result.append(s);
-
-        return result;
-    }
-
 	public void reverseTaxa() {
 		Collections.reverse(sequences);
+		nameIndex = null;
 	}
 
 	public int getSequenceType() {
@@ -568,63 +651,148 @@ public class SequenceAlignment
     
     public void removeAllGapSequences() {
         for (int i = 0; i < sequences.size(); ++i) {
-            Sequence s = (Sequence) sequences.get(i);
+            AbstractSequence s = sequences.get(i);
             if (s.firstNonGapPosition() == s.getLength()) {
                 sequences.remove(i);
+                nameIndex = null;
                 --i;
             }
         }
     }
 
+    /**
+     * @return the first column from which every sequence has started
+     */
     public int firstNonGapPosition() {
-    	int firstNonGap = 0;
-
-    	for (int i = 0; i < sequences.size(); ++i) {
-            Sequence s = (Sequence) sequences.get(i);
-            firstNonGap = Math.max(firstNonGap, s.firstNonGapPosition());
-    	}
-    	
-    	return firstNonGap;
+    	return getColumnGaps().firstNonGapPosition();
 	}
 
+    /**
+     * @return the last non-gap column of the sequence that ends first
+     */
     public int lastNonGapPosition() {
-    	int lastNonGap = getLength();
-
-    	for (int i = 0; i < sequences.size(); ++i) {
-            Sequence s = (Sequence) sequences.get(i);
-            lastNonGap = Math.min(lastNonGap, s.lastNonGapPosition());
-    	}
-    	
-    	return lastNonGap;
+    	return getColumnGaps().lastNonGapPosition();
 	}
 
+    /**
+     * Finds a sequence by name, taking into account that clustal replaces
+     * ':' and ',' in names with '_'.
+     */
     public AbstractSequence findSequence(String name) {
-    	name = name.replaceAll(":", "_").replaceAll(",", "_"); // Apparently, clustal will do that!
-        for (int i = 0; i < sequences.size(); ++i)
-            if (sequences.get(i).getName().equals(name))
-                return sequences.get(i);
+    	int i = lookup(normalizeName(name));
+
+    	return i == -1 ? null : sequences.get(i);
+    }
+
+    /**
+     * Finds the sequences for a list of names, see findSequence().
+     * 
+     * @return a list with for each name the sequence, or null if not found.
+     */
+    public List<AbstractSequence> findSequences(List<String> names) {
+    	List<AbstractSequence> result = new ArrayList<AbstractSequence>(names.size());
+
+    	for (String name : names) {
+    		int i = lookup(normalizeName(name));
+    		result.add(i == -1 ? null : sequences.get(i));
+    	}
 
-        return null;
+    	return result;
     }
 
     public int getIndex(AbstractSequence sequence) {
-        return sequences.indexOf(sequence);
+    	if (sequence == null)
+    		return sequences.indexOf(null);
+
+    	int i = lookup(sequence.getName());
+    	if (i != -1 && sequences.get(i) == sequence)
+    		return i;
+    	else
+    		return sequences.indexOf(sequence);
+    }
+
+    /**
+     * Returns the indexes for a list of names, see findSequence().
+     * 
+     * @return for each name the index, or -1 if not found.
+     */
+    public int[] getIndexes(List<String> names) {
+    	int[] result = new int[names.size()];
+
+    	for (int j = 0; j < names.size(); ++j)
+    		result[j] = lookup(normalizeName(names.get(j)));
+
+    	return result;
     }
 
     public void addSequence(AbstractSequence sequence) {
     	sequences.add(sequence);
+
+    	if (nameIndex != null && !nameIndex.containsKey(sequence.getName()))
+    		nameIndex.put(sequence.getName(), sequences.size() - 1);
     }
 
     public boolean removeSequence(AbstractSequence sequence) {
+    	nameIndex = null;
     	return sequences.remove(sequence);
     }
 
     public boolean removeSequence(String sequenceName) {
-    	for(AbstractSequence s: sequences)
-    		if(s.getName().equals(sequenceName))
-    			return sequences.remove(s);
+    	int i = lookup(sequenceName);
+    	if (i == -1)
+    		return false;
+
+    	sequences.remove(i);
+    	nameIndex = null;
+    	return true;
+    }
+
+    /**
+     * Rebuilds the name index. Lookups find changed names anyway, but
+     * rebuilding after renaming many sequences avoids a scan for each.
+     */
+    public void reindex() {
+    	buildNameIndex();
+    }
+
+    /*
+     * Returns the index of the first sequence with the given name, or -1.
+     *
+     * Since the list of sequences (and their names) may also be changed
+     * directly, an index entry is verified, and when the name is not found
+     * in the index we fall back to a scan, and rebuild the index when that
+     * finds it.
+     */
+    private int lookup(String name) {
+    	Map<String, Integer> index = nameIndex;
+    	if (index == null)
+    		index = buildNameIndex();
+
+    	Integer i = index.get(name);
+    	if (i != null && i < sequences.size() && sequences.get(i).getName().equals(name))
+    		return i;
+
+    	for (int j = 0; j < sequences.size(); ++j)
+    		if (sequences.get(j).getName().equals(name)) {
+    			buildNameIndex();
+    			return j;
+    		}
+
+    	return -1;
+    }
+
+    private Map<String, Integer> buildNameIndex() {
+    	Map<String, Integer> index = new HashMap<String, Integer>(sequences.size() * 2);
+
+    	for (int i = sequences.size() - 1; i >= 0; --i)
+    		index.put(sequences.get(i).getName(), i);
+
+    	nameIndex = index;
+    	return index;
+    }
 
-    	return false;
+    private static String normalizeName(String name) {
+    	return name.replace(':', '_').replace(',', '_'); // Apparently, clustal will do that!
     }
     
     public SequenceAlignment selectSequencesFromClusters(List<Cluster> clusters) {
@@ -641,9 +809,10 @@ public class SequenceAlignment
 	}
     
     public SequenceAlignment selectSequences(List<String> selection) {
-        List<AbstractSequence> selected = new ArrayList<AbstractSequence>();
+        List<AbstractSequence> found = findSequences(selection);
+        List<AbstractSequence> selected = new ArrayList<AbstractSequence>(found.size());
         for (int i = 0; i < selection.size(); ++i) {
-            AbstractSequence seq = findSequence(selection.get(i));
+            AbstractSequence seq = found.get(i);
             if (seq == null) {
                 System.err.println("Could not find sequence: \""
                         + selection.get(i) + "\"");
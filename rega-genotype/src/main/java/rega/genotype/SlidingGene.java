@@ -1,27 +1,114 @@
 /*
  * Copyright (C) 2008 Rega Institute for Medical Research, KULeuven
- * 
+ *
  * See the LICENSE file for terms of use.
  */
 package rega.genotype;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /*
- * Utility class to create a list of sliding windows used by ScanAnalysis
+ * The sliding windows over an alignment, used by ScanAnalysis.
+ *
+ * Windows are created on demand, as views on the alignment, so that only the
+ * window that is being analyzed needs to be in memory. A range of windows may
+ * be split in two, to distribute the windows over several workers.
  */
-public class SlidingGene {
-    static List<SequenceAlignment> generateSlidingWindow(SequenceAlignment alignment, int windowSize, int step) {
-        int alignmentLength = alignment.getLength();
-        List<SequenceAlignment> result = new ArrayList<SequenceAlignment>();
-        
-        int i = 0;
-        for (i = 0; i < alignmentLength - windowSize; i += step) {
-            result.add(alignment.getSubSequence(i, i + windowSize));
-        }
-
-        result.add(alignment.getSubSequence(i, alignmentLength));
-        
+public class SlidingGene implements Iterable<SequenceAlignment> {
+    private SequenceAlignment alignment;
+    private int windowSize;
+    private int step;
+    private int windowCount;
+    private int begin, end;
+
+    /**
+     * Creates the windows of the given size, with the given step. The last
+     * window is extended to the end of the alignment.
+     */
+    public SlidingGene(SequenceAlignment alignment, int windowSize, int step) {
+        this.alignment = alignment;
+        this.windowSize = windowSize;
+        this.step = step;
+
+        int scanLength = alignment.getLength() - windowSize;
+        this.windowCount = (scanLength <= 0 ? 0 : (scanLength + step - 1) / step) + 1;
+        this.begin = 0;
+        this.end = windowCount;
+    }
+
+    private SlidingGene(SlidingGene other, int begin, int end) {
+        this.alignment = other.alignment;
+        this.windowSize = other.windowSize;
+        this.step = other.step;
+        this.windowCount = other.windowCount;
+        this.begin = begin;
+        this.end = end;
+    }
+
+    /**
+     * @return the number of windows in this range
+     */
+    public int size() {
+        return end - begin;
+    }
+
+    /**
+     * @return the index of the first window in this range
+     */
+    public int getBegin() {
+        return begin;
+    }
+
+    /**
+     * Returns the window with the given index (between getBegin() and
+     * getBegin() + size()).
+     */
+    public SequenceAlignment getWindow(int i) {
+        if (i < begin || i >= end)
+            throw new IndexOutOfBoundsException("Window " + i + ", range [" + begin + ", " + end + "[");
+
+        int start = i * step;
+        if (i == windowCount - 1)
+            return alignment.getSubSequence(start, alignment.getLength());
+        else
+            return alignment.getSubSequence(start, start + windowSize);
+    }
+
+    /**
+     * Splits off the first half of the windows, which are no longer part of
+     * this range.
+     *
+     * @return the first half, or null if there are less than two windows.
+     */
+    public SlidingGene trySplit() {
+        if (size() < 2)
+            return null;
+
+        int middle = begin + size() / 2;
+        SlidingGene result = new SlidingGene(this, begin, middle);
+        begin = middle;
+
         return result;
     }
+
+    public Iterator<SequenceAlignment> iterator() {
+        return new Iterator<SequenceAlignment>() {
+            private int i = begin;
+
+            public boolean hasNext() {
+                return i < end;
+            }
+
+            public SequenceAlignment next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                return getWindow(i++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
 }
@@ -9,6 +9,9 @@ package rega.genotype;
  * Implements the abstract sequence interface based on a subsequence of another
  * AbstractSequence.
  * 
+ * A sub sequence is a view: it does not copy residues. A sub sequence of a sub
+ * sequence refers directly to the underlying sequence.
+ * 
  * @author koen
  */
 public class SubSequence extends AbstractSequence {
@@ -22,6 +25,13 @@ public class SubSequence extends AbstractSequence {
                        AbstractSequence sequence, int beginIndex,
                        int endIndex)
     {
+        if (sequence instanceof SubSequence) {
+            SubSequence parent = (SubSequence) sequence;
+            sequence = parent.sequence;
+            beginIndex += parent.beginIndex;
+            endIndex += parent.beginIndex;
+        }
+
         this.name = name;
         this.description = description;
         this.sequence = sequence;
@@ -38,13 +48,43 @@ public class SubSequence extends AbstractSequence {
     }
 
     public String getSequence() {
-        return sequence.getSequence().substring(beginIndex, endIndex);
+        char[] result = new char[getLength()];
+        sequence.getChars(beginIndex, endIndex, result, 0);
+        return new String(result);
     }
 
     public int getLength() {
         return (endIndex - beginIndex);
     }
 
+    public char charAt(int i) {
+        return sequence.charAt(beginIndex + i);
+    }
+
+    public boolean isGap(int i) {
+        return sequence.isGap(beginIndex + i);
+    }
+
+    public long gapWord(int i) {
+        long result = sequence.gapWord(beginIndex + i);
+        int remaining = getLength() - i;
+        if (remaining < 64)
+            result &= remaining <= 0 ? 0 : (1L << remaining) - 1;
+        return result;
+    }
+
+    public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+        sequence.getChars(beginIndex + srcBegin, beginIndex + srcEnd, dst, dstBegin);
+    }
+
+    public void getBytes(int srcBegin, int srcEnd, byte[] dst, int dstBegin) {
+        sequence.getBytes(beginIndex + srcBegin, beginIndex + srcEnd, dst, dstBegin);
+    }
+
+    public CharSequence getResidues() {
+        return residueView(sequence, beginIndex, endIndex);
+    }
+
 	public void removeChar(int i) {
 		sequence.removeChar(beginIndex + i);
 	}
@@ -54,6 +94,21 @@ public class SubSequence extends AbstractSequence {
 		return sequence.sourceSequence();
 	}
 
+	/**
+	 * @return the sequence that this sequence is a part of, which is never
+	 *   itself a sub sequence.
+	 */
+	AbstractSequence baseSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return the index in the base sequence of the first residue.
+	 */
+	int beginIndex() {
+		return beginIndex;
+	}
+
 	@Override
 	public void setName(String name) {
 		this.name = name;
@@ -7,6 +7,7 @@ import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.List;
 
+import rega.genotype.AlignmentCache;
 import rega.genotype.singletons.Settings;
 import rega.genotype.utils.FileUtil;
 import rega.genotype.utils.GsonUtil;
@@ -223,11 +224,25 @@ public class Config {
 		private String paupCmd = "paup4b10";
 		private String clustalWCmd = "clustalW";
 		private String blastPath = "/usr/bin/";
+		private String blastEngine = "blastall"; // "blastall" (formatdb and blastall) or "blast+" (makeblastdb, blastn and blastx)
+		private int blastThreads = 1; // threads of one blast search
+		private boolean blastPrefilter = false; // assign clusters with a k-mer index before running blast (BlastTool)
+		private int blastDetailsThreads = 2; // blast detail reports that are generated at the same time
 		private String treePuzzleCmd = "puzzle";
 		private String treeGraphCmd = "tgf";
 		private String epsToPdfCmd = "epstopdf";
 		private String imageMagickConvertCmd = "convert";
 		private int maxAllowedSeqs = 2000;
+		private boolean syncFiles = false; // fsync input files of external tools before running them.
+		private String pairAligner = "clustalw"; // alignment engine for pairwise alignments: "clustalw" or "java" (in-process)
+		private String alignmentEngine; // alignment engine for profile alignments: "clustalw" (default), "mafft" or "java" (in-process)
+		private String profileAligner; // the former name of alignmentEngine, used when alignmentEngine is not set.
+		private String mafftCmd = "mafft";
+		private String scratchDir; // files of external tools, defaults to /dev/shm or the system temp dir.
+		private long alignmentCacheSize = AlignmentCache.DEFAULT_MAX_RESIDUES; // residues in the cached alignments of a tool
+		private long resultCacheSize = 0; // MB of cached analysis results in the base dir, 0 disables the cache.
+		private long blastDbCacheSize = 1024; // MB of formatted blast databases in the base dir, see BlastDbCache.
+		private int blastBatchSize = 0; // sequences of a job that are blasted at once, 0 (the default) blasts every sequence separately.
 		private String inkscapeCmd = "inkscape";
 		private String edirectPath = "/usr/bin/edirect/";
 		private String publisherName; // Unique publisher name for the server copied to ToolManifest.
@@ -277,6 +292,89 @@ public class Config {
 		public void setMaxAllowedSeqs(int maxAllowedSeqs) {
 			this.maxAllowedSeqs = maxAllowedSeqs;
 		}
+		public boolean isSyncFiles() {
+			return syncFiles;
+		}
+		public void setSyncFiles(boolean syncFiles) {
+			this.syncFiles = syncFiles;
+		}
+		public String getPairAligner() {
+			return pairAligner;
+		}
+		public void setPairAligner(String pairAligner) {
+			this.pairAligner = pairAligner;
+		}
+		public String getAlignmentEngine() {
+			if (alignmentEngine != null)
+				return alignmentEngine;
+			else if (profileAligner != null)
+				return profileAligner;
+			else
+				return "clustalw";
+		}
+		public void setAlignmentEngine(String alignmentEngine) {
+			this.alignmentEngine = alignmentEngine;
+		}
+		public String getMafftCmd() {
+			return mafftCmd;
+		}
+		public void setMafftCmd(String mafftCmd) {
+			this.mafftCmd = mafftCmd;
+		}
+		public String getScratchDir() {
+			return scratchDir;
+		}
+		public void setScratchDir(String scratchDir) {
+			this.scratchDir = scratchDir;
+		}
+		public long getAlignmentCacheSize() {
+			return alignmentCacheSize;
+		}
+		public void setAlignmentCacheSize(long alignmentCacheSize) {
+			this.alignmentCacheSize = alignmentCacheSize;
+		}
+		public long getResultCacheSize() {
+			return resultCacheSize;
+		}
+		public void setResultCacheSize(long resultCacheSize) {
+			this.resultCacheSize = resultCacheSize;
+		}
+		public long getBlastDbCacheSize() {
+			return blastDbCacheSize;
+		}
+		public void setBlastDbCacheSize(long blastDbCacheSize) {
+			this.blastDbCacheSize = blastDbCacheSize;
+		}
+		public String getBlastEngine() {
+			return blastEngine;
+		}
+		public void setBlastEngine(String blastEngine) {
+			this.blastEngine = blastEngine;
+		}
+		public int getBlastThreads() {
+			return blastThreads;
+		}
+		public void setBlastThreads(int blastThreads) {
+			this.blastThreads = blastThreads;
+		}
+		public boolean isBlastPrefilter() {
+			return blastPrefilter;
+		}
+		public void setBlastPrefilter(boolean blastPrefilter) {
+			this.blastPrefilter = blastPrefilter;
+		}
+		public int getBlastBatchSize() {
+			return blastBatchSize;
+		}
+		public void setBlastBatchSize(int blastBatchSize) {
+			this.blastBatchSize = blastBatchSize;
+		}
+		public int getBlastDetailsThreads() {
+			return blastDetailsThreads;
+		}
+		public void setBlastDetailsThreads(int blastDetailsThreads) {
+			this.blastDetailsThreads = blastDetailsThreads;
+		}
 		public String getInkscapeCmd() {
 			return inkscapeCmd;
 		}
@@ -30,6 +30,7 @@ public class ToolManifest {
 	private String publisherName; // Copy from publisher Server global config publisherName, read only for users.
 	private Date publicationDate; // filled by Repo server, read only for users.
 	private String softwareVersion;
+	private String alignmentEngine; // overrides the alignment engine of the global config, may be null.
 
 	public ToolManifest() {}
 
@@ -155,6 +156,14 @@ public class ToolManifest {
 		this.hivTool = hivTool;
 	}
 
+	public String getAlignmentEngine() {
+		return alignmentEngine;
+	}
+
+	public void setAlignmentEngine(String alignmentEngine) {
+		this.alignmentEngine = alignmentEngine;
+	}
+
 	public String getTaxonomyId() {
 		return taxonomyId;
 	}
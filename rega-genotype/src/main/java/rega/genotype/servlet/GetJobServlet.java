@@ -12,6 +12,8 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import rega.genotype.BlastDetails;
+
 
 public class GetJobServlet extends HttpServlet {
 
@@ -24,8 +26,16 @@ public class GetJobServlet extends HttpServlet {
 
 		try{
 			
-		String path = dir + "/base-work-dir/job/"
-				+ req.getParameter("job_dir") + "/" + req.getParameter("job_id") + "/" + req.getParameter("file");
+		File jobDir = new File(dir + "/base-work-dir/job/"
+				+ req.getParameter("job_dir") + "/" + req.getParameter("job_id"));
+		String file = req.getParameter("file");
+		File path = new File(jobDir, file);
+
+		/*
+		 * Blast details are only generated when they are first asked for.
+		 */
+		if (!path.exists() && file.endsWith(BlastDetails.REPORT_SUFFIX))
+			path = BlastDetails.getReport(jobDir, file);
 		
 		PrintWriter out = res.getWriter();
 		FileInputStream fis = new FileInputStream(path);
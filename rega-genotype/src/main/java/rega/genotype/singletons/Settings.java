@@ -112,6 +112,58 @@ public class Settings {
 		return config.getGeneralConfig().getMaxAllowedSeqs();
 	}
 
+	public boolean isSyncFiles() {
+		return config.getGeneralConfig().isSyncFiles();
+	}
+
+	public String getPairAligner() {
+		return config.getGeneralConfig().getPairAligner();
+	}
+
+	public String getAlignmentEngine() {
+		return config.getGeneralConfig().getAlignmentEngine();
+	}
+
+	public String getMafftCmd() {
+		return config.getGeneralConfig().getMafftCmd();
+	}
+
+	public String getScratchDir() {
+		return config.getGeneralConfig().getScratchDir();
+	}
+
+	public long getAlignmentCacheSize() {
+		return config.getGeneralConfig().getAlignmentCacheSize();
+	}
+
+	public long getResultCacheSize() {
+		return config.getGeneralConfig().getResultCacheSize();
+	}
+
+	public long getBlastDbCacheSize() {
+		return config.getGeneralConfig().getBlastDbCacheSize();
+	}
+
+	public String getBlastEngine() {
+		return config.getGeneralConfig().getBlastEngine();
+	}
+
+	public int getBlastThreads() {
+		return config.getGeneralConfig().getBlastThreads();
+	}
+
+	public boolean isBlastPrefilter() {
+		return config.getGeneralConfig().isBlastPrefilter();
+	}
+
+	public int getBlastBatchSize() {
+		return config.getGeneralConfig().getBlastBatchSize();
+	}
+
+	public int getBlastDetailsThreads() {
+		return config.getGeneralConfig().getBlastDetailsThreads();
+	}
+
 	public final Config getConfig() {
 		return config;
 	}
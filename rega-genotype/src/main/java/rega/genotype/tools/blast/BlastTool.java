@@ -33,6 +33,7 @@ public class BlastTool extends GenotypeTool {
 
     	blastXml = readAnalyses(getXmlPathAsString() + "blast.xml", getWorkingDir());
     	blastAnalysis = (BlastAnalysis) blastXml.getAnalysis("blast");
+    	blastAnalysis.setPrefilter(Settings.getInstance().isBlastPrefilter());
     }
 
     @Override
@@ -45,6 +46,15 @@ public class BlastTool extends GenotypeTool {
     	conclude(blastAnalysis, blastResult);
     }
 
+    /**
+     * The sequences of a cluster are also written to the input file of its
+     * tool (see analyseClaster()), which the result cache does not replay.
+     */
+    @Override
+    protected boolean isResultCacheable() {
+    	return false;
+    }
+
 	/**
 	 * Blast tool will order the results buy tool ids, so later the specific tool
 	 * can make analysis only on the related sequence.
@@ -309,6 +309,7 @@ public class PanViralToolGenerator {
 
 			cluster.addTaxus(new Taxus(accessionNumber));	
 		}
+		alignmentAnalyses.getAlignment().reindex();
 
 		return alignmentAnalyses;
 	}
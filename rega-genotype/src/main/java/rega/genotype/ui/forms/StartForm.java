@@ -5,10 +5,9 @@
  */
 package rega.genotype.ui.forms;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.LineNumberReader;
-import java.io.StringReader;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
@@ -16,6 +15,7 @@ import java.util.Set;
 
 import rega.genotype.AlignmentAnalyses;
 import rega.genotype.AlignmentAnalyses.Cluster;
+import rega.genotype.FastaReader;
 import rega.genotype.FileFormatException;
 import rega.genotype.ParameterProblemException;
 import rega.genotype.Sequence;
@@ -56,6 +56,8 @@ public class StartForm extends AbstractForm {
 	private WLineEdit jobIdTF;
 	
 	private WText errorJobId, errorText;
+
+	private boolean namesCapped = false;
 	
 	public StartForm(GenotypeWindow main) {
 		super(main);
@@ -102,7 +104,7 @@ public class StartForm extends AbstractForm {
 				validateInput(error);
 				
 				final Boolean submit = true;
-				if (capSequences(fasta)) {
+				if (namesCapped) {
 					final WMessageBox messageBox = new WMessageBox(
 		                    tr("sequenceInput.capWarning.title").toString(),
 		                    tr("sequenceInput.capWarning.msg"),
@@ -251,38 +253,24 @@ public class StartForm extends AbstractForm {
 		return thisJobDir;
 	}
 
-	private boolean capSequences(String fastaContent) {
-		LineNumberReader r = new LineNumberReader(new StringReader(fastaContent));
-
-		try {
-			while (true) {
-				Sequence s = SequenceAlignment.readFastaFileSequence(r, SequenceAlignment.SEQUENCE_DNA);
-				if (s == null)
-					break;
-				
-				if (s.isNameCapped()) 
-					return true;
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
-			return false;
-		} catch (FileFormatException e) {
-			return false;
-		}
-		
-		return false;
-	}
-	
+	/**
+	 * Verifies the FASTA input, and sets namesCapped if a sequence name needs
+	 * to be capped.
+	 */
 	private CharSequence verifyFasta(String fastaContent) {
 		int sequenceCount = 0;
+		namesCapped = false;
 
-		LineNumberReader r = new LineNumberReader(new StringReader(fastaContent));
+		FastaReader r = new FastaReader(new ByteArrayInputStream(fastaContent.getBytes()),
+				SequenceAlignment.SEQUENCE_DNA);
 
 		try {
 			while (true) {
-				if (SequenceAlignment.readFastaFileSequence(r, SequenceAlignment.SEQUENCE_DNA)
-						== null)
+				Sequence s = r.next();
+				if (s == null)
 					break;
+				if (s.isNameCapped())
+					namesCapped = true;
 				++sequenceCount;
 			}
 
@@ -8,14 +8,19 @@ package rega.genotype.ui.forms.details;
 import java.io.File;
 import java.io.IOException;
 
+import rega.genotype.ApplicationException;
+import rega.genotype.BlastDetails;
 import rega.genotype.data.GenotypeResultParser;
 import rega.genotype.ui.data.OrganismDefinition;
 import rega.genotype.ui.forms.IDetailsForm;
 import rega.genotype.ui.util.GenotypeLib;
+import eu.webtoolkit.jwt.AnchorTarget;
+import eu.webtoolkit.jwt.WAnchor;
 import eu.webtoolkit.jwt.WBreak;
 import eu.webtoolkit.jwt.WContainerWidget;
 import eu.webtoolkit.jwt.WFileResource;
 import eu.webtoolkit.jwt.WImage;
+import eu.webtoolkit.jwt.WLink;
 import eu.webtoolkit.jwt.WString;
 import eu.webtoolkit.jwt.WText;
 import eu.webtoolkit.jwt.servlet.WebRequest;
@@ -145,6 +150,28 @@ public class DefaultSequenceAssignmentForm extends IDetailsForm {
 		} else {
 			motivation.addWidget(new WText(GenotypeLib.getEscapedValue(p, "/genotype_result/sequence/conclusion/motivation")));
 		}
+
+		final String details = p.getValue("/genotype_result/sequence/result[@id='blast']/clusters/details");
+		if (details != null) {
+			// the blast report is generated when it is first opened
+			WFileResource detailsResource = new WFileResource("text/html", "") {
+				@Override
+				public void handleRequest(WebRequest request, WebResponse response) {
+					try {
+						if (getFileName().isEmpty())
+							setFileName(BlastDetails.getReport(jobDir, details).getAbsolutePath());
+						super.handleRequest(request, response);
+					} catch (ApplicationException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+
+			motivation.addWidget(new WBreak());
+			WAnchor detailsAnchor = new WAnchor(new WLink(detailsResource), tr("defaultSequenceAssignment.blastDetails"));
+			detailsAnchor.setTarget(AnchorTarget.TargetNewWindow);
+			motivation.addWidget(detailsAnchor);
+		}
 	}
 
 	@Override
@@ -0,0 +1,104 @@
+package rega.genotype.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An external tool that is run with its input and output over pipes.
+ * 
+ * The standard error of the tool is copied to System.err. Input may be written
+ * to the standard input of the tool from a separate thread, so that the
+ * standard output can be read at the same time without blocking the tool.
+ */
+public class ExternalProcess {
+	private Process process;
+	private Thread errors;
+	private Thread input;
+	private IOException inputError;
+
+	public ExternalProcess(String command, File dir) throws IOException {
+		this.process = Runtime.getRuntime().exec(command, null, dir);
+		this.errors = new StreamReaderThread(process.getErrorStream(), System.err);
+		this.errors.start();
+	}
+
+	/**
+	 * @return the standard input of the tool.
+	 */
+	public OutputStream getInput() {
+		return process.getOutputStream();
+	}
+
+	/**
+	 * @return the standard output of the tool.
+	 */
+	public InputStream getOutput() {
+		return process.getInputStream();
+	}
+
+	/**
+	 * Writes the data to the standard input of the tool, from a separate
+	 * thread, and then closes it.
+	 */
+	public void writeInput(final byte[] data) {
+		input = new Thread() {
+			@Override
+			public void run() {
+				try {
+					OutputStream out = process.getOutputStream();
+					out.write(data);
+					out.close();
+				} catch (IOException e) {
+					inputError = e;
+				}
+			}
+		};
+		input.start();
+	}
+
+	/**
+	 * Closes the standard input, for a tool that does not read any input.
+	 */
+	public void closeInput() throws IOException {
+		process.getOutputStream().close();
+	}
+
+	/**
+	 * Waits for the tool to finish, and closes its streams.
+	 * 
+	 * When the waiting thread is interrupted (for example when a job is
+	 * cancelled), the tool is killed.
+	 * 
+	 * @return the exit value of the tool.
+	 */
+	public int waitFor() throws InterruptedException, IOException {
+		int result;
+		try {
+			result = process.waitFor();
+		} catch (InterruptedException e) {
+			process.destroy();
+			throw e;
+		}
+		errors.join();
+		if (input != null)
+			input.join();
+
+		process.getInputStream().close();
+		process.getErrorStream().close();
+		process.getOutputStream().close();
+
+		if (inputError != null && result == 0)
+			throw inputError;
+
+		return result;
+	}
+
+	/**
+	 * Kills the tool.
+	 */
+	public void destroy() {
+		process.destroy();
+	}
+}
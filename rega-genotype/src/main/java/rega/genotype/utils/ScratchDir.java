@@ -0,0 +1,59 @@
+package rega.genotype.utils;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+
+import rega.genotype.singletons.Settings;
+
+/**
+ * A private directory for the input and output files of an external tool,
+ * which is deleted together with its content when the tool has finished.
+ * 
+ * Scratch directories are created in the configured scratch directory, or by
+ * default in /dev/shm (a tmpfs) if it is writable, and in the system temporary
+ * directory otherwise.
+ */
+public class ScratchDir {
+	private File dir;
+
+	public ScratchDir(String prefix) throws IOException {
+		this(getRoot(), prefix);
+	}
+
+	public ScratchDir(File root, String prefix) throws IOException {
+		root.mkdirs();
+		this.dir = FileUtil.createTempDirectory(prefix, root);
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	/**
+	 * @return a file in the scratch directory.
+	 */
+	public File getFile(String name) {
+		return new File(dir, name);
+	}
+
+	/**
+	 * Deletes the directory and its content.
+	 */
+	public void delete() {
+		FileUtils.deleteQuietly(dir);
+	}
+
+	public static File getRoot() {
+		Settings settings = Settings.getInstance();
+		if (settings != null && settings.getConfig() != null && settings.getScratchDir() != null)
+			return new File(settings.getScratchDir());
+
+		File shm = new File("/dev/shm");
+		if (shm.isDirectory() && shm.canWrite())
+			return shm;
+		else
+			return new File(System.getProperty("java.io.tmpdir"));
+	}
+}
@@ -93,7 +93,7 @@ public class GenericTool extends GenotypeTool {
         	 * Reverse complement the sequence for subsequent analyses.
         	 */
         	if (blastResult.isReverseComplement())
-        		s = s.reverseCompliment();
+        		s = s.reverseComplementView();
 
         	boolean haveConclusion = false;
 
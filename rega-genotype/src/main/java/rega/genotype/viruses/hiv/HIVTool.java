@@ -53,7 +53,7 @@ public class HIVTool extends GenotypeTool {
         if (result.haveSupport()) {
         	
         	if (result.isReverseComplement())
-        		s = s.reverseCompliment();
+        		s = s.reverseComplementView();
         	
             if (result.getCluster().getId().equals("1"))
                 hiv1subtypetool.analyze(s);
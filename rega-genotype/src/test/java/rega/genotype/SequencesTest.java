@@ -1,9 +1,23 @@
 package rega.genotype;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.StringBufferInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import rega.genotype.config.Config;
+import rega.genotype.singletons.Settings;
+import rega.genotype.utils.ExternalProcess;
+import rega.genotype.utils.FileUtil;
+import rega.genotype.utils.ScratchDir;
 
 public class SequencesTest extends TestCase {
 
@@ -61,6 +75,346 @@ public class SequencesTest extends TestCase {
 		testSequences(s1, s2, "abcd", "ACGT", "efgh", "ACGTACGTACGTGT");
 	}
 
+	public void testFastaReader() throws Exception {
+		String s = "\r\n>a desc\r\nAC GT\r\n\r\n>b\rac\rgt\n>c\nACGT\nAC1T\n";
+		FastaReader r = new FastaReader(new StringBufferInputStream(s), SequenceAlignment.SEQUENCE_DNA);
+
+		Sequence a = r.next();
+		assertEquals("a", a.getName());
+		assertEquals(" desc", a.getDescription());
+		assertEquals("ACGT", a.getSequence());
+		assertEquals("acgt", r.next().getSequence());
+		try {
+			r.next();
+			fail("FileFormatException expected");
+		} catch (FileFormatException e) {
+			assertEquals("Error parsing input at line 10: Illegal nucleotide character (1) in input",
+					e.getMessage());
+		}
+	}
+
+	public void testPackedResidues() {
+		String[] residues = { "ACGT-RYSWKMBDHVNU", "acgt--n", "AcGt", "MKV*LLE-", "", "---" };
+		for (String r : residues) {
+			PackedResidues p = PackedResidues.valueOf(r);
+			assertEquals(r, p.toString());
+			assertEquals(r.length(), p.length());
+			assertEquals(r.hashCode(), p.hashCode());
+			for (int i = 0; i < r.length(); ++i)
+				assertEquals(r.charAt(i) == '-', p.isGap(i));
+		}
+
+		assertTrue(PackedResidues.valueOf("acgt").isPacked());
+		assertFalse(PackedResidues.valueOf("AcGt").isPacked());
+		assertEquals("CGT-", PackedResidues.valueOf("xACGT-x".getBytes(), 2, 4).toString());
+
+		Sequence s = new Sequence("s", false, "", "--AC-GT--");
+		assertEquals(2, s.firstNonGapPosition());
+		assertEquals(6, s.lastNonGapPosition());
+		s.removeChar(4);
+		assertEquals("--ACGT--", s.getSequence());
+		s.removeGaps();
+		assertEquals("ACGT", s.getSequence());
+		assertEquals(0, s.firstNonGapPosition());
+
+		assertEquals(3, new Sequence("s", false, "", "---").firstNonGapPosition());
+		assertEquals(-1, new Sequence("s", false, "", "---").lastNonGapPosition());
+	}
+
+	public void testReverseComplement() throws Exception {
+		Sequence s = new Sequence("s", false, "", "acgtn-rykm");
+		assertEquals("KMRY-NACGT", s.reverseCompliment().getSequence());
+		assertSame(s, s.reverseCompliment().sourceSequence());
+		assertEquals("ACGTN-RYKM", s.getResidues().toUpperCase().toString());
+		assertEquals("mkyr-ntgca", s.getResidues().reverse().toString());
+		assertEquals("TGCAN-YRMK", s.getResidues().complement().toString());
+
+		AbstractSequence view = s.reverseComplementView();
+		assertEquals("KMRY-NACGT", view.getSequence());
+		assertTrue(view.isGap(4));
+		assertSame(s, view.sourceSequence());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new SubSequence("v", "", view, 1, 4).writeFastaOutput(out);
+		assertEquals(">v \nMRY\n", out.toString());
+
+		// changing the view does not change the sequence
+		view.removeChar(4);
+		assertEquals("KMRYNACGT", view.getSequence());
+		assertEquals("acgtn-rykm", s.getSequence());
+		assertSame(s, view.sourceSequence());
+	}
+
+	public void testFastaWrite() throws Exception {
+		StringBuffer seq = new StringBuffer();
+		for (int i = 0; i < 120; ++i)
+			seq.append("ACGT-".charAt(i % 5));
+		String s = ">abcd\n" + seq;
+
+		SequenceAlignment a = new SequenceAlignment(new StringBufferInputStream(s),
+				SequenceAlignment.FILETYPE_FASTA, SequenceAlignment.SEQUENCE_DNA);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		a.getSubSequence(10, 115).writeOutput(out, SequenceAlignment.FILETYPE_FASTA);
+
+		String expected = ">abcd  [10, 115]\n" + seq.substring(10, 60) + "\n"
+			+ seq.substring(60, 110) + "\n" + seq.substring(110, 115) + "\n";
+		assertEquals(expected, out.toString());
+
+		// the wrapped stream is flushed too
+		out.reset();
+		java.io.BufferedOutputStream buffered = new java.io.BufferedOutputStream(out);
+		a.getSubSequence(10, 115).writeOutput(buffered, SequenceAlignment.FILETYPE_FASTA);
+		assertEquals(expected, out.toString());
+	}
+
+	public void testNexusWriter() throws Exception {
+		StringBuffer seq = new StringBuffer();
+		for (int i = 0; i < 230; ++i)
+			seq.append("ACGT-".charAt(i % 5));
+
+		List<AbstractSequence> references = new ArrayList<AbstractSequence>();
+		references.add(new Sequence("ref-1", false, "", seq.toString()));
+		references.add(new Sequence("ref/1", false, "", seq.toString()));
+		references.add(new Sequence("12", false, "", seq.toString()));
+		NexusWriter writer = new NexusWriter(references, SequenceAlignment.SEQUENCE_ANY);
+		NexusWriter.Key key = NexusWriter.Key.valueOf(references, SequenceAlignment.SEQUENCE_ANY);
+		assertEquals(key, NexusWriter.Key.valueOf(new ArrayList<AbstractSequence>(references),
+				SequenceAlignment.SEQUENCE_ANY));
+
+		String[] queries = { "query", "ref_1", "_12", "a_very_long_query_name_indeed" };
+		for (String q : queries) {
+			List<AbstractSequence> all = new ArrayList<AbstractSequence>();
+			all.add(new Sequence(q, false, "", seq.reverse().toString()));
+			all.addAll(references);
+
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			new SequenceAlignment(all, SequenceAlignment.SEQUENCE_ANY)
+				.writeOutput(expected, SequenceAlignment.FILETYPE_NEXUS);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			writer.write(out, all.get(0));
+			assertEquals(expected.toString(), out.toString());
+		}
+
+		List<AbstractSequence> windows = new ArrayList<AbstractSequence>();
+		List<AbstractSequence> others = new ArrayList<AbstractSequence>();
+		for (AbstractSequence r : references) {
+			AbstractSequence part = new SubSequence(r.getName(), "", r, 10, 200);
+			windows.add(new SubSequence(r.getName(), "", part, 5, 105));
+			others.add(new SubSequence(r.getName(), "", r, 20, 120));
+		}
+		NexusWriter.Key windowKey = NexusWriter.Key.valueOf(windows, SequenceAlignment.SEQUENCE_ANY);
+		assertEquals(windowKey, NexusWriter.Key.valueOf(new SequenceAlignment(references, SequenceAlignment.SEQUENCE_ANY)
+				.getSubSequence(15, 115).getSequences(), SequenceAlignment.SEQUENCE_ANY));
+		assertFalse(windowKey.equals(NexusWriter.Key.valueOf(others, SequenceAlignment.SEQUENCE_ANY)));
+		assertFalse(key.equals(windowKey));
+
+		List<AbstractSequence> copies = new ArrayList<AbstractSequence>();
+		for (AbstractSequence r : references)
+			copies.add(new Sequence(r.getName(), false, "", r.getSequence()));
+		assertFalse(key.equals(NexusWriter.Key.valueOf(copies, SequenceAlignment.SEQUENCE_ANY)));
+
+		references.get(1).setName("other");
+		assertFalse(key.equals(NexusWriter.Key.valueOf(references, SequenceAlignment.SEQUENCE_ANY)));
+		references.get(1).setName("ref/1");
+		assertEquals(key, NexusWriter.Key.valueOf(references, SequenceAlignment.SEQUENCE_ANY));
+		references.get(2).removeChar(0);
+		assertFalse(key.equals(NexusWriter.Key.valueOf(references, SequenceAlignment.SEQUENCE_ANY)));
+	}
+
+	public void testPairwiseAligner() throws Exception {
+		java.util.Random random = new java.util.Random(7);
+		StringBuffer ref = new StringBuffer();
+		for (int i = 0; i < 2000; ++i)
+			ref.append("ACGT".charAt(random.nextInt(4)));
+
+		String query = ref.substring(500, 800) + "TTTTTTTTTT" + ref.substring(800, 1200);
+		SequenceAlignment a = new PairwiseAligner().align(
+				new Sequence("ref", false, "", "--" + ref),
+				new Sequence("query", false, "", query.toLowerCase()));
+
+		AbstractSequence r = a.getSequences().get(0);
+		AbstractSequence q = a.getSequences().get(1);
+		assertEquals(2010, a.getLength());
+		assertEquals(ref.toString(), r.getSequence().replace("-", ""));
+		assertEquals(query.toLowerCase(), q.getSequence().replace("-", ""));
+		assertEquals(500, q.firstNonGapPosition());
+		assertEquals(1209, q.lastNonGapPosition());
+		assertEquals(Math.round(700 * 1.9 - 15.0 - 10 * 6.66), a.getAlignmentScore());
+	}
+
+	public void testProfileAligner() throws Exception {
+		java.util.Random random = new java.util.Random(11);
+		StringBuffer ref = new StringBuffer();
+		for (int i = 0; i < 1000; ++i)
+			ref.append("ACGT".charAt(random.nextInt(4)));
+
+		SequenceAlignment references = new SequenceAlignment();
+		references.addSequence(new Sequence("r1", false, "", ref.toString()));
+		references.addSequence(new Sequence("r2", false, "", ref.substring(0, 300) + "---" + ref.substring(303)));
+		references.addSequence(new Sequence("r3", false, "", "-----" + ref.substring(5, 600) + "GGGG" + ref.substring(604)));
+
+		String query = ref.substring(200, 400) + "TTTTTT" + ref.substring(400, 700);
+		ProfileAligner profile = new ProfileAligner(references);
+
+		SequenceAlignment a = profile.align(new Sequence("q", false, "", query), false);
+		assertEquals(4, a.getSequences().size());
+		assertEquals("q", a.getSequences().get(3).getName());
+		for (int i = 0; i < 3; ++i) {
+			AbstractSequence s = a.getSequences().get(i);
+			assertEquals(references.getSequences().get(i).getName(), s.getName());
+			assertEquals(1006, s.getLength());
+			assertEquals(references.getSequences().get(i).getSequence().replace("-", ""),
+					s.getSequence().replace("-", ""));
+		}
+		AbstractSequence q = a.getSequences().get(3);
+		assertEquals(query, q.getSequence().replace("-", ""));
+		assertEquals(200, q.firstNonGapPosition());
+
+		a = profile.align(new Sequence("q", false, "", query), true);
+		assertEquals(506, a.getLength());
+		assertEquals(query, a.getSequences().get(3).getSequence());
+		assertEquals(ref.substring(200, 400) + "------" + ref.substring(400, 700),
+				a.getSequences().get(0).getSequence());
+	}
+
+	public void testAlignmentEngine() throws Exception {
+		assertEquals(AlignmentEngine.CLUSTALW, AlignmentEngine.create("clustalw").getName());
+		assertEquals(AlignmentEngine.CLUSTALW, AlignmentEngine.create("unknown").getName());
+		assertTrue(AlignmentEngine.create("mafft").supportsBatch());
+		assertFalse(AlignmentEngine.create("java").supportsBatch());
+		assertEquals(1, MafftAlignmentEngine.batchSize(1, 0));
+		assertEquals(8, MafftAlignmentEngine.batchSize(8, 7));
+		assertEquals(1, MafftAlignmentEngine.batchSize(3, 1999));
+
+		assertEquals("clustalw", Config.parseJson("{}").getGeneralConfig().getAlignmentEngine());
+		assertEquals("java", Config.parseJson(
+				"{\"generalConfig\":{\"profileAligner\":\"java\"}}").getGeneralConfig().getAlignmentEngine());
+
+		SequenceAlignment references = new SequenceAlignment();
+		references.addSequence(new Sequence("r1", false, "", "ACGTTGCAACGTACGTTTGACCA"));
+		references.addSequence(new Sequence("r2", false, "", "ACGTTGCA-CGTACGTTTGACCA"));
+
+		List<AbstractSequence> queries = new ArrayList<AbstractSequence>();
+		queries.add(new Sequence("q1", false, "", "GCAACGTACG"));
+		queries.add(new Sequence("q2", false, "", "ACGTTTGACC"));
+
+		AlignmentEngine engine = AlignmentEngine.create("java");
+		List<SequenceAlignment> aligned = engine.profileAlign(queries, references, true, null);
+		for (int i = 0; i < queries.size(); ++i) {
+			SequenceAlignment a = new ProfileAligner(references).align(queries.get(i), true);
+			assertEquals(a.getSequences().get(2).getSequence(), aligned.get(i).getSequences().get(2).getSequence());
+			assertEquals(queries.get(i).getSequence(), aligned.get(i).getSequences().get(2).getSequence());
+		}
+
+		// the profile is kept with the analyses of the alignment
+		AlignmentAnalyses analyses = new AlignmentAnalyses();
+		analyses.setAlignment(references);
+		ProfileAligner profile = analyses.getProfileAligner(references);
+		assertSame(profile, analyses.getProfileAligner(references));
+		assertNull(analyses.getProfileAligner(new SequenceAlignment()));
+		SequenceAlignment a = engine.profileAlign(queries.get(0), references, analyses, true, null);
+		assertEquals(queries.get(0).getSequence(), a.getSequences().get(2).getSequence());
+	}
+
+	public void testSubSequenceView() {
+		Sequence s = new Sequence("s", false, "", "AACCGGTT--ACGT");
+		SubSequence sub = new SubSequence("s", "", new SubSequence("s", "", s, 2, 12), 2, 8);
+		assertEquals("GGTT--", sub.getSequence());
+		assertEquals("GGTT--", sub.getResidues().toString());
+		assertEquals("TT-", sub.getResidues().subSequence(2, 5).toString());
+		assertTrue(sub.isGap(4));
+		assertSame(s, sub.sourceSequence());
+	}
+
+	public void testColumnGaps() {
+		StringBuffer s1 = new StringBuffer("---");
+		StringBuffer s2 = new StringBuffer("-");
+		for (int i = 0; i < 30; ++i) {
+			s1.append(i % 7 == 0 ? "-ac" : "gta");
+			s2.append("cat");
+		}
+		s2.append("A-");
+
+		SequenceAlignment a = new SequenceAlignment();
+		a.addSequence(new Sequence("s1", false, "", s1.toString()));
+		Sequence s = new Sequence("s2", false, "", "TT" + s2);
+		a.addSequence(new SubSequence("s2", "", s, 2, s.getLength()));
+
+		assertEquals(4, a.firstNonGapPosition());
+		assertEquals(91, a.lastNonGapPosition());
+		assertEquals(91, a.getSequences().get(1).lastNonGapPosition());
+
+		ColumnGaps gaps = a.getColumnGaps();
+		int count = 0;
+		for (int i = 0; i < a.getLength(); ++i) {
+			assertEquals(s1.charAt(i) == '-' || s2.charAt(i) == '-', gaps.isGapColumn(i));
+			assertEquals(s1.charAt(i) == '-' && s2.charAt(i) == '-', gaps.isAllGapColumn(i));
+			if (gaps.isGapColumn(i))
+				++count;
+		}
+		assertEquals(count, gaps.gapColumnCount());
+
+		Sequence t = new Sequence("s2", false, "", s2.toString());
+		a.getSequences().set(1, t);
+		a.degap();
+		assertEquals(a.getLength(), 93 - count);
+		assertEquals(-1, a.getSequences().get(0).getSequence().indexOf('-'));
+		assertEquals(-1, t.getSequence().indexOf('-'));
+	}
+
+	public void testSlidingGene() {
+		SequenceAlignment a = new SequenceAlignment();
+		a.addSequence(new Sequence("a", false, "", "ACGTACGTAC"));
+
+		SlidingGene windows = new SlidingGene(a, 4, 3);
+		assertEquals(3, windows.size());
+		StringBuffer result = new StringBuffer();
+		for (SequenceAlignment w : windows)
+			result.append(w.getSequences().get(0).getSequence()).append(' ');
+		assertEquals("ACGT TACG GTAC ", result.toString());
+
+		SlidingGene first = windows.trySplit();
+		assertEquals(1, first.size());
+		assertEquals(2, windows.size());
+		assertEquals(1, windows.getBegin());
+		assertEquals("GTAC", windows.getWindow(2).getSequences().get(0).getSequence());
+
+		assertEquals(1, new SlidingGene(a, 20, 3).size());
+	}
+
+	public void testFindSequence() {
+		SequenceAlignment a = new SequenceAlignment();
+		a.addSequence(new Sequence("A_1", false, "", "ACGT"));
+		a.addSequence(new Sequence("B", false, "", "ACGT"));
+		assertSame(a.getSequences().get(0), a.findSequence("A:1"));
+		assertNull(a.findSequence("C"));
+		a.addSequence(new Sequence("F,2", false, "", "ACGT"));
+		assertSame(a.getSequences().get(2), a.getSequence("F,2"));
+		assertNull(a.getSequence("F_2")); // names match exactly
+		assertTrue(a.removeSequence("F,2"));
+
+		Sequence c = new Sequence("C", false, "", "ACGT");
+		a.addSequence(c);
+		assertSame(c, a.findSequence("C"));
+		assertEquals(2, a.getIndex(c));
+
+		assertTrue(a.removeSequence("A_1"));
+		assertNull(a.findSequence("A_1"));
+		assertEquals(1, a.getIndex(c));
+
+		c.setName("D");
+		a.getSequences().add(0, new Sequence("E", false, "", "ACGT"));
+		assertSame(a.getSequences().get(0), a.getSequence("E"));
+		assertSame(c, a.getSequence("D"));
+		assertNull(a.getSequence("C"));
+
+		int[] indexes = a.getIndexes(Arrays.asList("D", "X", "E"));
+		assertEquals(2, indexes[0]);
+		assertEquals(-1, indexes[1]);
+		assertEquals(0, indexes[2]);
+		assertEquals(2, a.selectSequences(Arrays.asList("B", "D", "X")).getSequences().size());
+	}
+
 	private void testSequences(String s1, String s2, String name1,
 			String seq1, String name2, String seq2) {
 		SequenceAlignment a;
@@ -96,4 +450,695 @@ public class SequencesTest extends TestCase {
 			fail("IOException");
 		}
 	}
+
+	public void testExternalProcess() throws Exception {
+		ExternalProcess cat = new ExternalProcess("cat", null);
+		cat.writeInput("ACGT\n".getBytes());
+		assertEquals("ACGT\n", IOUtils.toString(cat.getOutput()));
+		assertEquals(0, cat.waitFor());
+
+		ExternalProcess fail = new ExternalProcess("sh", null);
+		fail.writeInput("exit 3\n".getBytes());
+		assertEquals(3, fail.waitFor());
+
+		final Thread waiting = Thread.currentThread();
+		Thread interrupter = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+				}
+				waiting.interrupt();
+			}
+		};
+		long start = System.currentTimeMillis();
+		ExternalProcess sleep = new ExternalProcess("sleep 30", null);
+		sleep.closeInput();
+		interrupter.start();
+		try {
+			sleep.waitFor();
+			fail("not interrupted");
+		} catch (InterruptedException e) {
+			interrupter.join();
+			assertTrue(System.currentTimeMillis() - start < 10000);
+		}
+	}
+
+	public void testScratchDir() throws Exception {
+		File root = File.createTempFile("scratch", "");
+		root.delete();
+		try {
+			ScratchDir scratch = new ScratchDir(root, "test");
+			File dir = scratch.getDir();
+			try {
+				assertTrue(dir.isDirectory());
+				assertEquals(dir, scratch.getFile("in.fasta").getParentFile());
+
+				ExternalProcess p = new ExternalProcess("sh", dir);
+				p.writeInput("mkdir sub; echo x > sub/out; exit 1\n".getBytes());
+				assertEquals(1, p.waitFor());
+				assertTrue(new File(dir, "sub/out").exists());
+			} finally {
+				scratch.delete();
+			}
+			assertFalse(dir.exists());
+			assertTrue(root.isDirectory());
+
+			assertFalse(new ScratchDir(root, "test").getDir().equals(dir));
+		} finally {
+			FileUtils.deleteDirectory(root);
+		}
+	}
+
+	public void testAlignmentCache() {
+		List<AbstractSequence> references = new ArrayList<AbstractSequence>();
+		references.add(new Sequence("ref", false, "", "ACGTACGTAC"));
+		SequenceAlignment alignment = new SequenceAlignment(references, SequenceAlignment.SEQUENCE_DNA);
+		SequenceAlignment result = new SequenceAlignment(references, SequenceAlignment.SEQUENCE_DNA);
+
+		AlignmentCache cache = new AlignmentCache(25);
+		cache.put(new Sequence("q", false, "", "ACGT"), alignment, false, result);
+		assertSame(result, cache.get(new Sequence("q", false, "", "ACGT"), alignment, false));
+		assertNull(cache.get(new Sequence("q", false, "", "ACGT"), alignment, true));
+		assertNull(cache.get(new Sequence("q", false, "", "ACGA"), alignment, false));
+		assertNull(cache.get(new Sequence("q2", false, "", "ACGT"), alignment, false));
+		assertEquals(1, cache.getHits());
+		assertEquals(3, cache.getMisses());
+
+		cache.put(new Sequence("q", false, "", "ACGT"), alignment, true, result);
+		cache.put(new Sequence("q", false, "", "ACGA"), alignment, false, result);
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertNull(cache.get(new Sequence("q", false, "", "ACGT"), alignment, false));
+	}
+
+	public void testResultCache() throws Exception {
+		File dir = File.createTempFile("result-cache", "");
+		dir.delete();
+		dir.mkdirs();
+		try {
+			ResultCache cache = new ResultCache(new File(dir, "cache"), 1024 * 1024);
+			String key = cache.key("tool", new Sequence("s", false, "", "ACGT"));
+			assertEquals(key, cache.key("tool", new Sequence("s", false, "", "ACGT")));
+			assertFalse(key.equals(cache.key("tool", new Sequence("s", false, "", "ACGA"))));
+			assertFalse(key.equals(cache.key("other", new Sequence("s", false, "", "ACGT"))));
+
+			new File(dir, "job1").mkdirs();
+			ResultTracer tracer = new ResultTracer(new File(dir, "job1/result.xml"));
+			assertFalse(cache.replay(key, tracer));
+			tracer.startRecording();
+			tracer.println("<result id=\"blast\"/>");
+			File resource = tracer.getResourceFile("txt");
+			FileOutputStream out = new FileOutputStream(resource);
+			out.write(42);
+			out.close();
+			cache.store(key, tracer.stopRecording(true), tracer.getRecordedResources());
+			tracer.finish();
+
+			new File(dir, "job2").mkdirs();
+			tracer = new ResultTracer(new File(dir, "job2/result.xml"));
+			assertTrue(cache.replay(key, tracer));
+			tracer.finish();
+
+			assertEquals(FileUtil.readFile(new File(dir, "job1/result.xml")),
+					FileUtil.readFile(new File(dir, "job2/result.xml")));
+			assertEquals(1, new File(dir, "job2/" + resource.getName()).length());
+
+			long entrySize = cache.getSize();
+			ResultCache small = new ResultCache(new File(dir, "cache"), entrySize * 3);
+			for (int i = 0; i < 5; ++i)
+				small.store(small.key("tool" + i, new Sequence("s", false, "", "ACGT")),
+						"<result id=\"blast\"/>\n", new ArrayList<File>());
+			assertTrue(small.getSize() <= entrySize * 3);
+			assertTrue(small.getSize() > 0);
+		} finally {
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+
+	public void testBlastDbCache() throws Exception {
+		SequenceAlignment refs = new SequenceAlignment();
+		refs.addSequence(new Sequence("r1", false, "", "ACGTACGT"));
+		refs.addSequence(new Sequence("r2", false, "", "ACGAACGT"));
+		SequenceAlignment copy = new SequenceAlignment();
+		copy.addSequence(new Sequence("r1", false, "", "ACGTACGT"));
+		copy.addSequence(new Sequence("r2", false, "", "ACGAACGT"));
+		SequenceAlignment other = new SequenceAlignment();
+		other.addSequence(new Sequence("r1", false, "", "ACGTACGT"));
+		other.addSequence(new Sequence("r2", false, "", "ACGTACGT"));
+
+		String key = BlastDbCache.key("formatdb -i db.fasta", refs);
+		assertEquals(key, BlastDbCache.key("formatdb -i db.fasta", copy));
+		assertFalse(key.equals(BlastDbCache.key("formatdb -i db.fasta", other)));
+		assertFalse(key.equals(BlastDbCache.key("makeblastdb -in db.fasta", refs)));
+		assertEquals(key, BlastDbCache.fingerprint(null, "formatdb -i db.fasta", copy));
+		assertEquals(key, BlastDbCache.fingerprint("stamp", "formatdb -i db.fasta", refs));
+		assertEquals(key, BlastDbCache.fingerprint("stamp", "formatdb -i db.fasta", other));
+		assertFalse(key.equals(BlastDbCache.fingerprint("stamp2", "formatdb -i db.fasta", other)));
+
+		File dir = File.createTempFile("blast-db", "");
+		dir.delete();
+		try {
+			final int[] builds = { 0 };
+			BlastDbCache.Builder builder = new BlastDbCache.Builder() {
+				public void build(File d) {
+					++builds[0];
+					try {
+						FileUtils.writeStringToFile(new File(d, BlastDbCache.DB_FILE), ">r1\nACGTACGT\n");
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+
+			BlastDbCache cache = new BlastDbCache(dir, 20);
+			File db = cache.get(key, builder);
+			assertTrue(db.exists());
+			assertEquals(db, cache.get(key, builder));
+			assertEquals(db, cache.getDbFile(key));
+			assertEquals(1, builds[0]);
+
+			// a descriptor of details that were not generated pins the database
+			File descriptor = new File(dir, "r1" + BlastDetails.DESCRIPTOR_SUFFIX);
+			FileUtils.writeStringToFile(descriptor, "db=" + key + "\n");
+			cache.pin(key, descriptor);
+
+			db.getParentFile().setLastModified(System.currentTimeMillis() - 2 * 24 * 60 * 60 * 1000L);
+			File db2 = cache.get("other", builder);
+			assertEquals(2, builds[0]);
+			assertTrue(db2.exists());
+			assertTrue(db.exists());
+
+			FileUtils.writeStringToFile(new File(dir, "r1" + BlastDetails.REPORT_SUFFIX), "<html/>");
+			db.getParentFile().setLastModified(System.currentTimeMillis() - 2 * 24 * 60 * 60 * 1000L);
+			cache.get("third", builder);
+			assertFalse(db.exists());
+		} finally {
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+
+	public void testBlastBatch() throws Exception {
+		File dir = createFakeBlast("blast-batch", "\"blastBatchSize\":4", "");
+		try {
+			StringBuffer sequences = new StringBuffer();
+			for (int i = 1; i <= 8; ++i)
+				sequences.append(">q" + i + "\nACGTACG" + "ACGTACGT".charAt(i - 1) + "\n");
+			FileUtils.writeStringToFile(new File(dir, "sequences.fasta"), sequences.toString());
+
+			final BlastAnalysis[] blast = new BlastAnalysis[1];
+			final int[] pending = new int[1];
+			GenotypeTool tool = new FakeBlastTool(dir, blast) {
+				public void analyze(AbstractSequence s) throws AnalysisException {
+					if (s.getName().equals("q6"))
+						return; // does not reach the analysis
+					blast[0].run(s); // from a batch
+					if (s.getName().equals("q1"))
+						blast[0].run(s); // blasted separately
+					if (s.getName().equals("q7"))
+						pending[0] = batchResults(blast[0]).size();
+				}
+
+				protected boolean isResultCached(AbstractSequence s) {
+					return s.getName().equals("q5");
+				}
+			};
+			blast[0] = (BlastAnalysis) new AlignmentAnalyses(new File(dir, "blast.xml"), tool, dir).getAnalysis("blast");
+
+			File result = new File(dir, "result.xml");
+			tool.analyze(new File(dir, "sequences.fasta").getAbsolutePath(), result.getAbsolutePath());
+
+			String xml = FileUtil.readFile(result);
+			assertEquals(7, xml.split("<sequence ").length - 1); // without q6
+			assertTrue(xml.indexOf("name=\"q1\"") < xml.indexOf("name=\"q2\""));
+			assertEquals(8, xml.split("<result id=\"blast\"").length - 1);
+
+			/*
+			 * The batch grows with the sequences that reach the analysis, and
+			 * skips the cached q5, which is blasted when it is analyzed after
+			 * all; the result of q6 is dropped when q7 is analyzed.
+			 */
+			assertEquals("1\n1\n2\n4\n1\n", FileUtil.readFile(new File(dir, "queries")).replace("\r", ""));
+			assertEquals(1, pending[0]);
+		} finally {
+			resetSettings();
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, ?> batchResults(BlastAnalysis blast) {
+		try {
+			java.lang.reflect.Field f = BlastAnalysis.class.getDeclaredField("batchResults");
+			f.setAccessible(true);
+			return (Map<String, ?>) f.get(blast);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void testBlastDetails() throws Exception {
+		File dir = createFakeBlast("blast-details", "\"blastBatchSize\":0",
+				"<show-multiple>true</show-multiple><details>-e 10</details>");
+		try {
+			java.lang.reflect.Field baseDir = Settings.class.getDeclaredField("baseDir");
+			baseDir.setAccessible(true);
+			baseDir.set(Settings.getInstance(), dir.getAbsolutePath() + "/");
+
+			final BlastAnalysis[] blast = new BlastAnalysis[1];
+			GenotypeTool tool = new FakeBlastTool(dir, blast) {
+				public void analyze(AbstractSequence s) throws AnalysisException {
+					blast[0].run(s);
+				}
+			};
+			blast[0] = (BlastAnalysis) new AlignmentAnalyses(new File(dir, "blast.xml"), tool, dir).getAnalysis("blast");
+
+			File result = new File(dir, "result.xml");
+			tool.analyze(new File(dir, "sequences.fasta").getAbsolutePath(), result.getAbsolutePath());
+
+			// the result names the report, as before
+			String xml = FileUtil.readFile(result);
+			int i = xml.indexOf("<details>");
+			assertTrue(i >= 0);
+			String details = xml.substring(i + "<details>".length(), xml.indexOf("</details>", i));
+			assertTrue(details.endsWith(BlastDetails.REPORT_SUFFIX));
+			assertFalse(new File(dir, details).exists());
+
+			// the descriptor holds no command and no path
+			File descriptor = new File(dir, details.substring(0, details.length() - BlastDetails.REPORT_SUFFIX.length())
+					+ BlastDetails.DESCRIPTOR_SUFFIX);
+			String d = FileUtil.readFile(descriptor);
+			assertFalse(d.contains("blastall"));
+			assertFalse(d.contains(dir.getAbsolutePath()));
+
+			File report = BlastDetails.getReport(dir, details);
+			assertEquals(new File(dir, details), report);
+			assertEquals("<html>report</html>\n", FileUtil.readFile(report));
+			assertTrue(FileUtil.readFile(new File(dir, "runs")).contains(" -e 10 -T -d "));
+
+			try {
+				BlastDetails.getReport(dir, "../" + details);
+				fail();
+			} catch (ApplicationException e) {
+			}
+
+			// without a database cache, the report is generated right away
+			baseDir.set(Settings.getInstance(), null);
+			blast[0] = (BlastAnalysis) new AlignmentAnalyses(new File(dir, "blast.xml"), tool, dir).getAnalysis("blast");
+			tool.analyze(new File(dir, "sequences.fasta").getAbsolutePath(), result.getAbsolutePath());
+
+			xml = FileUtil.readFile(result);
+			i = xml.indexOf("<details>");
+			assertTrue(i >= 0);
+			details = xml.substring(i + "<details>".length(), xml.indexOf("</details>", i));
+			assertEquals("<html>report</html>\n", FileUtil.readFile(new File(dir, details)));
+		} finally {
+			resetSettings();
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+
+	/*
+	 * Creates a directory with fake formatdb and blastall programs, which log
+	 * their arguments to "runs" (and blastall the number of queries to
+	 * "queries"), a configuration that uses them, a blast
+	 * analysis of two references and two sequences to analyze.
+	 */
+	private static File createFakeBlast(String name, String config, String analysis) throws IOException {
+		File dir = File.createTempFile(name, "");
+		dir.delete();
+		dir.mkdirs();
+
+		File bin = new File(dir, "bin");
+		bin.mkdirs();
+		writeScript(new File(bin, "formatdb"), "#!/bin/sh\nexit 0\n");
+		writeScript(new File(bin, "blastall"), "#!/bin/sh\n"
+				+ "echo \"$*\" >> " + new File(dir, "runs").getAbsolutePath() + "\n"
+				+ "case \"$*\" in *-T*) cat > /dev/null; echo '<html>report</html>'; exit 0;; esac\n"
+				+ "input=`cat`\n"
+				+ "echo \"$input\" | grep -c '>' >> " + new File(dir, "queries").getAbsolutePath() + "\n"
+				+ "echo \"$input\" | grep '>' | sed 's/>//' | while read q; do\n"
+				+ "  printf '%s\\tr1\\t100.0\\t8\\t0\\t0\\t1\\t8\\t1\\t8\\t1e-5\\t50\\n' \"$q\"\n"
+				+ "done\n");
+
+		FileUtils.writeStringToFile(new File(dir, "config.json"), "{\"generalConfig\":{\"blastPath\":\""
+				+ bin.getAbsolutePath() + "\"," + config + "}}");
+		FileUtils.writeStringToFile(new File(dir, "refs.fasta"), ">r1\nACGTACGT\n>r2\nTTTTCCCC\n");
+		FileUtils.writeStringToFile(new File(dir, "blast.xml"), "<genotype-analyses>\n"
+				+ "<alignment file=\"refs.fasta\" data=\"dna\"/>\n"
+				+ "<clusters><cluster id=\"A\" name=\"A\"><taxus name=\"r1\"/></cluster>"
+				+ "<cluster id=\"B\" name=\"B\"><taxus name=\"r2\"/></cluster></clusters>\n"
+				+ "<analysis id=\"blast\" type=\"blast\"><identify>A,B</identify>" + analysis + "</analysis>\n"
+				+ "</genotype-analyses>\n");
+		FileUtils.writeStringToFile(new File(dir, "sequences.fasta"), ">q1\nACGTACGT\n>q2\nACGTACGA\n");
+
+		Settings.initSettings(new Settings(new File(dir, "config.json")));
+
+		return dir;
+	}
+
+	private static abstract class FakeBlastTool extends GenotypeTool {
+		private BlastAnalysis[] blast;
+
+		FakeBlastTool(File dir, BlastAnalysis[] blast) throws IOException {
+			super((Config.ToolConfig) null, dir);
+			this.blast = blast;
+		}
+
+		protected String currentJob() {
+			return "test";
+		}
+
+		protected boolean cancelAnalysis() {
+			return false;
+		}
+
+		protected void formatDB() throws ApplicationException {
+			blast[0].formatDB(blast[0].getOwner().getAlignment());
+		}
+	}
+
+	private static void resetSettings() throws Exception {
+		java.lang.reflect.Field instance = Settings.class.getDeclaredField("instance");
+		instance.setAccessible(true);
+		instance.set(null, null);
+	}
+
+	private static void writeScript(File f, String script) throws IOException {
+		FileUtils.writeStringToFile(f, script);
+		f.setExecutable(true);
+	}
+
+	public void testBlastPlusOptions() {
+		assertEquals(" -penalty -1 -reward 1 -dust no -evalue 1e-5",
+				BlastPlusEngine.translateOptions("-q -1 -r 1 -F F -e 1e-5", false));
+		assertEquals(" -seg no -ungapped", BlastPlusEngine.translateOptions("-F F -g F -m 8", true));
+		assertEquals(" -evalue 10 -penalty -2", BlastPlusEngine.translateOptions("-evalue 10 -penalty -2", false));
+		assertEquals("", BlastPlusEngine.translateOptions(null, false));
+	}
+
+	public void testKmerClassifier() {
+		java.util.Random random = new java.util.Random(7);
+		List<AbstractSequence> references = new ArrayList<AbstractSequence>();
+		for (int i = 0; i < 4; ++i)
+			references.add(new Sequence("r" + i, false, "", randomDna(random, 2000)));
+		KmerClassifier classifier = new KmerClassifier(references, new int[] { 0, 0, 1, 1 }, 2);
+
+		Sequence query = new Sequence("q", false, "", references.get(2).getSequence().substring(500, 1200));
+		KmerClassifier.Classification c = classifier.classify(query);
+		assertNotNull(c);
+		assertEquals(1, c.getLabel());
+		assertEquals(2, c.getReference());
+		assertFalse(c.isReverseComplement());
+		assertEquals(1.0f, c.getIdentity(), 0.001f);
+
+		c = classifier.classify(query.reverseCompliment());
+		assertNotNull(c);
+		assertEquals(1, c.getLabel());
+		assertTrue(c.isReverseComplement());
+
+		assertNull(classifier.classify(new Sequence("x", false, "", randomDna(random, 700))));
+	}
+
+	public void testPrefilterScore() {
+		// an identical hit of 100 nucleotides scores like blastall: ~ 198 bits
+		assertEquals(198.7f, BlastAnalysis.estimateBitScore(100, 0), 0.1f);
+		assertTrue(BlastAnalysis.estimateBitScore(100, 10) < BlastAnalysis.estimateBitScore(100, 5));
+		// below 75% identity nothing is left, so that the cutoffs reject it
+		assertEquals(0f, BlastAnalysis.estimateBitScore(100, 30), 0.001f);
+	}
+
+	public void testBlastTaxusIndex() throws ApplicationException {
+		AlignmentAnalyses.Cluster a = new AlignmentAnalyses.Cluster("A", "A", null, null, null);
+		AlignmentAnalyses.Cluster sub = new AlignmentAnalyses.Cluster("A1", "A1", null, null, null);
+		AlignmentAnalyses.Cluster b = new AlignmentAnalyses.Cluster("B", "B", null, null, null);
+		a.addTaxus("t1");
+		sub.addTaxus("t2");
+		a.addCluster(sub);
+		b.addTaxus("t3");
+		AlignmentAnalyses analyses = new AlignmentAnalyses();
+		analyses.addCluster(a);
+		analyses.addCluster(b);
+
+		BlastAnalysis analysis = new BlastAnalysis(analyses, "blast",
+				Arrays.asList(a, b), null, null, null, null, null, null, false, false, "", null, null);
+		Sequence query = new Sequence("q", false, "", "ACGTACGTAC");
+
+		assertEquals(a, parseBlastHit(analysis, query, "t2").getCluster());
+		assertEquals(b, parseBlastHit(analysis, query, "t3").getCluster());
+
+		// changes to other analyses do not count
+		int modifications = analyses.getModifications();
+		new AlignmentAnalyses().addCluster(new AlignmentAnalyses.Cluster("C", "C", null, null, null));
+		assertEquals(modifications, analyses.getModifications());
+
+		b.addTaxus("t4");
+		assertEquals(b, parseBlastHit(analysis, query, "t4").getCluster());
+		a.removeTaxus("t1");
+		assertNull(parseBlastHit(analysis, query, "t1").getCluster());
+		sub.addTaxus("t5");
+		assertEquals(a, parseBlastHit(analysis, query, "t5").getCluster());
+
+		analyses.removeCluster(b);
+		b.addTaxus("t6");
+		assertEquals(modifications + 4, analyses.getModifications());
+	}
+
+	public void testBlastHitReader() throws ApplicationException {
+		String output = "q1\tt1\t98.5\t300\t4\t1\t1\t300\t1200\t901\t1e-150\t 531\r\n"
+			+ "q1\tt2\t90.0\t300\t30\t0\t1\t300\t10\t309\t2e-100\t 420\n"
+			+ "q2\tt3\t100.0\t50\t0\t0\t1\t50\t1\t50\t1e-20\t99.6";
+		BlastHitReader reader = new BlastHitReader(new StringBufferInputStream(output));
+
+		BlastHit hit = reader.next();
+		assertTrue(hit.isQuery("q1"));
+		assertEquals("t1", hit.getSubjectId());
+		assertEquals(300, hit.getAlignmentLength());
+		assertEquals(1200, hit.getSubjectStart());
+		assertEquals(901, hit.getSubjectEnd());
+		assertEquals(531f, hit.getBitScore());
+		BlastHit first = hit.copy();
+
+		hit = reader.next();
+		assertEquals("t2", hit.getSubjectId());
+		assertEquals("t1", first.getSubjectId());
+		assertEquals(0f, first.getEValue()); // as Float.valueOf()
+		assertFalse(hit.hasBitScore(first));
+		assertTrue(first.hasBitScore(first.copy()));
+
+		hit = reader.next();
+		assertEquals("q2", hit.getQueryId());
+		assertEquals(99.6f, hit.getBitScore());
+		assertEquals(1e-20f, hit.getEValue());
+		assertNull(reader.next());
+
+		try {
+			new BlastHitReader(new StringBufferInputStream("q1\tt1\t1\n")).next();
+			fail();
+		} catch (ApplicationException e) {
+		}
+	}
+
+	public void testBipartitionTable() {
+		final int taxa = 70; // two words
+		java.util.Random random = new java.util.Random(7);
+
+		BipartitionTable table = new BipartitionTable(taxa);
+		java.util.Map<String, Float> splits = new java.util.HashMap<String, Float>();
+		long[] query = table.newSet();
+		BipartitionTable.add(query, 0);
+		int[] cluster = { 3, 10, 65, 68 };
+
+		// every query + part of the cluster, and random other splits
+		for (int i = 1; i < 15; ++i) {
+			long[] set = table.newSet();
+			BipartitionTable.add(set, 0);
+			for (int j = 0; j < cluster.length; ++j)
+				if ((i & (1 << j)) != 0)
+					BipartitionTable.add(set, cluster[j]);
+			table.put(set, i);
+		}
+		for (int i = 0; i < 200; ++i) {
+			long[] set = table.newSet();
+			for (int t = 0; t < taxa; ++t)
+				if (random.nextBoolean())
+					BipartitionTable.add(set, t);
+			if (!BipartitionTable.contains(set, 0))
+				table.put(set, 100);
+		}
+
+		long[] set = table.newSet();
+		BipartitionTable.add(set, 0);
+		BipartitionTable.add(set, 65);
+		assertEquals(4f, table.get(set));
+
+		// the complement is the same bipartition
+		long[] complement = table.newSet();
+		for (int t = 1; t < taxa; ++t)
+			if (t != 65)
+				BipartitionTable.add(complement, t);
+		assertEquals(4f, table.get(complement));
+
+		long[] members = table.newSet();
+		for (int j = 0; j < cluster.length; ++j)
+			BipartitionTable.add(members, cluster[j]);
+		assertEquals(105f, table.getInnerSupport(query, members)); // 1 + ... + 14
+
+		assertEquals(0f, table.get(table.newSet()));
+	}
+
+	public void testNeighborJoining() throws ApplicationException {
+		java.util.Random random = new java.util.Random(11);
+		String root = randomDna(random, 600);
+
+		// three pairs of closely related sequences
+		SequenceAlignment a = new SequenceAlignment();
+		String[] names = { "a1", "a2", "b1", "b2", "c1", "c2" };
+		String[] pairs = new String[3];
+		for (int p = 0; p < 3; ++p)
+			pairs[p] = mutate(random, root, 0.2);
+		for (int i = 0; i < names.length; ++i)
+			a.addSequence(new Sequence(names[i], false, "", mutate(random, pairs[i / 2], 0.02)));
+
+		long[] a12 = new long[1];
+		BipartitionTable.add(a12, 0);
+		BipartitionTable.add(a12, 1);
+		long[] a1b1 = new long[1];
+		BipartitionTable.add(a1b1, 0);
+		BipartitionTable.add(a1b1, 2);
+
+		for (int model = NeighborJoining.K2P; model <= NeighborJoining.TN93; ++model) {
+			NeighborJoining nj = new NeighborJoining(a, model, null);
+			assertEquals(600, nj.getColumns());
+			BipartitionTable splits = nj.bootstrap(50, 2, 1);
+			assertEquals(100f, splits.get(a12));
+			assertEquals(0f, splits.get(a1b1));
+			assertTrue(nj.getTree().matches("\\(.*a1:[0-9.]+.*\\);"));
+		}
+
+		// a constraint group is monophyletic in every replicate
+		NeighborJoining constrained = new NeighborJoining(a, NeighborJoining.F84,
+				new int[][] { { 0, 2 }, { 1, 3 }, { 4, 5 } });
+		assertEquals(100f, constrained.bootstrap(20, 1, 1).get(a1b1));
+		assertEquals(0f, constrained.bootstrap(20, 1, 1).get(a12));
+	}
+
+	private static String mutate(java.util.Random random, String s, double rate) {
+		StringBuffer result = new StringBuffer(s);
+		for (int i = 0; i < result.length(); ++i)
+			if (random.nextDouble() < rate)
+				result.setCharAt(i, "ACGT".charAt(random.nextInt(4)));
+		return result.toString();
+	}
+
+	private static BlastAnalysis.Result parseBlastHit(BlastAnalysis analysis, Sequence query, final String taxus)
+			throws ApplicationException {
+		return BlastAnalysis.parseBlastResults(new BlastAnalysis.BlastResults() {
+			boolean done = false;
+			public String[] next() {
+				if (done)
+					return null;
+				done = true;
+				return new String[] { "q", taxus, "100", "10", "0", "0", "1", "10", "1", "10", "1e-5", "20" };
+			}
+		}, analysis, false, query);
+	}
+
+	public void testPaupBootstrapMerge() throws Exception {
+		File log1 = File.createTempFile("paup", ".log");
+		File log2 = File.createTempFile("paup", ".log");
+		try {
+			// two workers of 500 replicates each
+			FileUtils.writeStringToFile(log1, "Bipartitions found in one or more trees\n\n"
+					+ ".**..   450.00  90.0%\n...**   200.00  40.0%\n");
+			FileUtils.writeStringToFile(log2, "Bipartitions found in one or more trees\n\n"
+					+ ".**..   430.00  86.0%\n..***   100.00  20.0%\n");
+
+			BipartitionTable table = PhyloClusterAnalysis.mergeBootstrapTables(Arrays.asList(log1, log2), 1000);
+			assertEquals(5, table.getTaxa());
+			assertEquals(3, table.size());
+			assertEquals(88f, table.get(set(table, 1, 2)), 0.001f);
+			assertEquals(20f, table.get(set(table, 3, 4)), 0.001f);
+			assertEquals(10f, table.get(set(table, 2, 3, 4)), 0.001f);
+
+			assertEquals("((b,c)88,a,d,e);", table.getConsensusTree(new String[] { "a", "b", "c", "d", "e" }));
+			table.put(set(table, 1, 2, 3), 60);
+			assertEquals("(((b,c)88,d)60,a,e);", table.getConsensusTree(new String[] { "a", "b", "c", "d", "e" }));
+		} finally {
+			log1.delete();
+			log2.delete();
+		}
+	}
+
+	public void testPaupBootstrap() throws Exception {
+		File dir = File.createTempFile("paup-bootstrap", "");
+		dir.delete();
+		dir.mkdirs();
+		try {
+			// a paup that finds (b,c) in 90% of the replicates
+			File paup = new File(dir, "paup");
+			writeScript(paup, "#!/bin/sh\n"
+					+ "n=`sed -n 's/.*nreps=\\([0-9]*\\).*/\\1/p' \"$2\" | head -1`\n"
+					+ "echo $n >> " + new File(dir, "nreps").getAbsolutePath() + "\n"
+					+ "printf 'Bipartitions found in one or more trees\\n\\n.**..   %s.00\\n' $((n * 9 / 10)) > paup.log\n"
+					+ "echo '(a,b,c,d,e);' > paup.tre\n");
+			FileUtils.writeStringToFile(new File(dir, "config.json"), "{\"generalConfig\":{\"paupCmd\":\""
+					+ paup.getAbsolutePath() + "\"}}");
+			Settings.initSettings(new Settings(new File(dir, "config.json")));
+
+			SequenceAlignment a = new SequenceAlignment();
+			for (String name : new String[] { "a", "b", "c", "d", "e" })
+				a.addSequence(new Sequence(name, false, "", "ACGTACGT"));
+
+			String block = "begin paup;\nbootstrap nreps=100 search=nj;\nsavetrees file=paup.tre;\nend;";
+			PhyloClusterAnalysis analysis = new PhyloClusterAnalysis(new AlignmentAnalyses(), "phylo",
+					new ArrayList<AlignmentAnalyses.Cluster>(), block, null, dir);
+			java.lang.reflect.Field patterns = PhyloClusterAnalysis.class.getDeclaredField("patterns");
+			patterns.setAccessible(true);
+
+			// the replicates of the options, with the support in % in one process and in several
+			analysis.setOptions("bootstrap-replicates=200,tree");
+			analysis.compute(a, a.getSequences().get(0), Arrays.asList("a"), PhyloClusterAnalysis.PAUP_ANALYSIS, "");
+			BipartitionTable single = (BipartitionTable) patterns.get(analysis);
+			assertEquals(90f, single.get(set(single, 1, 2)), 0.001f);
+			assertEquals("(a,b,c,d,e);\n", FileUtil.readFile(new File(dir, "paup.tre")));
+
+			analysis.setOptions("bootstrap-replicates=200,bootstrap-workers=2,tree");
+			analysis.compute(a, a.getSequences().get(0), Arrays.asList("a"), PhyloClusterAnalysis.PAUP_ANALYSIS, "");
+			BipartitionTable parallel = (BipartitionTable) patterns.get(analysis);
+			assertEquals(90f, parallel.get(set(parallel, 1, 2)), 0.001f);
+
+			// the consensus tree of all replicates replaces that of the first process
+			assertEquals("((b,c)90,a,d,e);\n", FileUtil.readFile(new File(dir, "paup.tre")));
+			assertEquals("200\n100\n100\n", FileUtil.readFile(new File(dir, "nreps")));
+		} finally {
+			resetSettings();
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+
+	private static long[] set(BipartitionTable table, int... taxa) {
+		long[] result = table.newSet();
+		for (int t : taxa)
+			BipartitionTable.add(result, t);
+		return result;
+	}
+
+	public void testOptionValues() throws ApplicationException {
+		BlastAnalysis analysis = new BlastAnalysis(new AlignmentAnalyses(), "blast",
+				new ArrayList<AlignmentAnalyses.Cluster>(), null, null, null, null, null, null, false, false, "", null, null);
+		analysis.setOptions("bootstrap-replicates = 1000, alignment,distance=jc bootstrap-replicates=10");
+		assertEquals("1000", analysis.getOptionValue("bootstrap-replicates"));
+		assertEquals("jc", analysis.getOptionValue("distance"));
+		assertNull(analysis.getOptionValue("alignment"));
+		analysis.setOptions(null);
+		assertNull(analysis.getOptionValue("distance"));
+	}
+
+	private static String randomDna(java.util.Random random, int length) {
+		StringBuffer result = new StringBuffer();
+		for (int i = 0; i < length; ++i)
+			result.append("ACGT".charAt(random.nextInt(4)));
+		return result.toString();
+	}
 }